@@ -0,0 +1,91 @@
+package org.dalquist.hubitat.logging;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+
+import org.dalquist.hubitat.logging.messages.MessageTypeAdapter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON decode of the sample frames, through {@link Gson#fromJson} and through the message adapter the
+ * {@link LogWriter} uses with a reused message. The Gson is set up like the WebSocketLogger's before the adapters,
+ * reflective with a {@link DateTimeFormatter} for the timestamps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+    private static final DateTimeFormatter HUBITAT_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, (JsonDeserializer<LocalDateTime>) (element, type,
+                    context) -> LocalDateTime.parse(element.getAsString(), HUBITAT_TIMESTAMP))
+            .create();
+
+    @Param({ "logsocket", "eventsocket", "zwaveLogsocket", "zigbeeLogsocket" })
+    public String socket;
+
+    private Decoder<?> decoder;
+
+    @Setup
+    public void setup() {
+        decoder = new Decoder<>(SampleSocket.forName(socket));
+    }
+
+    @Benchmark
+    public Object gson() {
+        return decoder.gson();
+    }
+
+    @Benchmark
+    public Object adapter() {
+        return decoder.adapter();
+    }
+
+    private static final class Decoder<T> {
+        private final SampleSocket<T> socket;
+        private final String[] frames;
+        private final MessageTypeAdapter<T> adapter;
+        private final T reuse;
+        private int next;
+
+        Decoder(SampleSocket<T> socket) {
+            this.socket = socket;
+            this.frames = socket.frames();
+            this.adapter = socket.adapterFactory.get();
+            this.reuse = adapter.newMessage();
+        }
+
+        T gson() {
+            return GSON.fromJson(nextFrame(), socket.messageType);
+        }
+
+        T adapter() {
+            return SampleSocket.read(adapter, nextFrame(), reuse);
+        }
+
+        private String nextFrame() {
+            String frame = frames[next];
+            next = (next + 1) % frames.length;
+            return frame;
+        }
+    }
+}
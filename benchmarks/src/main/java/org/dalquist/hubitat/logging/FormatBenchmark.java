@@ -0,0 +1,74 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@code App.format*} methods on already decoded sample messages, with and without encoding the finished
+ * line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+    @Param({ "logsocket", "eventsocket", "zwaveLogsocket", "zigbeeLogsocket" })
+    public String socket;
+
+    private Formatter<?> formatter;
+    private final LogAppender line = new LogAppender();
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() {
+        formatter = new Formatter<>(SampleSocket.forName(socket));
+        line.setReceivedAt(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public int format() {
+        formatter.formatNext(line);
+        int length = line.length();
+        line.clear();
+        return length;
+    }
+
+    @Benchmark
+    public void formatAndEncode() throws IOException {
+        formatter.formatNext(line);
+        line.writeLineTo(sink);
+    }
+
+    private static final class Formatter<T> {
+        private final LogFormatter<T> formatter;
+        private final ImmutableList<T> messages;
+        private int next;
+
+        Formatter(SampleSocket<T> socket) {
+            this.formatter = socket.formatter;
+            this.messages = socket.decodeAll();
+        }
+
+        void formatNext(LogAppender line) {
+            formatter.format(messages.get(next), line);
+            next = (next + 1) % messages.size();
+        }
+    }
+}
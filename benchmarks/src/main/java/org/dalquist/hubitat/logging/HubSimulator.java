@@ -0,0 +1,300 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.core.CloseStatus;
+import org.eclipse.jetty.websocket.core.MessageHandler;
+import org.eclipse.jetty.websocket.core.server.WebSocketUpgradeHandler;
+
+/**
+ * Stand-in for a hub's WebSocket endpoints on an embedded Jetty server. Each socket has a sender thread that
+ * generates frames at a fixed rate, in bursts of {@code burst} frames, whether or not anyone is connected: like
+ * a hub, frames generated while the logger is disconnected are missed, not queued. Sends wait while more than
+ * {@code maxOutstanding} frames are unacknowledged, the way a hub's TCP send buffer would push back.
+ */
+final class HubSimulator implements AutoCloseable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    static final List<String> SOCKETS = List.of("logsocket", "eventsocket", "zwaveLogsocket", "zigbeeLogsocket");
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final ImmutableMap<String, Sender> senders;
+
+    /**
+     * @param frames frame source for each socket to serve
+     * @param rate frames per second for each socket
+     */
+    HubSimulator(Map<String, FrameSource> frames, double rate, int burst, int maxOutstanding) throws Exception {
+        ImmutableMap.Builder<String, Sender> senders = ImmutableMap.builder();
+        frames.forEach(
+                (socket, source) -> senders.put(socket, new Sender(socket, source, rate, burst, maxOutstanding)));
+        this.senders = senders.build();
+
+        server = new Server();
+        connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        String[] paths = this.senders.keySet().stream().map(socket -> "/" + socket).toArray(String[]::new);
+        server.setHandler(new WebSocketUpgradeHandler(negotiation -> {
+            String path = negotiation.getRequest().getRequestURI();
+            Sender sender = this.senders.get(path.substring(path.lastIndexOf('/') + 1));
+            return sender == null ? null : new SimulatedSocket(sender);
+        }, paths));
+        server.start();
+    }
+
+    /**
+     * Address to point the logger's {@code --hub} at.
+     */
+    String address() {
+        return "127.0.0.1:" + connector.getLocalPort();
+    }
+
+    boolean allConnected() {
+        return senders.values().stream().allMatch(sender -> sender.session != null);
+    }
+
+    void startSending() {
+        senders.values().forEach(Sender::start);
+    }
+
+    void stopSending() throws InterruptedException {
+        for (Sender sender : senders.values()) {
+            sender.stop();
+        }
+    }
+
+    /**
+     * Abort every connection, without a close handshake, like a hub rebooting or a network drop.
+     */
+    void dropConnections() {
+        for (Sender sender : senders.values()) {
+            SimulatedSocket session = sender.session;
+            if (session != null) {
+                logger.atInfo().log("Dropping %s", sender.socket);
+                session.getCoreSession().abort();
+            }
+        }
+    }
+
+    Stats stats(String socket) {
+        return senders.get(socket).stats;
+    }
+
+    @Override
+    public void close() throws Exception {
+        stopSending();
+        server.stop();
+    }
+
+    static final class Stats {
+        // Frames the hub produced
+        final AtomicLong generated = new AtomicLong();
+        // Generated while nobody was connected
+        final AtomicLong missed = new AtomicLong();
+        // Written to the connection
+        final AtomicLong sent = new AtomicLong();
+        // Send failed, usually because the connection went away mid-send
+        final AtomicLong failed = new AtomicLong();
+        // Time spent waiting for the client to catch up
+        final AtomicLong stalledNanos = new AtomicLong();
+    }
+
+    private static final class SimulatedSocket extends MessageHandler {
+        private final Sender sender;
+
+        SimulatedSocket(Sender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public void onOpen(CoreSession coreSession, Callback callback) {
+            super.onOpen(coreSession, callback);
+            sender.session = this;
+        }
+
+        @Override
+        public void onClosed(CloseStatus closeStatus, Callback callback) {
+            if (sender.session == this) {
+                sender.session = null;
+            }
+            super.onClosed(closeStatus, callback);
+        }
+    }
+
+    private static final class Sender implements Runnable {
+        private final String socket;
+        private final FrameSource frames;
+        private final long burstIntervalNanos;
+        private final int burst;
+        private final int maxOutstanding;
+        private final Stats stats = new Stats();
+        private final AtomicLong outstanding = new AtomicLong();
+        private final Callback sendCallback = new Callback() {
+            @Override
+            public void succeeded() {
+                outstanding.decrementAndGet();
+                stats.sent.incrementAndGet();
+            }
+
+            @Override
+            public void failed(Throwable x) {
+                outstanding.decrementAndGet();
+                stats.failed.incrementAndGet();
+            }
+        };
+
+        private volatile SimulatedSocket session;
+        private volatile boolean running;
+        private Thread thread;
+
+        Sender(String socket, FrameSource frames, double rate, int burst, int maxOutstanding) {
+            this.socket = socket;
+            this.frames = frames;
+            this.burst = burst;
+            this.burstIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) * burst / rate);
+            this.maxOutstanding = maxOutstanding;
+        }
+
+        void start() {
+            running = true;
+            thread = new Thread(this, "hub-" + socket);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            if (thread != null) {
+                thread.join();
+            }
+        }
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            while (running) {
+                // Catch up without sleeping when behind, so a stall shows up as a lower achieved rate
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                for (int i = 0; i < burst; i++) {
+                    send(frames.next());
+                }
+                next += burstIntervalNanos;
+            }
+        }
+
+        private void send(String frame) {
+            stats.generated.incrementAndGet();
+            SimulatedSocket current = session;
+            if (current == null) {
+                stats.missed.incrementAndGet();
+                return;
+            }
+            if (outstanding.get() >= maxOutstanding) {
+                long start = System.nanoTime();
+                while (outstanding.get() >= maxOutstanding && session == current && running) {
+                    LockSupport.parkNanos(50_000);
+                }
+                stats.stalledNanos.addAndGet(System.nanoTime() - start);
+            }
+            outstanding.incrementAndGet();
+            current.sendText(frame, sendCallback, false);
+        }
+    }
+
+    /**
+     * Frames for one socket, with the hub timestamp set to when the frame is generated so the logger's hub to
+     * receive latency measures the simulated hub's send delay. Not thread safe, each sender owns one.
+     */
+    static final class FrameSource {
+        private static final DateTimeFormatter HUB_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+        private static final String TIME_FIELD = "\"time\":\"";
+
+        private final String[] prefixes;
+        private final String[] suffixes;
+        private int next;
+        private long lastMillis = Long.MIN_VALUE;
+        private String lastTime;
+
+        private FrameSource(String[] frames) {
+            if (frames.length == 0) {
+                throw new IllegalArgumentException("No frames");
+            }
+            prefixes = new String[frames.length];
+            suffixes = new String[frames.length];
+            for (int i = 0; i < frames.length; i++) {
+                int start = frames[i].indexOf(TIME_FIELD);
+                int end = start < 0 ? -1 : frames[i].indexOf('"', start + TIME_FIELD.length());
+                if (end < 0) {
+                    // No hub time, e.g. events, send as is
+                    prefixes[i] = frames[i];
+                } else {
+                    prefixes[i] = frames[i].substring(0, start + TIME_FIELD.length());
+                    suffixes[i] = frames[i].substring(end);
+                }
+            }
+        }
+
+        /**
+         * The recorded sample frames for {@code socket}, see {@link SampleSocket}.
+         */
+        static FrameSource samples(String socket) {
+            return new FrameSource(SampleSocket.forName(socket).frames());
+        }
+
+        /**
+         * Frames from a file with one per line, either bare frames or the {@code {"receivedAt":..,"frame":..}}
+         * lines the logger writes for {@code --raw} sockets.
+         */
+        static FrameSource replay(Path file) throws IOException {
+            try (Stream<String> lines = Files.lines(file)) {
+                return new FrameSource(
+                        lines.filter(line -> !line.isBlank()).map(FrameSource::unwrapRaw).toArray(String[]::new));
+            }
+        }
+
+        private static String unwrapRaw(String line) {
+            String frameField = "\"frame\":";
+            if (!line.startsWith("{\"receivedAt\":")) {
+                return line;
+            }
+            int start = line.indexOf(frameField);
+            return start < 0 ? line : line.substring(start + frameField.length(), line.lastIndexOf('}'));
+        }
+
+        String next() {
+            int i = next;
+            next = (next + 1) % prefixes.length;
+            if (suffixes[i] == null) {
+                return prefixes[i];
+            }
+            long now = System.currentTimeMillis();
+            if (now != lastMillis) {
+                lastTime = HUB_TIME.format(LocalDateTime.now());
+                lastMillis = now;
+            }
+            return prefixes[i] + lastTime + suffixes[i];
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.devtools.common.options.OptionsParser;
+
+/**
+ * End to end load test on one box: serves a simulated hub with {@link HubSimulator}, runs the real {@link App}
+ * against it in a child JVM, then reports the rate the logger kept up with, its latencies from the metrics
+ * endpoint and how many frames the hub sent that never made it to disk.
+ */
+public final class LoadTest {
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    public static void main(String[] args) throws Exception {
+        OptionsParser parser = OptionsParser.newOptionsParser(LoadTestOptions.class);
+        parser.parseAndExitUponError(args);
+        LoadTestOptions options = parser.getOptions(LoadTestOptions.class);
+
+        Path runDir = Files.createTempDirectory(Path.of(options.logDir), "hubitat-load-");
+        Path logDir = runDir.resolve("logs");
+        Map<String, HubSimulator.FrameSource> frames = new LinkedHashMap<>();
+        for (String socket : options.sockets) {
+            frames.put(socket, options.replayDir.isEmpty() ? HubSimulator.FrameSource.samples(socket)
+                    : HubSimulator.FrameSource.replay(Path.of(options.replayDir, socket + ".ndjson")));
+        }
+
+        int metricsPort = freePort();
+        try (HubSimulator hub = new HubSimulator(frames, options.rate, options.burst, options.maxOutstanding)) {
+            Process app = startApp(options, hub.address(), logDir, metricsPort, runDir.resolve("app.out"));
+            String metrics;
+            long elapsedNanos;
+            try {
+                awaitConnected(hub, app);
+                System.out.printf("Sending %.0f frames/s on %d sockets for %ds, logging to %s%n", options.rate,
+                        frames.size(), options.durationSeconds, logDir);
+
+                hub.startSending();
+                long start = System.nanoTime();
+                long end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+                long dropInterval = TimeUnit.SECONDS.toNanos(options.dropEverySeconds);
+                long nextDrop = dropInterval > 0 ? start + dropInterval : Long.MAX_VALUE;
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    if (now >= nextDrop) {
+                        hub.dropConnections();
+                        nextDrop += dropInterval;
+                    }
+                    TimeUnit.MILLISECONDS.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+                            Math.min(end, nextDrop) - now)));
+                }
+                hub.stopSending();
+                elapsedNanos = System.nanoTime() - start;
+
+                // Give the logger time to commit what it has, flush_ms is 1s by default
+                TimeUnit.SECONDS.sleep(3);
+                metrics = scrape(metricsPort);
+            } finally {
+                // Shuts down through the App's shutdown hook, which flushes every socket
+                app.destroy();
+                if (!app.waitFor(30, TimeUnit.SECONDS)) {
+                    app.destroyForcibly();
+                }
+            }
+
+            report(options, hub, logDir, parse(metrics), elapsedNanos);
+        }
+    }
+
+    private static Process startApp(LoadTestOptions options, String hub, Path logDir, int metricsPort, Path output)
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(split(options.appJvmArgs));
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), App.class.getName(), "--hub", hub,
+                "--logdir", logDir.toString(), "--metrics_port", Integer.toString(metricsPort),
+                // Keep every line in plain files the test can count
+                "--compress_threads", "0", "--latency_report_s", "0"));
+        command.addAll(split(options.appArgs));
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output.toFile()).start();
+    }
+
+    private static List<String> split(String args) {
+        return args.isBlank() ? List.of() : Arrays.asList(args.trim().split("\\s+"));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitConnected(HubSimulator hub, Process app) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!hub.allConnected()) {
+            if (!app.isAlive() || System.nanoTime() > deadline) {
+                throw new IllegalStateException("Logger didn't connect, see its output in app.out");
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+    }
+
+    private static String scrape(int port) throws IOException {
+        try (InputStream in = new URL("http://127.0.0.1:" + port + "/metrics").openStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Prometheus text keyed by the series, {@code name{labels}}.
+     */
+    private static Map<String, Double> parse(String metrics) {
+        Map<String, Double> values = new HashMap<>();
+        for (String line : metrics.split("\n")) {
+            int space = line.lastIndexOf(' ');
+            if (line.startsWith("#") || space < 0) {
+                continue;
+            }
+            values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+        }
+        return values;
+    }
+
+    private static void report(LoadTestOptions options, HubSimulator hub, Path logDir, Map<String, Double> metrics,
+            long elapsedNanos) throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%n%-16s %10s %8s %10s %10s %8s %8s %8s %7s %10s  %-23s %-23s%n", "socket", "generated",
+                "missed", "sent", "on disk", "lost", "dropped", "rate/s", "reconn", "stalled ms", "hub->rx p50/99/99.9 ms",
+                "rx->disk p50/99/99.9 ms");
+        for (String socket : options.sockets) {
+            HubSimulator.Stats stats = hub.stats(socket);
+            long sent = stats.sent.get();
+            long onDisk = countLines(logDir, socket);
+            String labels = "hub=\"" + hub.address() + "\",socket=\"" + socket + "\"";
+            // Repeats suppressed with --repeat_window_s weren't lost
+            long suppressed = metrics.getOrDefault("hubitat_suppressed_repeats_total{" + labels + "}", 0.0)
+                    .longValue();
+            System.out.printf("%-16s %10d %8d %10d %10d %8d %8.0f %8.0f %7.0f %10d  %-23s %-23s%n", socket,
+                    stats.generated.get(), stats.missed.get(), sent, onDisk, sent - onDisk - suppressed,
+                    metrics.getOrDefault("hubitat_dropped_frames_total{" + labels + "}", Double.NaN),
+                    onDisk / seconds, metrics.getOrDefault("hubitat_reconnects_total{" + labels + "}", Double.NaN),
+                    TimeUnit.NANOSECONDS.toMillis(stats.stalledNanos.get()),
+                    quantiles(metrics, "hubitat_hub_to_receive_seconds", labels),
+                    quantiles(metrics, "hubitat_receive_to_disk_seconds", labels));
+        }
+    }
+
+    private static String quantiles(Map<String, Double> metrics, String name, String labels) {
+        StringBuilder out = new StringBuilder();
+        for (double quantile : QUANTILES) {
+            Double seconds = metrics.get(name + "{" + labels + ",quantile=\"" + quantile + "\"}");
+            if (out.length() > 0) {
+                out.append('/');
+            }
+            out.append(seconds == null ? "-" : String.format("%.1f", seconds * 1000));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Lines on disk that start a frame, a timestamp or a raw frame. The rest of a multi-line message doesn't
+     * count, nor do the summaries of suppressed repeats.
+     */
+    private static long countLines(Path logDir, String socket) throws IOException {
+        File[] files = logDir.toFile().listFiles((dir, name) -> (name.startsWith(socket + ".")
+                || name.startsWith(socket + "-")) && (name.endsWith(".log") || name.endsWith(".ndjson")));
+        long count = 0;
+        for (File file : files == null ? new File[0] : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("{\"receivedAt\":") || (line.length() > 10 && line.charAt(4) == '-'
+                            && line.charAt(10) == 'T' && !line.contains(": last line repeated "))) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,39 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.List;
+
+import com.google.devtools.common.options.Converters;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+public final class LoadTestOptions extends OptionsBase {
+    @Option(name = "sockets", help = "Comma separated sockets the simulated hub serves.", defaultValue = "logsocket,eventsocket,zwaveLogsocket,zigbeeLogsocket", converter = Converters.CommaSeparatedOptionListConverter.class)
+    public List<String> sockets;
+
+    @Option(name = "rate", help = "Frames per second sent on each socket.", defaultValue = "1000")
+    public double rate;
+
+    @Option(name = "burst", help = "Frames sent back to back, every burst / rate seconds. 1 for a steady stream.", defaultValue = "1")
+    public int burst;
+
+    @Option(name = "duration_s", help = "How long to send for (seconds).", defaultValue = "30")
+    public int durationSeconds;
+
+    @Option(name = "drop_every_s", help = "Abort every connection this often (seconds) to exercise reconnects, 0 to keep them up.", defaultValue = "0")
+    public int dropEverySeconds;
+
+    @Option(name = "max_outstanding", help = "Unacknowledged frames per socket before the hub waits for the logger to catch up.", defaultValue = "10000")
+    public int maxOutstanding;
+
+    @Option(name = "replay", help = "Directory of <socket>.ndjson files to replay, one frame per line or raw logger output. Empty for the bundled samples.", defaultValue = "")
+    public String replayDir;
+
+    @Option(name = "logdir", help = "Directory the logger writes to, a new temporary directory under it is used for each run.", defaultValue = "/tmp")
+    public String logDir;
+
+    @Option(name = "app_args", help = "Extra arguments for the logger, space separated.", defaultValue = "")
+    public String appArgs;
+
+    @Option(name = "app_jvm_args", help = "Extra JVM arguments for the logger, space separated.", defaultValue = "-Xmx512m")
+    public String appJvmArgs;
+}
@@ -0,0 +1,113 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.DailyRotationPolicy;
+import com.vlkan.rfos.policy.SizeBasedRotationPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link WebSocketLogger#onMessage} through decode, format and a rotating log file on {@code dir}, tmpfs by
+ * default so the disk doesn't dominate. The frame queue blocks when full, so the measured rate is the rate
+ * the whole pipeline sustains.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnMessageBenchmark {
+    @Param({ "logsocket", "eventsocket", "zwaveLogsocket", "zigbeeLogsocket" })
+    public String socket;
+
+    @Param("/dev/shm")
+    public String dir;
+
+    /** Log frames as received, see {@link RawFrameFormatter}. */
+    @Param({ "false", "true" })
+    public boolean raw;
+
+    /** Write segments through a mapped region, see {@link MappedSegmentFile}, e.g. {@code -p mmap=true}. */
+    @Param("false")
+    public boolean mmap;
+
+    private Path logDir;
+    private String[] frames;
+    private int next;
+    private LogWriterPool writerPool;
+    private LogWriter logWriter;
+    private WebSocketLogger wsLogger;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        SampleSocket<?> sample = SampleSocket.forName(socket);
+        frames = sample.frames();
+        logDir = Files.createTempDirectory(Path.of(dir), "hubitat-bench-");
+        writerPool = new LogWriterPool(1);
+        SocketMetrics metrics = new SocketMetrics("bench", socket);
+        logWriter = createWriter(sample, raw, mmap, logDir, writerPool, metrics);
+        logWriter.start(() -> {
+            throw new IllegalStateException("Failed to handle frame");
+        });
+        wsLogger = createLogger(logWriter, metrics);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        logWriter.close();
+        writerPool.close();
+        try (Stream<Path> files = Files.walk(logDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void onMessage() {
+        wsLogger.onMessage(frames[next], null);
+        next = (next + 1) % frames.length;
+    }
+
+    private static <T> LogWriter createWriter(SampleSocket<T> sample, boolean raw, boolean mmap, Path logDir,
+            LogWriterPool writerPool, SocketMetrics metrics) throws IOException {
+        RotationConfig rotationConfig = RotationConfig.builder()
+                .file(logDir.resolve(sample.name + ".log").toFile())
+                .filePattern(logDir.resolve(sample.name + "-%d{yyyyMMddHH}.log").toString())
+                .clock(LocalSystemClock.getInstance()).policy(DailyRotationPolicy.getInstance())
+                .policy(new SizeBasedRotationPolicy(1024L * 1024 * 100)).build();
+        FrameFormatter frameFormatter = raw ? RawFrameFormatter.INSTANCE
+                : new MessageFrameFormatter<>(sample.adapterFactory.get(), sample.formatter, null, metrics);
+        SegmentFile.Opener opener = mmap
+                ? (file, append, preallocateBytes) -> MappedSegmentFile.open(file, append, preallocateBytes,
+                        16L * 1024 * 1024, 0)
+                : ChannelSegmentFile::open;
+        return new LogWriter(sample.name, frameFormatter, 8192, OverflowPolicy.BLOCK, writerPool,
+                () -> new GroupCommitOutputStream(new SegmentedOutputStream(rotationConfig, opener, 0), 65536, 1024,
+                        1000, metrics),
+                null, null, 0, metrics);
+    }
+
+    private static WebSocketLogger createLogger(LogWriter logWriter, SocketMetrics metrics) {
+        return new WebSocketLogger(null, null, URI.create("ws://localhost/bench"), logWriter, metrics);
+    }
+}
@@ -0,0 +1,97 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.stream.JsonReader;
+
+import org.dalquist.hubitat.logging.messages.EventLogMessage;
+import org.dalquist.hubitat.logging.messages.EventLogMessageAdapter;
+import org.dalquist.hubitat.logging.messages.MainLogMessage;
+import org.dalquist.hubitat.logging.messages.MainLogMessageAdapter;
+import org.dalquist.hubitat.logging.messages.MessageTypeAdapter;
+import org.dalquist.hubitat.logging.messages.ZigbeeLogMessage;
+import org.dalquist.hubitat.logging.messages.ZigbeeLogMessageAdapter;
+import org.dalquist.hubitat.logging.messages.ZwaveLogMessage;
+import org.dalquist.hubitat.logging.messages.ZwaveLogMessageAdapter;
+
+/**
+ * A hub socket with its recorded sample frames from {@code frames/<socket>.ndjson}.
+ */
+final class SampleSocket<T> {
+    private static final ImmutableMap<String, SampleSocket<?>> SOCKETS = ImmutableMap.<String, SampleSocket<?>>builder()
+            .put("logsocket",
+                    new SampleSocket<>("logsocket", MainLogMessage.class, MainLogMessageAdapter::new,
+                            App::formatLogMessage))
+            .put("eventsocket",
+                    new SampleSocket<>("eventsocket", EventLogMessage.class, EventLogMessageAdapter::new,
+                            App::formatEventLogMessage))
+            .put("zwaveLogsocket",
+                    new SampleSocket<>("zwaveLogsocket", ZwaveLogMessage.class, ZwaveLogMessageAdapter::new,
+                            App::formatZwaveLogMessage))
+            .put("zigbeeLogsocket",
+                    new SampleSocket<>("zigbeeLogsocket", ZigbeeLogMessage.class, ZigbeeLogMessageAdapter::new,
+                            App::formatZigbeeLogMessage))
+            .build();
+
+    final String name;
+    final Class<T> messageType;
+    final Supplier<MessageTypeAdapter<T>> adapterFactory;
+    final LogFormatter<T> formatter;
+
+    private SampleSocket(String name, Class<T> messageType, Supplier<MessageTypeAdapter<T>> adapterFactory,
+            LogFormatter<T> formatter) {
+        this.name = name;
+        this.messageType = messageType;
+        this.adapterFactory = adapterFactory;
+        this.formatter = formatter;
+    }
+
+    static SampleSocket<?> forName(String name) {
+        SampleSocket<?> socket = SOCKETS.get(name);
+        if (socket == null) {
+            throw new IllegalArgumentException("Unknown socket: " + name);
+        }
+        return socket;
+    }
+
+    String[] frames() {
+        String resource = "/frames/" + name + ".ndjson";
+        try (InputStream in = SampleSocket.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing sample frames " + resource);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            return reader.lines().filter(line -> !line.isBlank()).toArray(String[]::new);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    ImmutableList<T> decodeAll() {
+        MessageTypeAdapter<T> adapter = adapterFactory.get();
+        ImmutableList.Builder<T> messages = ImmutableList.builder();
+        for (String frame : frames()) {
+            messages.add(read(adapter, frame, adapter.newMessage()));
+        }
+        return messages.build();
+    }
+
+    static <T> T read(MessageTypeAdapter<T> adapter, String frame, T reuse) {
+        try {
+            JsonReader in = new JsonReader(new StringReader(frame));
+            in.setLenient(true);
+            return adapter.read(in, reuse);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
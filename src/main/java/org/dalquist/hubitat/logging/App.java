@@ -1,13 +1,21 @@
 package org.dalquist.hubitat.logging;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import javax.websocket.ContainerProvider;
 import javax.websocket.WebSocketContainer;
@@ -15,15 +23,22 @@ import javax.websocket.WebSocketContainer;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.FluentLogger;
 import com.google.devtools.common.options.OptionsParser;
+import com.vlkan.rfos.LoggingRotationCallback;
+import com.vlkan.rfos.RotationCallback;
 import com.vlkan.rfos.RotationConfig;
 import com.vlkan.rfos.policy.DailyRotationPolicy;
 import com.vlkan.rfos.policy.SizeBasedRotationPolicy;
 
 import org.apache.commons.text.StringEscapeUtils;
 import org.dalquist.hubitat.logging.messages.EventLogMessage;
+import org.dalquist.hubitat.logging.messages.EventLogMessageAdapter;
 import org.dalquist.hubitat.logging.messages.MainLogMessage;
+import org.dalquist.hubitat.logging.messages.MainLogMessageAdapter;
+import org.dalquist.hubitat.logging.messages.MessageTypeAdapter;
 import org.dalquist.hubitat.logging.messages.ZigbeeLogMessage;
+import org.dalquist.hubitat.logging.messages.ZigbeeLogMessageAdapter;
 import org.dalquist.hubitat.logging.messages.ZwaveLogMessage;
+import org.dalquist.hubitat.logging.messages.ZwaveLogMessageAdapter;
 import org.eclipse.jetty.util.component.LifeCycle;
 
 /**
@@ -36,100 +51,621 @@ public class App {
 
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+    private static final DateTimeFormatter CAPTURE_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private static final ImmutableList<HubSocket<?>> SOCKETS = ImmutableList.of(
+            // Main logger, repeats are tracked per device or app
+            new HubSocket<MainLogMessage>("logsocket", MainLogMessageAdapter::new, App::formatLogMessage,
+                    msg -> msg.time, null,
+                    (window, keys) -> new RepeatFilter<>(App::logRepeatKey, App::logSignature,
+                            App::describeLogSource, window, keys),
+                    new MessageRouter.Fields<MainLogMessage>(App::logSource, App::sourceName)
+                            .number("id", msg -> msg.id).text("name", msg -> msg.name)
+                            .text("type", msg -> msg.type).text("level", msg -> msg.level),
+                    null, null),
+            // Event logger, events have no hub timestamp. Repeats are tracked per device or app and attribute so
+            // a plug reporting power and energy in turn still has both suppressed.
+            new HubSocket<EventLogMessage>("eventsocket", EventLogMessageAdapter::new, App::formatEventLogMessage,
+                    null, null,
+                    (window, keys) -> new RepeatFilter<>(App::eventRepeatKey, App::eventSignature,
+                            App::describeEventSource, window, keys),
+                    new MessageRouter.Fields<EventLogMessage>(App::eventSource, App::sourceName)
+                            .number("id", msg -> "DEVICE".equals(msg.source) ? msg.deviceId : msg.installedAppId)
+                            .text("name", msg -> msg.displayName).text("attribute", msg -> msg.name)
+                            .text("source", msg -> msg.source),
+                    null, null),
+            // ZWave Logger, seqNo counts every frame the hub logs whichever node it is to or from, so it is one
+            // stream under node 0, which no device can have
+            new HubSocket<ZwaveLogMessage>("zwaveLogsocket", ZwaveLogMessageAdapter::new,
+                    App::formatZwaveLogMessage, msg -> msg.time,
+                    markGaps -> new SequenceTracker<>(msg -> 0, msg -> msg.seqNo, 256, 2, markGaps), null,
+                    new MessageRouter.Fields<ZwaveLogMessage>(App::zwaveNode, App::hexName)
+                            .number("id", App::zwaveNode).text("name", msg -> msg.name)
+                            .text("type", msg -> msg.type),
+                    new RadioHealth.Spec<ZwaveLogMessage>(App::zwaveNode, msg -> msg.name, 2)
+                            .measure("tx_ms", App::zwaveTransmissionMs, 0, 10, 100)
+                            .measure("rssi", App::zwaveWeakestRssi, -128, 1, 128)
+                            .measure("hops", ZwaveLogMessage::getRepeaterCount, 0, 1, 5)
+                            .count("route_changes", ZwaveLogMessage::isRouteChanged)
+                            .count("slow", msg -> msg.getSpeed() == 9.6f),
+                    new TelemetryWriter.Spec<ZwaveLogMessage>(msg -> msg.time).column("device", App::zwaveNode)
+                            .column("sequence", msg -> msg.seqNo).column("rx", msg -> isRx(msg.type) ? 1 : 0)
+                            .column("tx_ms", App::zwaveTransmissionMs)
+                            .column("speed", ZwaveLogMessage::getSpeedCode)
+                            .column("route_changed", msg -> msg.hasRouteChanged() ? (msg.isRouteChanged() ? 1 : 0)
+                                    : TelemetryWriter.NONE)
+                            .column("hops", ZwaveLogMessage::getRepeaterCount)
+                            .column("repeaters", App::zwaveRepeaters)
+                            .column("rssi", App::zwaveWeakestRssi)
+                            .column("ack_channel", msg -> zwaveChannel(msg.getAckChannel()))
+                            .column("tx_channel", msg -> zwaveChannel(msg.getTransmitChannel()))),
+            // Zigbee Logger, the APS counter is per sender so only frames received from a device are checked
+            new HubSocket<ZigbeeLogMessage>("zigbeeLogsocket", ZigbeeLogMessageAdapter::new,
+                    App::formatZigbeeLogMessage, msg -> msg.time,
+                    markGaps -> new SequenceTracker<>(App::zigbeeSender, msg -> msg.sequence, 256, 4, markGaps),
+                    null,
+                    new MessageRouter.Fields<ZigbeeLogMessage>(msg -> msg.id, App::hexName)
+                            .number("id", msg -> msg.id).text("name", msg -> msg.name)
+                            .text("type", msg -> msg.type).number("cluster", msg -> msg.clusterId)
+                            .number("profile", msg -> msg.profileId),
+                    new RadioHealth.Spec<ZigbeeLogMessage>(App::zigbeeSender, msg -> msg.name, 4)
+                            .measure("lqi", msg -> msg.lastHopLqi, 0, 1, 256)
+                            .measure("rssi", msg -> msg.lastHopRssi, -128, 1, 128),
+                    new TelemetryWriter.Spec<ZigbeeLogMessage>(msg -> msg.time).column("device", msg -> msg.id)
+                            .column("sequence", msg -> msg.sequence).column("rx", msg -> isRx(msg.type) ? 1 : 0)
+                            .column("profile", msg -> msg.profileId).column("cluster", msg -> msg.clusterId)
+                            .column("src_endpoint", msg -> msg.sourceEndpoint)
+                            .column("dst_endpoint", msg -> msg.destinationEndpoint)
+                            .column("group", msg -> msg.groupId).column("lqi", msg -> msg.lastHopLqi)
+                            .column("rssi", msg -> msg.lastHopRssi)));
+
     public static void main(String[] args) throws Exception {
         OptionsParser parser = OptionsParser.newOptionsParser(AppOptions.class);
         parser.parseAndExitUponError(args);
         AppOptions options = parser.getOptions(AppOptions.class);
+        checkRoutes(options);
 
         WebSocketContainer wsContainer = ContainerProvider.getWebSocketContainer();
         wsContainer.setAsyncSendTimeout(100); // Set a LOW send timeout, we are very close to the server and want to
                                               // detect connection loss quickly
-        try (AutoCloseable wsContainerClosable = () -> LifeCycle.stop(wsContainer)) {
-            ImmutableList<WebSocketLogger<?>> loggers = ImmutableList.<WebSocketLogger<?>>builder()
-                    // Main logger
-                    .add(createLogger(options, wsContainer, MainLogMessage.class, "logsocket", App::formatLogMessage))
-                    // Event logger
-                    .add(createLogger(options, wsContainer, EventLogMessage.class, "eventsocket",
-                            App::formatEventLogMessage))
-                    // ZWave Logger
-                    .add(createLogger(options, wsContainer, ZwaveLogMessage.class, "zwaveLogsocket",
-                            App::formatZwaveLogMessage))
-                    // Zigbee Logger
-                    .add(createLogger(options, wsContainer, ZigbeeLogMessage.class, "zigbeeLogsocket",
-                            App::formatZigbeeLogMessage))
-                    // create logger set
-                    .build();
-
-            Runtime.getRuntime().addShutdownHook(new ShutdownHook(loggers));
+        try (AutoCloseable wsContainerClosable = () -> LifeCycle.stop(wsContainer);
+                MetricsRegistry metrics = new MetricsRegistry(options.metricsPort, options.latencyReportSeconds);
+                ConnectionSupervisor supervisor = new ConnectionSupervisor(
+                        TimeUnit.SECONDS.toMillis(options.keepaliveSeconds),
+                        TimeUnit.SECONDS.toMillis(options.reconnectMaxSeconds),
+                        options.hubAddrs.size() * SOCKETS.size());
+                SegmentCompressor compressor = options.compressThreads > 0
+                        ? new SegmentCompressor(options.compressThreads, options.compressBlockKb * 1024)
+                        : null;
+                RetentionManager retention = createRetentionManager(options, compressor);
+                LogWriterPool writerPool = new LogWriterPool(options.writerThreads)) {
+            if (!options.replayDir.isEmpty()) {
+                replay(options, new HubLoggers(options, wsContainer, supervisor, writerPool, metrics, compressor,
+                        retention, "replay", Path.of(options.logDir).toAbsolutePath(), null, null));
+                SegmentedOutputStream.awaitBackground(10, TimeUnit.SECONDS);
+                return;
+            }
+
+            ImmutableList.Builder<WebSocketLogger> loggersBuilder = ImmutableList.builder();
+            for (String hubAddr : options.hubAddrs) {
+                // Keep the single hub layout unchanged, multiple hubs each get a sub-directory
+                Path logDir = Path.of(options.logDir).toAbsolutePath();
+                Path captureDir = options.captureDir.isEmpty() ? null : Path.of(options.captureDir).toAbsolutePath();
+                Path spillDir = options.spillDir.isEmpty() ? null : Path.of(options.spillDir).toAbsolutePath();
+                if (options.hubAddrs.size() > 1) {
+                    logDir = logDir.resolve(hubAddr);
+                    captureDir = captureDir == null ? null : captureDir.resolve(hubAddr);
+                    spillDir = spillDir == null ? null : spillDir.resolve(hubAddr);
+                }
+                HubLoggers hub = new HubLoggers(options, wsContainer, supervisor, writerPool, metrics, compressor,
+                        retention, hubAddr, logDir, captureDir, spillDir);
+                for (HubSocket<?> socket : SOCKETS) {
+                    loggersBuilder.add(hub.create(socket));
+                }
+            }
+            ImmutableList<WebSocketLogger> loggers = loggersBuilder.build();
+
+            Runtime.getRuntime().addShutdownHook(new ShutdownHook(loggers, metrics));
 
             try (AutoCloseable closable = connectAsync(loggers)) {
-                boolean allDone;
-                do {
-                    allDone = true;
-                    for (WebSocketLogger<?> logger : loggers) {
-                        allDone = logger.awaitDisconnect(1, TimeUnit.SECONDS) && allDone;
-                    }
-                } while (!allDone);
+                // Keepalives and reconnects are up to the supervisor, wake up once everything has disconnected
+                supervisor.awaitFinished();
             }
+            // Before retention and compression close, rotated segments are still handed to them
+            SegmentedOutputStream.awaitBackground(10, TimeUnit.SECONDS);
         }
     }
 
-    private static AutoCloseable connectAsync(Collection<WebSocketLogger<?>> loggers) throws Exception {
+    /**
+     * Fail on a --route for a socket that doesn't exist or is logged raw before anything starts, the fields are
+     * checked when the writers are created.
+     */
+    private static void checkRoutes(AppOptions options) {
+        for (String socket : options.telemetrySockets) {
+            if (SOCKETS.stream().noneMatch(hubSocket -> hubSocket.name.equals(socket) && hubSocket.telemetry != null)) {
+                throw new IllegalArgumentException("No telemetry for socket: " + socket);
+            }
+            if (options.rawSockets.contains(socket)) {
+                throw new IllegalArgumentException("No telemetry for " + socket + ", it is logged raw");
+            }
+        }
+        for (String route : options.routes) {
+            String socket = MessageRouter.socket(route);
+            if (SOCKETS.stream().noneMatch(hubSocket -> hubSocket.name.equals(socket))) {
+                throw new IllegalArgumentException("Unknown socket in route: " + route);
+            }
+            if (options.rawSockets.contains(socket)) {
+                throw new IllegalArgumentException("Can't route " + socket + ", it is logged raw: " + route);
+            }
+        }
+    }
+
+    private static AutoCloseable connectAsync(Collection<WebSocketLogger> loggers) throws Exception {
         ImmutableList<CompositeAutoCloseable.ThrowingSupplier<AutoCloseable>> closableSuppliers = loggers.stream()
                 .map(wsLogger -> (CompositeAutoCloseable.ThrowingSupplier<AutoCloseable>) wsLogger::connectAsync)
                 .collect(ImmutableList.toImmutableList());
         return CompositeAutoCloseable.fromSuppliers(closableSuppliers);
     }
 
-    private static <T> WebSocketLogger<T> createLogger(AppOptions options, WebSocketContainer wsContainer,
-            Class<T> logType, String logFile, LogFormatter<T> logFormatter) throws URISyntaxException {
-        return new WebSocketLogger<>(wsContainer, String.format("ws://%s/%s", options.hubAddr, logFile), logType,
-                createRotationConfig(options, logFile), logFormatter);
+    /**
+     * Write the logs from the captures in {@code --replay} rather than from the hub, one thread per socket.
+     */
+    private static void replay(AppOptions options, HubLoggers hub) throws IOException, InterruptedException {
+        Map<String, List<File>> captures = FrameReplay.find(new File(options.replayDir));
+        if (captures.isEmpty()) {
+            throw new IllegalArgumentException("No frame captures in " + options.replayDir);
+        }
+        long baseMillis = Long.MAX_VALUE;
+        for (List<File> socketCaptures : captures.values()) {
+            baseMillis = Math.min(baseMillis, FrameReplay.createdMillis(socketCaptures));
+        }
+
+        long startNanos = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (HubSocket<?> socket : SOCKETS) {
+            List<File> socketCaptures = captures.get(socket.name);
+            if (socketCaptures == null) {
+                continue;
+            }
+            // Never drop a frame, the replay can wait for the writer
+            LogWriter logWriter = hub.createWriter(socket, OverflowPolicy.BLOCK,
+                    hub.metrics.register(hub.hubAddr, socket.name));
+            Thread thread = new Thread(new FrameReplay(socket.name, socketCaptures, logWriter, options.replaySpeed,
+                    baseMillis, startNanos), "replay-" + socket.name);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        hub.metrics.reportLatencies();
+    }
+
+    /**
+     * A hub socket and how its messages are decoded and logged.
+     */
+    private static final class HubSocket<T> {
+        final String name;
+        final Supplier<MessageTypeAdapter<T>> adapterFactory;
+        final LogFormatter<T> formatter;
+        final Function<T, LocalDateTime> hubTime;
+        final SequenceTracker.Factory<T> sequences;
+        final RepeatFilter.Factory<T> repeats;
+        final MessageRouter.Fields<T> routeFields;
+        final RadioHealth.Spec<T> health;
+        final TelemetryWriter.Spec<T> telemetry;
+
+        /**
+         * @param hubTime the hub's timestamp for a message, or null if the messages don't have one
+         * @param sequences checks the sequence numbers on the messages, or null if they don't have any
+         * @param repeats suppresses repeated messages when --repeat_window_s is set, or null to never
+         * @param routeFields what --route rules for the socket can match on
+         * @param health the radio health measures for the devices, or null if the messages don't have any
+         * @param telemetry the columns written with --telemetry, or null if the messages have none
+         */
+        HubSocket(String name, Supplier<MessageTypeAdapter<T>> adapterFactory, LogFormatter<T> formatter,
+                Function<T, LocalDateTime> hubTime, SequenceTracker.Factory<T> sequences,
+                RepeatFilter.Factory<T> repeats, MessageRouter.Fields<T> routeFields, RadioHealth.Spec<T> health,
+                TelemetryWriter.Spec<T> telemetry) {
+            this.name = name;
+            this.adapterFactory = adapterFactory;
+            this.formatter = formatter;
+            this.hubTime = hubTime;
+            this.sequences = sequences;
+            this.repeats = repeats;
+            this.routeFields = routeFields;
+            this.health = health;
+            this.telemetry = telemetry;
+        }
+    }
+
+    /**
+     * Creates the socket loggers for one hub.
+     */
+    private static final class HubLoggers {
+        private final AppOptions options;
+        private final WebSocketContainer wsContainer;
+        private final ConnectionSupervisor supervisor;
+        private final LogWriterPool writerPool;
+        private final MetricsRegistry metrics;
+        private final SegmentCompressor compressor;
+        private final RetentionManager retention;
+        private final String hubAddr;
+        private final Path logDir;
+        private final Path captureDir;
+        private final Path spillDir;
+
+        /**
+         * @param captureDir where to record the frames received, null to not record them
+         * @param spillDir where to spill frames the writers can't take yet, null to apply the overflow policy
+         */
+        HubLoggers(AppOptions options, WebSocketContainer wsContainer, ConnectionSupervisor supervisor,
+                LogWriterPool writerPool, MetricsRegistry metrics, SegmentCompressor compressor,
+                RetentionManager retention, String hubAddr, Path logDir, Path captureDir, Path spillDir) {
+            this.options = options;
+            this.wsContainer = wsContainer;
+            this.supervisor = supervisor;
+            this.writerPool = writerPool;
+            this.metrics = metrics;
+            this.compressor = compressor;
+            this.retention = retention;
+            this.hubAddr = hubAddr;
+            this.logDir = logDir;
+            this.captureDir = captureDir;
+            this.spillDir = spillDir;
+        }
+
+        WebSocketLogger create(HubSocket<?> hubSocket) throws URISyntaxException, IOException {
+            SocketMetrics socketMetrics = metrics.register(hubAddr, hubSocket.name);
+            LogWriter logWriter = createWriter(hubSocket, options.overflowPolicy, socketMetrics);
+            return new WebSocketLogger(wsContainer, supervisor, String.format("ws://%s/%s", hubAddr, hubSocket.name),
+                    logWriter, socketMetrics);
+        }
+
+        <T> LogWriter createWriter(HubSocket<T> hubSocket, OverflowPolicy overflowPolicy,
+                SocketMetrics socketMetrics) throws IOException {
+            String socket = hubSocket.name;
+            boolean raw = options.rawSockets.contains(socket);
+            FrameFormatter frameFormatter = RawFrameFormatter.INSTANCE;
+            if (!raw) {
+                SequenceTracker<T> sequences = hubSocket.sequences == null ? null
+                        : hubSocket.sequences.create(options.sequenceGapMarkers);
+                socketMetrics.bindSequences(sequences);
+                RepeatFilter<T> repeats = hubSocket.repeats == null || options.repeatWindowSeconds <= 0 ? null
+                        : hubSocket.repeats.create(TimeUnit.SECONDS.toMillis(options.repeatWindowSeconds),
+                                options.repeatKeys);
+                List<MessageSink<T>> sinks = new ArrayList<>();
+                if (hubSocket.health != null && options.healthIntervalSeconds > 0) {
+                    sinks.add(hubSocket.health.create(logDir.resolve("health").toFile(), socket,
+                            TimeUnit.SECONDS.toMillis(options.healthIntervalSeconds), retention));
+                }
+                if (hubSocket.telemetry != null && options.telemetrySockets.contains(socket)) {
+                    sinks.add(hubSocket.telemetry.create(logDir.resolve("telemetry").toFile(), socket,
+                            options.telemetryBlockRecords, TimeUnit.SECONDS.toMillis(options.telemetryFlushSeconds),
+                            retention));
+                }
+                frameFormatter = new MessageFrameFormatter<>(hubSocket.adapterFactory.get(), hubSocket.formatter,
+                        hubSocket.hubTime, socketMetrics, sequences, repeats, createRouter(hubSocket, socketMetrics),
+                        sinks);
+            }
+            String extension = raw ? "ndjson" : "log";
+            File file = logDir.resolve(String.format("%s.%s", socket, extension)).toFile();
+            String pattern = logDir
+                    .resolve(String.format("%s-%%d{%s}.%s", socket, options.rotationPattern, extension)).toString();
+            RotationCallback rotationStage = rotationStage(socket, file);
+            return new LogWriter(hubAddr + "/" + socket, frameFormatter, options.queueSize, overflowPolicy,
+                    writerPool, () -> {
+                        Files.createDirectories(logDir);
+                        SegmentIndex index = new SegmentIndex(file, options.indexLines, options.indexMs,
+                                rotationStage);
+                        SegmentedOutputStream rotating = new SegmentedOutputStream(
+                                createRotationConfig(options, file, pattern, index), segmentOpener(options),
+                                options.preallocateMb * 1024L * 1024);
+                        return new GroupCommitOutputStream(index.wrap(rotating), options.flushBytes,
+                                options.flushLines, options.flushMs, socketMetrics, index);
+                    }, captureDir == null ? null : () -> openCapture(socket),
+                    spillDir == null ? null
+                            : () -> SpillBuffer.open(spillDir.resolve(socket + SpillBuffer.SUFFIX).toFile(),
+                                    options.spillMb * 1024L * 1024, socketMetrics),
+                    TimeUnit.SECONDS.toMillis(options.spillRetrySeconds), socketMetrics);
+        }
+
+        /**
+         * Routes the socket's --route rules to files under {@code routes/}, or null if it has none. Route files
+         * rotate by size only, they are closed and reopened as the LRU needs. Each output counts as a socket for
+         * retention.
+         */
+        private <T> MessageRouter<T> createRouter(HubSocket<T> hubSocket, SocketMetrics socketMetrics) {
+            List<String> rules = new ArrayList<>();
+            for (String route : options.routes) {
+                if (MessageRouter.socket(route).equals(hubSocket.name)) {
+                    rules.add(route);
+                }
+            }
+            if (rules.isEmpty()) {
+                return null;
+            }
+            Path routeDir = logDir.resolve("routes");
+            RotationCallback callback = retention != null ? retention
+                    : compressor != null ? compressor : LoggingRotationCallback.getInstance();
+            return new MessageRouter<>(rules, hubSocket.routeFields, options.routeOpenFiles, options.flushMs,
+                    name -> {
+                        Files.createDirectories(routeDir);
+                        File file = routeDir.resolve(name + ".log").toFile();
+                        if (retention != null) {
+                            retention.register(file);
+                        }
+                        RotationConfig config = RotationConfig.builder().file(file)
+                                .filePattern(routeDir
+                                        .resolve(String.format("%s-%%d{%s}.log", name, options.rotationPattern))
+                                        .toString())
+                                .clock(LocalSystemClock.getInstance()).callback(callback)
+                                .policy(new SizeBasedRotationPolicy(1024L * 1024 * options.rotationSize)).build();
+                        return new SegmentedOutputStream(config, segmentOpener(options), 0);
+                    }, socketMetrics);
+        }
+
+        /**
+         * A new capture file every time the socket is started, named by when so they replay in order.
+         */
+        private FrameCapture openCapture(String socket) throws IOException {
+            Files.createDirectories(captureDir);
+            String time = LocalDateTime.now().format(CAPTURE_TIME);
+            return new FrameCapture(captureDir.resolve(socket + "-" + time + FrameCapture.SUFFIX).toFile());
+        }
+
+        /**
+         * What runs once a segment has been rotated and its index moved: retention, then compression.
+         */
+        private RotationCallback rotationStage(String socket, File file) {
+            if (compressor != null) {
+                // Also pick up segments rotated before a restart that didn't get compressed
+                compressor.compressPending(logDir.toFile(), socket);
+            }
+            if (retention != null) {
+                retention.register(file);
+                return retention;
+            }
+            return compressor != null ? compressor : LoggingRotationCallback.getInstance();
+        }
+    }
+
+    private static RetentionManager createRetentionManager(AppOptions options, SegmentCompressor compressor) {
+        if (options.retainMb <= 0 && options.retainSocketMb <= 0 && options.retainDays <= 0) {
+            return null;
+        }
+        RotationCallback next = compressor != null ? compressor : LoggingRotationCallback.getInstance();
+        Predicate<File> busy = compressor != null ? compressor::isPending : file -> false;
+        return new RetentionManager(options.retainMb * 1024 * 1024, options.retainSocketMb * 1024 * 1024,
+                TimeUnit.DAYS.toMillis(options.retainDays), busy, next);
+    }
+
+    private static SegmentFile.Opener segmentOpener(AppOptions options) {
+        if (!options.mmapSegments) {
+            return ChannelSegmentFile::open;
+        }
+        long regionBytes = options.mmapRegionMb * 1024L * 1024;
+        return (file, append, preallocateBytes) -> MappedSegmentFile.open(file, append, preallocateBytes,
+                regionBytes, options.mmapForceMs);
     }
 
-    private static RotationConfig createRotationConfig(AppOptions options, String logFile) {
-        Path logDir = Path.of(options.logDir).toAbsolutePath();
-        File file = logDir.resolve(String.format("%s.log", logFile)).toFile();
-        String pattern = logDir.resolve(String.format("%s-%%d{%s}.log", logFile, options.rotationPattern)).toString();
+    private static RotationConfig createRotationConfig(AppOptions options, File file, String pattern,
+            RotationCallback callback) {
         logger.atInfo().log("Creating log file %s with rotation pattern %s", file, pattern);
         return RotationConfig.builder().file(file).filePattern(pattern).clock(LocalSystemClock.getInstance())
+                .callback(callback)
                 .policy(DailyRotationPolicy.getInstance())
                 .policy(new SizeBasedRotationPolicy(1024L * 1024 * options.rotationSize)).build();
     }
 
-    static void formatLogMessage(MainLogMessage msg, LogFormatter.Logger logger) {
-        logger.log("%-23s %s[%03d] %5S  %s: %s", DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(msg.time), msg.type,
-                msg.id, msg.level, msg.name, StringEscapeUtils.unescapeHtml4(msg.msg).replace("&apos;", "'"));
+    static void formatLogMessage(MainLogMessage msg, LogAppender out) {
+        out.appendTimestamp(msg.time, -23).append(' ').append(msg.type).append('[').appendZeroPadded(msg.id, 3)
+                .append("] ").appendPaddedUpperCase(msg.level, 5).append("  ").append(msg.name).append(": ")
+                .append(StringEscapeUtils.unescapeHtml4(msg.msg).replace("&apos;", "'"));
+    }
+
+    private static int logRepeatKey(MainLogMessage msg) {
+        return 31 * (msg.type == null ? 0 : msg.type.hashCode()) + msg.id;
+    }
+
+    /**
+     * Everything {@link #formatLogMessage} writes but the time.
+     */
+    private static long logSignature(MainLogMessage msg) {
+        long hash = RepeatFilter.hash(RepeatFilter.hash(), msg.type);
+        hash = RepeatFilter.hash(hash, msg.id);
+        hash = RepeatFilter.hash(hash, msg.level);
+        hash = RepeatFilter.hash(hash, msg.name);
+        return RepeatFilter.hash(hash, msg.msg);
+    }
+
+    private static void describeLogSource(MainLogMessage msg, StringBuilder out) {
+        out.append(msg.type).append('[');
+        appendZeroPadded(msg.id, out);
+        out.append("] ").append(msg.name);
+    }
+
+    /**
+     * Devices as their id and apps as its complement, the two number independently.
+     */
+    private static int logSource(MainLogMessage msg) {
+        return "app".equals(msg.type) ? ~msg.id : msg.id;
+    }
+
+    private static int eventSource(EventLogMessage msg) {
+        return "DEVICE".equals(msg.source) ? msg.deviceId : ~msg.installedAppId;
+    }
+
+    private static String sourceName(int source) {
+        return source < 0 ? "app" + ~source : "dev" + source;
+    }
+
+    /**
+     * The node id, which the hub sends as hex, or -1 if it isn't.
+     */
+    private static int zwaveNode(ZwaveLogMessage msg) {
+        String id = msg.id;
+        if (id == null || id.isEmpty() || id.length() > 7) {
+            return -1;
+        }
+        int node = 0;
+        for (int i = 0; i < id.length(); i++) {
+            int digit = Character.digit(id.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            node = node << 4 | digit;
+        }
+        return node;
+    }
+
+    /**
+     * Returns {@link RadioHealth#NONE} if not reported.
+     */
+    private static int zwaveTransmissionMs(ZwaveLogMessage msg) {
+        int ms = msg.getTransmissionTimeMs();
+        return ms < 0 ? RadioHealth.NONE : ms;
+    }
+
+    /**
+     * The signal strength of the weakest hop on the route, {@link RadioHealth#NONE} if no hop reported one.
+     */
+    private static int zwaveWeakestRssi(ZwaveLogMessage msg) {
+        int weakest = RadioHealth.NONE;
+        for (int i = 0; i < msg.getRssiCount(); i++) {
+            int rssi = msg.getRssi(i);
+            switch (rssi & 0xff) {
+                case ZwaveLogMessage.RSSI_NOT_AVAILABLE:
+                case ZwaveLogMessage.RSSI_MAX:
+                case ZwaveLogMessage.RSSI_MIN:
+                    continue;
+                default:
+                    weakest = weakest == RadioHealth.NONE ? rssi : Math.min(weakest, rssi);
+            }
+        }
+        return weakest;
+    }
+
+    /**
+     * The repeaters on the route a byte each, the first hop in the lowest.
+     */
+    private static int zwaveRepeaters(ZwaveLogMessage msg) {
+        int packed = 0;
+        for (int i = msg.getRepeaterCount() - 1; i >= 0; i--) {
+            packed = packed << 8 | (msg.getRepeater(i) & 0xff);
+        }
+        return packed;
+    }
+
+    /**
+     * Returns {@link TelemetryWriter#NONE} if not reported.
+     */
+    private static int zwaveChannel(int channel) {
+        return channel < 0 ? TelemetryWriter.NONE : channel;
+    }
+
+    private static boolean isRx(String type) {
+        return type != null && type.endsWith("Rx");
+    }
+
+    private static String hexName(int id) {
+        return Integer.toHexString(id).toUpperCase(Locale.ROOT);
+    }
+
+    private static int eventRepeatKey(EventLogMessage msg) {
+        int source = "DEVICE".equals(msg.source) ? msg.deviceId : ~msg.installedAppId;
+        return 31 * source + (msg.name == null ? 0 : msg.name.hashCode());
+    }
+
+    /**
+     * Everything {@link #formatEventLogMessage} writes but the time.
+     */
+    private static long eventSignature(EventLogMessage msg) {
+        long hash = RepeatFilter.hash(RepeatFilter.hash(), msg.source);
+        hash = RepeatFilter.hash(hash, msg.hubId);
+        hash = RepeatFilter.hash(hash, msg.deviceId);
+        hash = RepeatFilter.hash(hash, msg.installedAppId);
+        hash = RepeatFilter.hash(hash, msg.displayName);
+        hash = RepeatFilter.hash(hash, msg.name);
+        hash = RepeatFilter.hash(hash, msg.value);
+        hash = RepeatFilter.hash(hash, msg.unit);
+        return RepeatFilter.hash(hash, msg.descriptionText);
+    }
+
+    private static void describeEventSource(EventLogMessage msg, StringBuilder out) {
+        out.append(msg.source).append('[').append(msg.hubId).append(':');
+        appendZeroPadded("DEVICE".equals(msg.source) ? msg.deviceId : msg.installedAppId, out);
+        out.append("] ").append(msg.displayName).append(": ").append(msg.name);
+    }
+
+    /**
+     * Like {@link LogAppender#appendZeroPadded} to 3 digits, so summaries name sources the way their lines do.
+     */
+    private static void appendZeroPadded(int value, StringBuilder out) {
+        if (value >= 0 && value < 100) {
+            out.append(value < 10 ? "00" : "0");
+        }
+        out.append(value);
+    }
+
+    static void formatEventLogMessage(EventLogMessage msg, LogAppender out) {
+        out.appendReceiveTimestamp(-23).append(' ').append(msg.source).append('[').append(msg.hubId).append(':')
+                .appendZeroPadded("DEVICE".equals(msg.source) ? msg.deviceId : msg.installedAppId, 3).append("] ");
+        out.append(msg.displayName).append(": ").append(msg.name).append(" = ").append(msg.value)
+                .append("null".equals(msg.unit) ? "" : msg.unit).append(", ").append(msg.descriptionText);
+    }
+
+    static void formatZwaveLogMessage(ZwaveLogMessage msg, LogAppender out) {
+        out.appendTimestamp(msg.time, -23).append("   ").append(msg.id).append('[').appendZeroPadded(msg.seqNo, 3)
+                .append("] ").appendPadded(msg.name, 32).append(": ").append(msg.type).append(' ')
+                .appendPadded(msg.getTransmissionTimeMs(), 3).append("ms ").appendFixed(msg.getSpeed(), 5, 1)
+                .append("kbps routeChanged: ").append(msg.isRouteChanged() ? "Y" : "N").append(", repeaters: [");
+        for (int i = 0; i < msg.getRepeaterCount(); i++) {
+            if (i > 0) {
+                out.append(" > ");
+            }
+            out.appendHex(msg.getRepeater(i), 2);
+        }
+        out.append("], channels: ack ").append(msg.getAckChannel()).append(" / tx ").append(msg.getTransmitChannel())
+                .append(", rssi: [");
+        for (int i = 0; i < msg.getRssiCount(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            appendRssi(msg.getRssi(i), out);
+        }
+        out.append(']');
     }
 
-    static void formatEventLogMessage(EventLogMessage msg, LogFormatter.Logger logger) {
-        if ("DEVICE".equals(msg.source)) {
-            logger.log("%-23s %s[%d:%03d] %s: %s = %s%s, %s",
-                    DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS)),
-                    msg.source, msg.hubId, msg.deviceId, msg.displayName, msg.name, msg.value,
-                    "null".equals(msg.unit) ? "" : msg.unit, msg.descriptionText);
-        } else {
-            logger.log("%-23s %s[%d:%03d] %s: %s = %s%s, %s",
-                    DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now()), msg.source, msg.hubId,
-                    msg.installedAppId, msg.displayName, msg.name, msg.value, "null".equals(msg.unit) ? "" : msg.unit,
-                    msg.descriptionText);
+    private static void appendRssi(int rssi, LogAppender out) {
+        switch (rssi & 0xff) {
+            case ZwaveLogMessage.RSSI_NOT_AVAILABLE:
+                out.append("N/A");
+                break;
+            case ZwaveLogMessage.RSSI_MAX:
+                out.append("MAX");
+                break;
+            case ZwaveLogMessage.RSSI_MIN:
+                out.append("MIN");
+                break;
+            default:
+                out.append(rssi).append(" dBm");
         }
     }
 
-    static void formatZwaveLogMessage(ZwaveLogMessage msg, LogFormatter.Logger logger) {
-        logger.log(
-                "%-23s   %s[%03d] %32s: %s %3dms %5.1fkbps routeChanged: %s, repeaters: [%s], channels: ack %d / tx %d, rssi: [%s]",
-                DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(msg.time), msg.id, msg.seqNo, msg.name, msg.type,
-                msg.getTransmissionTimeMs().orElse(-1), msg.getSpeed().orElse(Float.NaN),
-                msg.getRouteChanged().orElse(false) ? "Y" : "N", msg.getRepeaters().orElse(""),
-                msg.getAckChannel().orElse(-1), msg.getTransmitChannel().orElse(-1), msg.getRssi().orElse(""));
+    /**
+     * The device a Zigbee frame came from, -1 for frames the hub sent.
+     */
+    private static int zigbeeSender(ZigbeeLogMessage msg) {
+        return isRx(msg.type) ? msg.id : -1;
     }
 
-    static void formatZigbeeLogMessage(ZigbeeLogMessage msg, LogFormatter.Logger logger) {
-        logger.log(
-                "%-23s %4X[%03d] %32s: %s profile: 0x%03X, cluster: 0x%03X, group: %d, src: %X, dst: %X, lhLqi: %d, lhRssi: %d",
-                DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(msg.time), msg.id, msg.sequence, msg.name, msg.type,
-                msg.profileId, msg.clusterId, msg.groupId, msg.sourceEndpoint, msg.destinationEndpoint, msg.lastHopLqi,
-                msg.lastHopRssi);
+    static void formatZigbeeLogMessage(ZigbeeLogMessage msg, LogAppender out) {
+        out.appendTimestamp(msg.time, -23).append(' ').appendPaddedHex(msg.id, 4).append('[')
+                .appendZeroPadded(msg.sequence, 3).append("] ").appendPadded(msg.name, 32).append(": ")
+                .append(msg.type).append(" profile: 0x").appendHex(msg.profileId, 3).append(", cluster: 0x")
+                .appendHex(msg.clusterId, 3).append(", group: ").append(msg.groupId).append(", src: ")
+                .appendHex(msg.sourceEndpoint).append(", dst: ").appendHex(msg.destinationEndpoint)
+                .append(", lhLqi: ").append(msg.lastHopLqi).append(", lhRssi: ").append(msg.lastHopRssi);
     }
 }
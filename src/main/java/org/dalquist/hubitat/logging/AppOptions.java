@@ -1,12 +1,15 @@
 package org.dalquist.hubitat.logging;
 
+import java.util.List;
+
+import com.google.devtools.common.options.Converters;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
 
 public final class AppOptions extends OptionsBase {
-    @Option(name = "hub", abbrev = 'h', help = "Hub address, host name or IP", defaultValue = "hubitat-c7")
-    public String hubAddr;
-    
+    @Option(name = "hub", abbrev = 'h', help = "Comma separated hub addresses, host names or IPs. Each hub logs to its own sub-directory when there is more than one.", defaultValue = "hubitat-c7", converter = Converters.CommaSeparatedOptionListConverter.class)
+    public List<String> hubAddrs;
+
     @Option(name = "logdir", abbrev = 'd', help = "Directory to log to.", defaultValue = "/Users/edalquist/tmp/")
     public String logDir;
 
@@ -15,4 +18,115 @@ public final class AppOptions extends OptionsBase {
 
     @Option(name = "size", abbrev = 's', help = "Log file rotation size (MiB).", defaultValue = "100")
     public int rotationSize;
+
+    @Option(name = "preallocate_mb", help = "Allocate this much disk space (MiB) for each new log segment before rotating to it, trimmed once it is rotated. The size of --size means a segment never grows while being written, but tail -f won't follow the file. 0 to not pre-allocate.", defaultValue = "0")
+    public int preallocateMb;
+
+    @Option(name = "mmap_segments", help = "Write log segments through a memory mapped region instead of a write call per commit. The file grows a region at a time and is trimmed when rotated.", defaultValue = "false")
+    public boolean mmapSegments;
+
+    @Option(name = "mmap_region_mb", help = "How much of a log segment is mapped at a time with --mmap_segments (MiB).", defaultValue = "16")
+    public int mmapRegionMb;
+
+    @Option(name = "mmap_force_ms", help = "With --mmap_segments, force committed lines to disk at most this often (ms). 0 to leave it to the OS.", defaultValue = "0")
+    public int mmapForceMs;
+
+    @Option(name = "queue_size", help = "Frames buffered per socket between the WebSocket and the log writer.", defaultValue = "8192")
+    public int queueSize;
+
+    @Option(name = "overflow", help = "What to do when a socket's frame queue is full: block, drop_oldest or drop.", defaultValue = "block", converter = OverflowPolicy.Converter.class)
+    public OverflowPolicy overflowPolicy;
+
+    @Option(name = "flush_bytes", help = "Commit buffered log output once this many bytes are pending.", defaultValue = "65536")
+    public int flushBytes;
+
+    @Option(name = "flush_lines", help = "Commit buffered log output once this many lines are pending.", defaultValue = "1024")
+    public int flushLines;
+
+    @Option(name = "flush_ms", help = "Commit buffered log output once the oldest pending line is this old (ms).", defaultValue = "1000")
+    public int flushMs;
+
+    @Option(name = "raw", help = "Comma separated sockets to log as received, one JSON object per line with the receive time, to <socket>.ndjson instead of <socket>.log.", defaultValue = "", converter = Converters.CommaSeparatedOptionListConverter.class)
+    public List<String> rawSockets;
+
+    @Option(name = "index_lines", help = "Write a time index entry for a log segment at least every this many lines.", defaultValue = "1000")
+    public int indexLines;
+
+    @Option(name = "index_ms", help = "Write a time index entry for a log segment at least this often (ms).", defaultValue = "1000")
+    public int indexMs;
+
+    @Option(name = "compress_threads", help = "Threads gzipping rotated log files in the background, each rotated .log is replaced by a .log.gz. 0 leaves them uncompressed.", defaultValue = "0")
+    public int compressThreads;
+
+    @Option(name = "compress_block_kb", help = "Rotated log files are compressed in independent blocks of about this size (KiB) so they can be compressed in parallel and read from the middle.", defaultValue = "4096")
+    public int compressBlockKb;
+
+    @Option(name = "retain_mb", help = "Delete the oldest rotated log files once all the logs together take more than this (MiB), 0 for no limit.", defaultValue = "0")
+    public long retainMb;
+
+    @Option(name = "retain_socket_mb", help = "Delete a socket's oldest rotated log files once its logs take more than this (MiB), 0 for no limit.", defaultValue = "0")
+    public long retainSocketMb;
+
+    @Option(name = "retain_days", help = "Delete rotated log files older than this many days, 0 to keep them regardless of age.", defaultValue = "0")
+    public int retainDays;
+
+    @Option(name = "metrics_port", help = "Serve Prometheus metrics on this port on the loopback address, 0 to disable. Metrics are always available over JMX.", defaultValue = "0")
+    public int metricsPort;
+
+    @Option(name = "latency_report_s", help = "Log hub to receive and receive to disk latency percentiles this often (seconds), 0 to only log them at shutdown.", defaultValue = "60")
+    public int latencyReportSeconds;
+
+    @Option(name = "writer_threads", help = "Threads decoding and writing frames, shared by every hub and socket.", defaultValue = "2")
+    public int writerThreads;
+
+    @Option(name = "keepalive_s", help = "Ping a socket that has received nothing for this long (seconds), and reconnect it if nothing arrives for as long again.", defaultValue = "15")
+    public int keepaliveSeconds;
+
+    @Option(name = "reconnect_max_s", help = "Longest wait between reconnect attempts (seconds), the wait starts at 0.2s and doubles on every failed attempt, with random jitter.", defaultValue = "30")
+    public int reconnectMaxSeconds;
+
+    @Option(name = "repeat_window_s", help = "Log a message that repeats the last one from the same device on logsocket, or device and attribute on eventsocket, within this many seconds of the first only as a 'last line repeated N times' line once the run ends. 0 to log every message.", defaultValue = "0")
+    public int repeatWindowSeconds;
+
+    @Option(name = "repeat_keys", help = "Devices, or devices and attributes, to track repeats for per socket with --repeat_window_s. The least recently seen is forgotten beyond that.", defaultValue = "1024")
+    public int repeatKeys;
+
+    @Option(name = "health_interval_s", help = "Write per-device radio health for the Z-Wave and Zigbee sockets, LQI, RSSI, transmit times and route changes, to health/<socket>-<yyyyMMdd>.log at this interval (s), past days count towards the --retain limits. 0 to not.", defaultValue = "60")
+    public int healthIntervalSeconds;
+
+    @Option(name = "telemetry", help = "Comma separated radio sockets, zwaveLogsocket and zigbeeLogsocket, to also write the numeric fields of to telemetry/<socket>-<yyyyMMdd>.tel, a compact column store read with TelemetryReader. Past days count towards the --retain limits.", defaultValue = "", converter = Converters.CommaSeparatedOptionListConverter.class)
+    public List<String> telemetrySockets;
+
+    @Option(name = "telemetry_block_records", help = "Messages per --telemetry block, the unit columns are encoded and skipped in.", defaultValue = "4096")
+    public int telemetryBlockRecords;
+
+    @Option(name = "telemetry_flush_s", help = "Write a partial --telemetry block once its first message is this old (s).", defaultValue = "60")
+    public int telemetryFlushSeconds;
+
+    @Option(name = "route", help = "Also write the lines of matching messages to routes/<output>.log, may be repeated. <socket>:<output>[:<field>=<value>[,<value>]...]..., e.g. zigbeeLogsocket:temps:cluster=0x402,0x405 or zwaveLogsocket:zwave-{id}:type=zwaveRx. {id} in the output gives each device its own file. Fields are id, name and type, plus level for logsocket, attribute and source for eventsocket and cluster and profile for zigbeeLogsocket. Text ignores case and a trailing * matches a prefix. Route files rotate by --size only.", defaultValue = "", allowMultiple = true)
+    public List<String> routes;
+
+    @Option(name = "route_open_files", help = "Route files kept open per socket, the least recently written is closed beyond that. Each uses two file descriptors.", defaultValue = "64")
+    public int routeOpenFiles;
+
+    @Option(name = "sequence_gap_markers", help = "Write a SEQUENCE GAP line to the Z-Wave and Zigbee logs where frames were missed, going by their sequence numbers. The counts are always in the metrics.", defaultValue = "false")
+    public boolean sequenceGapMarkers;
+
+    @Option(name = "capture_dir", help = "Also record every frame as received, with its receive time, to a <socket>-<time>.capture file in this directory for --replay. Empty to not record them.", defaultValue = "")
+    public String captureDir;
+
+    @Option(name = "spill_dir", help = "When a socket's queue is full, or its log can't be written, spill its frames to <socket>.spill in this directory instead of applying --overflow, and write them to the log once it catches up. Best on another volume. Empty to not spill.", defaultValue = "")
+    public String spillDir;
+
+    @Option(name = "spill_mb", help = "Size of each socket's --spill_dir spill, allocated up front. Once full --overflow applies.", defaultValue = "64")
+    public int spillMb;
+
+    @Option(name = "spill_retry_s", help = "How often a log that can't be written is reopened while frames are spilled.", defaultValue = "5")
+    public int spillRetrySeconds;
+
+    @Option(name = "replay", help = "Instead of connecting to the hub, write the logs from the .capture files in this directory.", defaultValue = "")
+    public String replayDir;
+
+    @Option(name = "replay_speed", help = "Replay frames this many times faster than they were received, 1 for the original pacing and 0 for as fast as possible.", defaultValue = "0")
+    public double replaySpeed;
 }
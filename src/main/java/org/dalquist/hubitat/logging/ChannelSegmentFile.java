@@ -0,0 +1,87 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link SegmentFile} written with positional {@link FileChannel} writes, a write call per group commit.
+ *
+ * <p>
+ * Not thread safe, {@link SegmentedOutputStream} serializes access.
+ */
+final class ChannelSegmentFile extends SegmentFile {
+    private final File file;
+    private final FileChannel channel;
+    private long length;
+    private long allocated;
+
+    // The array last written from wrapped once, the group commit buffer is the same array every time
+    private byte[] wrappedArray;
+    private ByteBuffer wrapped;
+
+    private ChannelSegmentFile(File file, FileChannel channel, long length) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.length = length;
+        this.allocated = channel.size();
+    }
+
+    static ChannelSegmentFile open(File file, boolean append, long preallocateBytes) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (!append) {
+                channel.truncate(0);
+            }
+            // Left pre-allocated if the process died before the segment was closed
+            long length = SegmentFile.contentLength(channel);
+            SegmentFile.zeroFill(channel, channel.size(), length + preallocateBytes);
+            return new ChannelSegmentFile(file, channel, length);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    long length() {
+        return length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b != wrappedArray) {
+            wrappedArray = b;
+            wrapped = ByteBuffer.wrap(b);
+        }
+        wrapped.limit(off + len).position(off);
+        while (wrapped.hasRemaining()) {
+            length += channel.write(wrapped, length);
+        }
+        allocated = Math.max(allocated, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (allocated > length) {
+                channel.truncate(length);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
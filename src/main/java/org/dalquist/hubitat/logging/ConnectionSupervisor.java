@@ -0,0 +1,135 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Watches over every {@link WebSocketLogger}'s connection. Nothing polls: a socket is only looked at when its
+ * keepalive timer fires, which it re-arms for when the socket will next have been quiet for
+ * {@code keepaliveMillis}, so a busy socket is never pinged. Reconnects wait out a jittered exponential backoff
+ * on the same {@link TimerWheel} and the blocking connect itself runs on a pool with a thread for every socket, so a
+ * hub that doesn't answer can't hold up the others. Disconnects the writers ask for have a pool of their own. The
+ * main thread parks in {@link #awaitFinished} until every logger has disconnected for good.
+ */
+final class ConnectionSupervisor implements AutoCloseable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final long MIN_BACKOFF_MILLIS = 200;
+
+    private final long keepaliveMillis;
+    private final long maxBackoffMillis;
+    private final TimerWheel wheel = new TimerWheel("ws-supervisor", 100, TimeUnit.MILLISECONDS, 512);
+    private final ExecutorService connector;
+    private final ExecutorService disconnector;
+
+    // Started and not yet disconnected for good, guarded by this
+    private final Set<WebSocketLogger> running = new HashSet<>();
+    // Have a keepalive timer armed, guarded by this
+    private final Set<WebSocketLogger> watched = new HashSet<>();
+
+    /**
+     * @param keepaliveMillis ping a socket that has received nothing for this long, and reconnect it if nothing
+     *            arrives for as long again
+     * @param maxBackoffMillis longest wait between reconnect attempts
+     * @param sockets how many sockets there are across all hubs, each has at most one connect in flight
+     */
+    ConnectionSupervisor(long keepaliveMillis, long maxBackoffMillis, int sockets) {
+        this.keepaliveMillis = keepaliveMillis;
+        this.maxBackoffMillis = Math.max(MIN_BACKOFF_MILLIS, maxBackoffMillis);
+        this.connector = Executors.newFixedThreadPool(Math.max(1, sockets),
+                new ThreadFactoryBuilder().setNameFormat("ws-connect-%d").setDaemon(true).build());
+        this.disconnector = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("ws-disconnect-%d").setDaemon(true).build());
+    }
+
+    long keepaliveMillis() {
+        return keepaliveMillis;
+    }
+
+    /**
+     * Start watching {@code wsLogger}, until {@link WebSocketLogger#checkAlive} says it has disconnected.
+     */
+    synchronized void started(WebSocketLogger wsLogger) {
+        running.add(wsLogger);
+        // Restarted before its last check noticed it had stopped, that timer carries on
+        if (watched.add(wsLogger)) {
+            scheduleKeepalive(wsLogger, keepaliveMillis);
+        }
+    }
+
+    private void scheduleKeepalive(WebSocketLogger wsLogger, long delayMillis) {
+        wheel.schedule(delayMillis, TimeUnit.MILLISECONDS, () -> {
+            synchronized (this) {
+                long next = wsLogger.checkAlive(System.currentTimeMillis());
+                if (next < 0) {
+                    watched.remove(wsLogger);
+                } else {
+                    scheduleKeepalive(wsLogger, next);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run {@code connect} after the backoff for reconnect attempt {@code attempt}, counting from 0. Returns how
+     * long it will wait.
+     */
+    long reconnect(int attempt, Runnable connect) {
+        // Equal jitter: at least half the exponential backoff, so sockets that dropped together spread out
+        // without any of them retrying straight away
+        long backoff = Math.min(maxBackoffMillis, MIN_BACKOFF_MILLIS << Math.min(attempt, 20));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        wheel.schedule(delay, TimeUnit.MILLISECONDS, () -> connector.execute(connect));
+        return delay;
+    }
+
+    /**
+     * Disconnect {@code wsLogger} in the background, for callers such as a {@link LogWriterPool} thread that
+     * mustn't block on closing its session.
+     */
+    void disconnectAsync(WebSocketLogger wsLogger) {
+        disconnector.execute(wsLogger::disconnect);
+    }
+
+    /**
+     * {@code wsLogger} has disconnected for good.
+     */
+    synchronized void finished(WebSocketLogger wsLogger) {
+        if (running.remove(wsLogger) && running.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until every started logger has disconnected for good.
+     */
+    synchronized void awaitFinished() throws InterruptedException {
+        while (!running.isEmpty()) {
+            wait();
+        }
+    }
+
+    @Override
+    public void close() {
+        wheel.close();
+        connector.shutdownNow();
+        disconnector.shutdown();
+        try {
+            if (!connector.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.atWarning().log("Gave up waiting for a WebSocket connect to finish");
+            }
+            if (!disconnector.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.atWarning().log("Gave up waiting for a WebSocket disconnect to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
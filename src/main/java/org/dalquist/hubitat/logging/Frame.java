@@ -0,0 +1,18 @@
+package org.dalquist.hubitat.logging;
+
+/**
+ * A raw WebSocket text frame as it travels from the socket thread to the writer thread. Instances are
+ * pre-allocated as {@link FrameRingBuffer} slots and are mutated in place.
+ */
+final class Frame {
+    String message;
+    long receivedMillis;
+    // System.nanoTime() at receipt, for latency measurements
+    long receivedNanos;
+
+    void copyFrom(Frame other) {
+        this.message = other.message;
+        this.receivedMillis = other.receivedMillis;
+        this.receivedNanos = other.receivedNanos;
+    }
+}
@@ -0,0 +1,225 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records frames exactly as received so they can be fed back through the log writers with {@link FrameReplay}.
+ * A capture file is {@link #MAGIC} and the big-endian epoch millis it was created at, followed by one record
+ * per frame: the change in receive time since the previous frame as a zigzag varint, the length of the UTF-8
+ * frame as a varint, then the frame. Most frames cost two or three bytes on top of the frame itself.
+ *
+ * <p>
+ * Not thread safe, written from the {@link LogWriterPool} thread of the socket it records.
+ */
+final class FrameCapture implements Closeable {
+    static final String SUFFIX = ".capture";
+    static final byte[] MAGIC = "HUBCAP01".getBytes(StandardCharsets.US_ASCII);
+
+    // Buffered records are written out at least this often, so a crash loses about as much as the log does
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final File file;
+    private final FileOutputStream fileOut;
+    private final OutputStream out;
+    private long previousMillis;
+    private long flushedAtNanos = System.nanoTime();
+    private boolean dirty;
+    private char[] chars = new char[1024];
+    private byte[] bytes = new byte[1024];
+
+    /**
+     * Start a new capture file {@code file}, replacing any existing one.
+     */
+    FrameCapture(File file) throws IOException {
+        this.file = file;
+        this.fileOut = new FileOutputStream(file);
+        this.out = new BufferedOutputStream(fileOut, 1 << 16);
+        previousMillis = System.currentTimeMillis();
+        out.write(MAGIC);
+        writeLong(out, previousMillis);
+    }
+
+    void append(Frame frame) throws IOException {
+        writeVarLong(out, zigzag(frame.receivedMillis - previousMillis));
+        previousMillis = frame.receivedMillis;
+
+        String message = frame.message;
+        int length = message.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            bytes = new byte[chars.length];
+        }
+        message.getChars(0, length, chars, 0);
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80) {
+                // Hub frames are almost always ASCII, only pay for an encoder when they aren't
+                byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(out, encoded.length);
+                out.write(encoded);
+                dirty = true;
+                return;
+            }
+            bytes[i] = (byte) c;
+        }
+        writeVarLong(out, length);
+        out.write(bytes, 0, length);
+        dirty = true;
+    }
+
+    /**
+     * Write buffered records out if they have been held for a while.
+     */
+    void flushIfDue(long nowNanos) throws IOException {
+        if (dirty && nowNanos - flushedAtNanos >= FLUSH_INTERVAL_NANOS) {
+            flush();
+        }
+    }
+
+    void flush() throws IOException {
+        out.flush();
+        flushedAtNanos = System.nanoTime();
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    /**
+     * Reads the frames back from a capture file, in the order they were received.
+     */
+    static final class Reader implements Closeable {
+        private final File file;
+        private final InputStream in;
+        private final long createdMillis;
+        private long previousMillis;
+        private byte[] bytes = new byte[1024];
+
+        Reader(File file) throws IOException {
+            this.file = file;
+            this.in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            byte[] magic = new byte[MAGIC.length];
+            DataInputStream header = new DataInputStream(in);
+            try {
+                header.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException(file + " is not a frame capture");
+                }
+                createdMillis = header.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            previousMillis = createdMillis;
+        }
+
+        /**
+         * When the capture was started, no frame was received before this.
+         */
+        long createdMillis() {
+            return createdMillis;
+        }
+
+        /**
+         * Read the next frame into {@code into}, false at the end of the capture. A record cut short by a crash
+         * while it was being written counts as the end.
+         */
+        boolean next(Frame into) throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return false;
+            }
+            try {
+                long delta = readVarLong(first);
+                previousMillis += (delta >>> 1) ^ -(delta & 1);
+                int length = (int) readVarLong(readByte());
+                if (bytes.length < length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                int read = in.readNBytes(bytes, 0, length);
+                if (read < length) {
+                    throw new EOFException();
+                }
+                into.message = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                into.receivedMillis = previousMillis;
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        private long readVarLong(int first) throws IOException {
+            long value = first & 0x7f;
+            int shift = 7;
+            for (int b = first; (b & 0x80) != 0; shift += 7) {
+                if (shift > 63) {
+                    throw new IOException("Corrupt record in " + file);
+                }
+                b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+            }
+            return value;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+
+/**
+ * Turns a received {@link Frame} into one log line. Called from the {@link LogWriterPool} thread the
+ * {@link LogWriter} is pinned to, so implementations may keep per-writer scratch state.
+ */
+interface FrameFormatter {
+    /**
+     * Append a single log line for {@code frame}, without the line separator. Appending nothing leaves the frame
+     * out of the log.
+     */
+    void format(Frame frame, LogAppender out) throws IOException;
+
+    /**
+     * Append lines held back until {@code nowMillis}, or all of them if {@code closing}, e.g. counts of
+     * suppressed repeats. Called while the writer is idle, lines are separated like {@link #format}'s. Nothing by
+     * default.
+     */
+    default void appendPending(long nowMillis, boolean closing, LogAppender out) {
+        // Nothing held back
+    }
+
+    /**
+     * Write out anything the formatter writes to other files itself that is due by {@code nowMillis}, or all that
+     * can be if {@code force}. Called while the writer is idle. Nothing by default.
+     */
+    default void flush(long nowMillis, boolean force) {
+        // No files of its own
+    }
+
+    /**
+     * Called once the writer is done with the formatter. Nothing by default.
+     */
+    default void close() {
+        // No files of its own
+    }
+}
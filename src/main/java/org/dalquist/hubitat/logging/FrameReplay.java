@@ -0,0 +1,107 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Feeds one socket's {@link FrameCapture}s through its {@link LogWriter}, in place of the WebSocket, with the
+ * frames' original receive times. Frames are offered either as fast as the writer takes them or paced like they
+ * were received, sped up by {@code speed}.
+ */
+final class FrameReplay implements Runnable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final String socket;
+    private final List<File> captures;
+    private final LogWriter logWriter;
+    private final double speed;
+    private final long baseMillis;
+    private final long startNanos;
+    private long replayed;
+
+    /**
+     * @param captures the socket's captures, oldest first
+     * @param speed 1 for the original pacing, 2 for twice as fast and so on, 0 for as fast as possible
+     * @param baseMillis receive time replayed at {@code startNanos}, shared by every socket so they stay in step
+     */
+    FrameReplay(String socket, List<File> captures, LogWriter logWriter, double speed, long baseMillis,
+            long startNanos) {
+        this.socket = socket;
+        this.captures = captures;
+        this.logWriter = logWriter;
+        this.speed = speed;
+        this.baseMillis = baseMillis;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * The captures in {@code dir} by socket, oldest first, from their {@code <socket>-<time>.capture} names.
+     */
+    static Map<String, List<File>> find(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(FrameCapture.SUFFIX) && name.indexOf('-') > 0);
+        Map<String, List<File>> captures = new TreeMap<>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            captures.computeIfAbsent(name.substring(0, name.indexOf('-')), socket -> new ArrayList<>()).add(file);
+        }
+        // The time in the name sorts in the order the captures were taken
+        captures.values().forEach(socketCaptures -> socketCaptures.sort(null));
+        return captures;
+    }
+
+    /**
+     * When the oldest of {@code captures} was started.
+     */
+    static long createdMillis(List<File> captures) throws IOException {
+        try (FrameCapture.Reader reader = new FrameCapture.Reader(captures.get(0))) {
+            return reader.createdMillis();
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            logWriter.start(() -> logger.atWarning().log("Failed to write a replayed frame for %s", socket));
+            Frame frame = new Frame();
+            for (File capture : captures) {
+                logger.atInfo().log("Replaying %s", capture);
+                try (FrameCapture.Reader reader = new FrameCapture.Reader(capture)) {
+                    while (reader.next(frame)) {
+                        pace(frame.receivedMillis);
+                        if (!logWriter.offer(frame.message, frame.receivedMillis, System.nanoTime())) {
+                            logger.atSevere().log("Stopped replaying %s, the log writer is closed", socket);
+                            return;
+                        }
+                        replayed++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to replay %s", socket);
+        } finally {
+            logWriter.close();
+            logger.atInfo().log("Replayed %d frames for %s in %dms", replayed, socket,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private void pace(long receivedMillis) {
+        if (speed <= 0) {
+            return;
+        }
+        long due = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(receivedMillis - baseMillis) / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, wait);
+        }
+    }
+}
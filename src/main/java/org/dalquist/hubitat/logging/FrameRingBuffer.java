@@ -0,0 +1,177 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, pre-allocated, lock-free single-producer/single-consumer queue of {@link Frame}s.
+ *
+ * <p>
+ * The producer is the WebSocket thread calling {@code @OnMessage}, the container delivers messages for a
+ * session serially. The consumer is the {@link LogWriterPool} thread the {@link LogWriter} is pinned to.
+ * Frames are copied into and out of the pre-allocated slots so nothing is allocated per message.
+ */
+final class FrameRingBuffer {
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Frame[] slots;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+
+    // Next sequence to consume, only ever moved forward by the consumer, or by the producer when dropping
+    // the oldest frame.
+    private final AtomicLong head = new AtomicLong();
+    // Next sequence to produce, only ever moved by the producer.
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Runnable consumerWakeup = () -> {
+    };
+    private volatile boolean closed;
+
+    FrameRingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Frame[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Frame();
+        }
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * Called after every offer and on close so a parked consumer can be woken up.
+     */
+    void setConsumerWakeup(Runnable consumerWakeup) {
+        this.consumerWakeup = consumerWakeup;
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Copy the frame into the next free slot. Returns false if the frame was not queued, either because the
+     * policy is {@link OverflowPolicy#DROP} and the buffer is full or because the buffer was closed.
+     */
+    boolean offer(String message, long receivedMillis, long receivedNanos) {
+        if (closed) {
+            return false;
+        }
+        long t = tail.get();
+        while (t - head.get() >= slots.length) {
+            if (closed) {
+                return false;
+            }
+            switch (overflowPolicy) {
+                case BLOCK:
+                    wakeConsumer();
+                    LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+                    break;
+                case DROP_OLDEST:
+                    long h = head.get();
+                    if (t - h >= slots.length && head.compareAndSet(h, h + 1)) {
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                case DROP:
+                    dropped.incrementAndGet();
+                    return false;
+            }
+        }
+
+        Frame slot = slots[(int) t & mask];
+        slot.message = message;
+        slot.receivedMillis = receivedMillis;
+        slot.receivedNanos = receivedNanos;
+        // A full volatile write, the consumer publishes that it is parking and then checks tail so one of the
+        // two is guaranteed to see the other.
+        tail.set(t + 1);
+        wakeConsumer();
+        return true;
+    }
+
+    /**
+     * Copy the frame into the next free slot if there is one, never blocking or dropping. Returns false if the
+     * buffer is full or closed.
+     */
+    boolean offerIfRoom(String message, long receivedMillis, long receivedNanos) {
+        if (closed || tail.get() - head.get() >= slots.length) {
+            return false;
+        }
+        return offer(message, receivedMillis, receivedNanos);
+    }
+
+    /**
+     * Copy the oldest queued frame into {@code into}. Returns false if the buffer is empty.
+     */
+    boolean poll(Frame into) {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return false;
+            }
+            into.copyFrom(slots[(int) h & mask]);
+            // The producer may have dropped this slot and started overwriting it while it was copied, only
+            // trust the copy if head is still where it was.
+            if (head.compareAndSet(h, h + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copy the oldest queued frame into {@code into} without removing it, returns its sequence for
+     * {@link #remove} or -1 if the buffer is empty.
+     */
+    long peek(Frame into) {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return -1;
+        }
+        into.copyFrom(slots[(int) h & mask]);
+        return h;
+    }
+
+    /**
+     * Remove the frame {@link #peek} returned {@code sequence} for, unless the producer dropped it meanwhile.
+     */
+    void remove(long sequence) {
+        head.compareAndSet(sequence, sequence + 1);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop accepting frames, already queued frames can still be polled.
+     */
+    void close() {
+        closed = true;
+        wakeConsumer();
+    }
+
+    private void wakeConsumer() {
+        consumerWakeup.run();
+    }
+}
@@ -0,0 +1,230 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers writes and commits them to the underlying stream as a group once enough bytes or lines are pending,
+ * or the oldest pending byte has waited long enough. Not thread safe, owned by a single {@link LogWriter}
+ * thread.
+ */
+final class GroupCommitOutputStream extends OutputStream {
+    private final OutputStream out;
+    private byte[] buffer;
+    private final int maxLines;
+    private final long maxDelayNanos;
+    private final SocketMetrics metrics;
+    private final SegmentIndex index;
+
+    // Bytes written to out so far
+    private long committed;
+    private int count;
+    private int lines;
+    private long firstPendingNanos;
+    // Receive times of the frames in the buffer, see frameWritten()
+    private long[] pendingReceivedNanos = new long[64];
+    private int pendingFrames;
+
+    GroupCommitOutputStream(OutputStream out, int maxBytes, int maxLines, long maxDelayMs, SocketMetrics metrics) {
+        this(out, maxBytes, maxLines, maxDelayMs, metrics, null);
+    }
+
+    /**
+     * Commit times and receive to commit latencies are recorded in {@code metrics}. If {@code index} is not
+     * null line offsets are reported to it, {@code out} should be the stream {@link SegmentIndex#wrap} returned.
+     */
+    GroupCommitOutputStream(OutputStream out, int maxBytes, int maxLines, long maxDelayMs, SocketMetrics metrics,
+            SegmentIndex index) {
+        if (maxBytes < 1 || maxLines < 1 || maxDelayMs < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid group commit limits: %s bytes, %s lines, %sms", maxBytes, maxLines,
+                            maxDelayMs));
+        }
+        this.out = out;
+        this.buffer = new byte[maxBytes];
+        this.maxLines = maxLines;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.metrics = metrics;
+        this.index = index;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            commitForRoom(new byte[] { (byte) b }, 0, 1);
+        }
+        markPending();
+        buffer[count++] = (byte) b;
+        if (b == '\n') {
+            lineWritten();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (len > buffer.length - count) {
+            commitForRoom(b, off, len);
+            if (len >= buffer.length) {
+                // Bigger than the whole buffer, no point copying it
+                long start = System.nanoTime();
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    keep(b, off, len);
+                    throw e;
+                }
+                committed += len;
+                out.flush();
+                committed(start);
+                return;
+            }
+        }
+
+        markPending();
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+        for (int i = off, end = off + len; i < end; i++) {
+            if (b[i] == '\n') {
+                lines++;
+            }
+        }
+        if (lines >= maxLines || count == buffer.length) {
+            commit();
+        }
+    }
+
+    /**
+     * Where the next byte written will be in the underlying stream.
+     */
+    long position() {
+        return committed + count;
+    }
+
+    /**
+     * Note that the line just written from {@code offset} is a frame received at {@code receivedMillis} /
+     * {@code receivedNanos}. Once the line is committed the time since is recorded as the frame's receive to disk
+     * latency.
+     */
+    void frameWritten(long offset, long receivedMillis, long receivedNanos) throws IOException {
+        if (index != null) {
+            index.lineAt(receivedMillis, offset);
+        }
+        if (count == 0) {
+            // Writing it filled the buffer or it bypassed it, either way it's already committed
+            metrics.receiveToDiskNanos.record(System.nanoTime() - receivedNanos);
+            return;
+        }
+        if (pendingFrames == pendingReceivedNanos.length) {
+            pendingReceivedNanos = Arrays.copyOf(pendingReceivedNanos, pendingFrames * 2);
+        }
+        pendingReceivedNanos[pendingFrames++] = receivedNanos;
+    }
+
+    /**
+     * Commit if the oldest pending byte is older than the max delay.
+     */
+    void commitIfDue(long nowNanos) throws IOException {
+        if (count > 0 && nowNanos - firstPendingNanos >= maxDelayNanos) {
+            commit();
+        }
+    }
+
+    /**
+     * Nanos until {@link #commitIfDue} would commit, or {@link Long#MAX_VALUE} if nothing is pending.
+     */
+    long nanosUntilDue(long nowNanos) {
+        if (count == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, maxDelayNanos - (nowNanos - firstPendingNanos));
+    }
+
+    /**
+     * Write what is still pending, after a commit failed, to {@code next} instead. The failed commit may have
+     * written some of it, that part is written again.
+     */
+    void transferPendingTo(GroupCommitOutputStream next) throws IOException {
+        next.write(buffer, 0, count);
+        count = 0;
+        lines = 0;
+        pendingFrames = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void markPending() {
+        if (count == 0) {
+            firstPendingNanos = System.nanoTime();
+        }
+    }
+
+    private void lineWritten() throws IOException {
+        if (++lines >= maxLines) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit to make room for {@code len} bytes of {@code b}. If that fails they're kept with what couldn't be
+     * committed, so {@link #transferPendingTo} still writes them.
+     */
+    private void commitForRoom(byte[] b, int off, int len) throws IOException {
+        try {
+            commit();
+        } catch (IOException e) {
+            keep(b, off, len);
+            throw e;
+        }
+    }
+
+    private void keep(byte[] b, int off, int len) {
+        if (len > buffer.length - count) {
+            // The stream is done with once a commit fails, only transferPendingTo reads this
+            buffer = Arrays.copyOf(buffer, count + len);
+        }
+        markPending();
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private void commit() throws IOException {
+        if (count > 0) {
+            long start = System.nanoTime();
+            out.write(buffer, 0, count);
+            committed += count;
+            count = 0;
+            lines = 0;
+            out.flush();
+            committed(start);
+            return;
+        }
+        lines = 0;
+        out.flush();
+    }
+
+    private void committed(long startNanos) {
+        long now = System.nanoTime();
+        metrics.commitNanos.record(now - startNanos);
+        for (int i = 0; i < pendingFrames; i++) {
+            metrics.receiveToDiskNanos.record(now - pendingReceivedNanos[i]);
+        }
+        pendingFrames = 0;
+    }
+}
@@ -0,0 +1,127 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing {@code int} to {@code int} hash map with linear probing, so lookups on the write path neither
+ * box nor allocate. It only allocates when it grows, which it does at half full, and never shrinks.
+ * {@link Integer#MIN_VALUE} marks a free slot and can't be used as a key.
+ *
+ * <p>
+ * Not thread safe.
+ */
+final class IntIntMap {
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    IntIntMap(int expectedSize) {
+        allocate(Math.max(4, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1));
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    /**
+     * The value for {@code key}, or {@code missing} if it has none.
+     */
+    int get(int key, int missing) {
+        for (int slot = slot(key);; slot = (slot + 1) & mask) {
+            int current = keys[slot];
+            if (current == key) {
+                return values[slot];
+            }
+            if (current == FREE) {
+                return missing;
+            }
+        }
+    }
+
+    void put(int key, int value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Reserved key: " + key);
+        }
+        for (int slot = slot(key);; slot = (slot + 1) & mask) {
+            int current = keys[slot];
+            if (current == key) {
+                values[slot] = value;
+                return;
+            }
+            if (current == FREE) {
+                keys[slot] = key;
+                values[slot] = value;
+                if (++size > (mask + 1) / 2) {
+                    grow();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the entry for {@code key}, returning its value or {@code missing} if it had none.
+     */
+    int remove(int key, int missing) {
+        int slot = slot(key);
+        while (keys[slot] != key) {
+            if (keys[slot] == FREE) {
+                return missing;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int value = values[slot];
+        // Shift the rest of the probe run back over the hole, unless an entry would end up before its home slot,
+        // so lookups never stop early at a free slot
+        int hole = slot;
+        for (int i = (hole + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            int home = slot(keys[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = FREE;
+        size--;
+        return value;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != FREE) {
+                int slot = slot(key);
+                while (keys[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private int slot(int key) {
+        // Device ids are small and sequential, spread them so neighbours don't cluster
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
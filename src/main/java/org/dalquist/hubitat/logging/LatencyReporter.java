@@ -0,0 +1,71 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Logs hub to receive and receive to disk latency percentiles for every socket, either for the interval since
+ * the last report or since startup.
+ */
+final class LatencyReporter {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final Supplier<List<SocketMetrics>> sockets;
+    private final Map<SocketMetrics, Histogram.Snapshot[]> lastReported = new HashMap<>();
+
+    LatencyReporter(Supplier<List<SocketMetrics>> sockets) {
+        this.sockets = sockets;
+    }
+
+    /**
+     * Log latencies since the previous call, sockets without new frames are skipped.
+     */
+    synchronized void reportInterval() {
+        for (SocketMetrics metrics : sockets.get()) {
+            Histogram.Snapshot hubToReceive = metrics.hubToReceiveNanos.snapshot();
+            Histogram.Snapshot receiveToDisk = metrics.receiveToDiskNanos.snapshot();
+            Histogram.Snapshot[] last = lastReported.put(metrics,
+                    new Histogram.Snapshot[] { hubToReceive, receiveToDisk });
+            if (last != null) {
+                hubToReceive = hubToReceive.since(last[0]);
+                receiveToDisk = receiveToDisk.since(last[1]);
+            }
+            if (receiveToDisk.count() > 0) {
+                log(metrics, "interval", hubToReceive, receiveToDisk);
+            }
+        }
+    }
+
+    /**
+     * Log latencies since startup.
+     */
+    synchronized void reportTotals() {
+        for (SocketMetrics metrics : sockets.get()) {
+            log(metrics, "total", metrics.hubToReceiveNanos.snapshot(), metrics.receiveToDiskNanos.snapshot());
+        }
+    }
+
+    private static void log(SocketMetrics metrics, String period, Histogram.Snapshot hubToReceive,
+            Histogram.Snapshot receiveToDisk) {
+        logger.atInfo().log("%s/%s latency (%s): hub->receive %s; receive->disk %s", metrics.getHub(),
+                metrics.getSocket(), period, percentiles(hubToReceive), percentiles(receiveToDisk));
+    }
+
+    private static String percentiles(Histogram.Snapshot snapshot) {
+        if (snapshot.count() == 0) {
+            return "n/a";
+        }
+        return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms", snapshot.count(),
+                millis(snapshot.valueAtPercentile(50)), millis(snapshot.valueAtPercentile(90)),
+                millis(snapshot.valueAtPercentile(99)), millis(snapshot.valueAtPercentile(99.9)),
+                millis(snapshot.max()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,52 @@
+package org.dalquist.hubitat.logging;
+
+/**
+ * Percentiles of a {@link Histogram} of nanosecond timings, in microseconds. Exposed over JMX as composite data.
+ */
+public final class LatencySummary {
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p90;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    LatencySummary(Histogram.Snapshot snapshot) {
+        this.count = snapshot.count();
+        this.mean = snapshot.mean() / 1000;
+        this.p50 = snapshot.valueAtPercentile(50) / 1000.0;
+        this.p90 = snapshot.valueAtPercentile(90) / 1000.0;
+        this.p99 = snapshot.valueAtPercentile(99) / 1000.0;
+        this.p999 = snapshot.valueAtPercentile(99.9) / 1000.0;
+        this.max = snapshot.max() / 1000.0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return mean;
+    }
+
+    public double getP50Micros() {
+        return p50;
+    }
+
+    public double getP90Micros() {
+        return p90;
+    }
+
+    public double getP99Micros() {
+        return p99;
+    }
+
+    public double getP999Micros() {
+        return p999;
+    }
+
+    public double getMaxMicros() {
+        return max;
+    }
+}
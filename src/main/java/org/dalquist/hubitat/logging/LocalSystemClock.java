@@ -1,22 +1,27 @@
 package org.dalquist.hubitat.logging;
 
+import java.time.DayOfWeek;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
 
 import com.google.common.flogger.FluentLogger;
-import com.google.common.flogger.LazyArgs;
 import com.vlkan.rfos.Clock;
 
+/**
+ * Rotation clock in the local zone. The next midnight and Sunday midnight are worked out once and reused until
+ * they have passed, every rotation policy asks for them each time it reschedules.
+ */
 final class LocalSystemClock implements Clock {
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
     private static final LocalSystemClock INSTANCE = new LocalSystemClock();
 
+    private volatile Instant nextMidnight = Instant.MIN;
+    private volatile Instant nextSundayMidnight = Instant.MIN;
+
     LocalSystemClock() {
         // Do nothing.
     }
@@ -32,20 +37,26 @@ final class LocalSystemClock implements Clock {
 
     @Override
     public Instant midnight() {
-        ZonedDateTime nextMidnight = LocalDate.now().plusDays(1).atStartOfDay().atZone(ZoneId.systemDefault());
-        logger.atInfo().log("Calculated next midnight: %s",
-                LazyArgs.lazy(() -> DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(nextMidnight)));
-        return nextMidnight.toInstant();
+        Instant cached = nextMidnight;
+        if (Instant.now().isBefore(cached)) {
+            return cached;
+        }
+        ZonedDateTime midnight = LocalDate.now().plusDays(1).atStartOfDay(ZoneId.systemDefault());
+        logger.atFine().log("Calculated next midnight: %s", midnight);
+        nextMidnight = midnight.toInstant();
+        return nextMidnight;
     }
 
     @Override
     public Instant sundayMidnight() {
-        LocalDateTime startOfDay = LocalDate.now().atStartOfDay();
-        int todayIndex = startOfDay.getDayOfWeek().getValue() - 1;
-        int sundayOffset = 7 - todayIndex;
-        ZonedDateTime nextSundayMidnight = startOfDay.plusDays(sundayOffset).atZone(ZoneId.systemDefault());
-        logger.atInfo().log("Calculated next sunday midnight: %s",
-                LazyArgs.lazy(() -> DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(nextSundayMidnight)));
-        return nextSundayMidnight.toInstant();
+        Instant cached = nextSundayMidnight;
+        if (Instant.now().isBefore(cached)) {
+            return cached;
+        }
+        ZonedDateTime sundayMidnight = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY))
+                .atStartOfDay(ZoneId.systemDefault());
+        logger.atFine().log("Calculated next sunday midnight: %s", sundayMidnight);
+        nextSundayMidnight = sundayMidnight.toInstant();
+        return nextSundayMidnight;
     }
 }
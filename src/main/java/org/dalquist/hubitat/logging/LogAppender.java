@@ -0,0 +1,333 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * Reusable line buffer that {@link LogFormatter}s append into. The append methods mirror the
+ * {@link java.util.Formatter} conversions the formatters used to use, without parsing a format string, boxing
+ * or allocating. A negative width left-justifies, like the {@code -} flag.
+ *
+ * <p>
+ * Not thread safe, each {@link LogWriterPool} thread owns one.
+ */
+public final class LogAppender {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000,
+            100000000, 1000000000 };
+
+    private final StringBuilder line = new StringBuilder(256);
+    private final TimestampCache timestamps = new TimestampCache();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private char[] chars = new char[256];
+    private byte[] bytes = new byte[1024];
+    private long receivedAtMillis;
+
+    /** {@code %s} */
+    public LogAppender append(String value) {
+        line.append(value);
+        return this;
+    }
+
+    public LogAppender append(CharSequence value) {
+        line.append(value);
+        return this;
+    }
+
+    public LogAppender append(char value) {
+        line.append(value);
+        return this;
+    }
+
+    /** {@code %d} */
+    public LogAppender append(int value) {
+        line.append(value);
+        return this;
+    }
+
+    /** {@code %d} */
+    public LogAppender append(long value) {
+        line.append(value);
+        return this;
+    }
+
+    /** {@code %Ns} */
+    public LogAppender appendPadded(String value, int width) {
+        if (value == null) {
+            value = "null";
+        }
+        int padding = Math.abs(width) - value.length();
+        if (width > 0) {
+            pad(' ', padding);
+        }
+        line.append(value);
+        if (width < 0) {
+            pad(' ', padding);
+        }
+        return this;
+    }
+
+    /** {@code %NS} */
+    public LogAppender appendPaddedUpperCase(String value, int width) {
+        if (value == null) {
+            value = "null";
+        }
+        int padding = Math.abs(width) - value.length();
+        if (width > 0) {
+            pad(' ', padding);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            line.append(Character.toUpperCase(value.charAt(i)));
+        }
+        if (width < 0) {
+            pad(' ', padding);
+        }
+        return this;
+    }
+
+    /** {@code %Nd} */
+    public LogAppender appendPadded(int value, int width) {
+        int padding = Math.abs(width) - stringSize(value);
+        if (width > 0) {
+            pad(' ', padding);
+        }
+        line.append(value);
+        if (width < 0) {
+            pad(' ', padding);
+        }
+        return this;
+    }
+
+    /** {@code %0Nd} */
+    public LogAppender appendZeroPadded(int value, int width) {
+        long magnitude = value;
+        if (value < 0) {
+            line.append('-');
+            magnitude = -magnitude;
+            width--;
+        }
+        pad('0', width - stringSize(magnitude));
+        line.append(magnitude);
+        return this;
+    }
+
+    /** {@code %X} */
+    public LogAppender appendHex(int value) {
+        return appendHex(value, 0);
+    }
+
+    /** {@code %0NX} */
+    public LogAppender appendHex(int value, int width) {
+        int digits = hexSize(value);
+        pad('0', width - digits);
+        appendHexDigits(value, digits);
+        return this;
+    }
+
+    /** {@code %NX} */
+    public LogAppender appendPaddedHex(int value, int width) {
+        int digits = hexSize(value);
+        int padding = Math.abs(width) - digits;
+        if (width > 0) {
+            pad(' ', padding);
+        }
+        appendHexDigits(value, digits);
+        if (width < 0) {
+            pad(' ', padding);
+        }
+        return this;
+    }
+
+    /** {@code %N.Df} */
+    public LogAppender appendFixed(double value, int width, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || decimals >= POWERS_OF_TEN.length
+                || Math.abs(value) >= Long.MAX_VALUE / POWERS_OF_TEN[decimals]) {
+            return appendPadded(String.format("%." + decimals + "f", value), width);
+        }
+
+        double scaled = Math.abs(value) * POWERS_OF_TEN[decimals];
+        double fraction = scaled - Math.floor(scaled);
+        if (Math.abs(fraction - 0.5) < 1e-6) {
+            // Formatter rounds the shortest decimal representation half up, which can differ from rounding the
+            // binary value on ties. Those are rare enough to hand to Formatter.
+            return appendPadded(String.format("%." + decimals + "f", value), width);
+        }
+
+        long rounded = Math.round(scaled);
+        long whole = rounded / POWERS_OF_TEN[decimals];
+        long fractionDigits = rounded % POWERS_OF_TEN[decimals];
+        boolean negative = Double.compare(value, 0.0) < 0;
+        int size = (negative ? 1 : 0) + stringSize(whole) + (decimals > 0 ? decimals + 1 : 0);
+
+        int padding = Math.abs(width) - size;
+        if (width > 0) {
+            pad(' ', padding);
+        }
+        if (negative) {
+            line.append('-');
+        }
+        line.append(whole);
+        if (decimals > 0) {
+            line.append('.');
+            pad('0', decimals - stringSize(fractionDigits));
+            line.append(fractionDigits);
+        }
+        if (width < 0) {
+            pad(' ', padding);
+        }
+        return this;
+    }
+
+    /** {@code %Ns} of {@link java.time.format.DateTimeFormatter#ISO_LOCAL_DATE_TIME} */
+    public LogAppender appendTimestamp(LocalDateTime value, int width) {
+        int start = line.length();
+        timestamps.append(value, line);
+        return padFrom(start, width);
+    }
+
+    /**
+     * Like {@link #appendTimestamp} for the local time, to the millisecond, the frame being formatted was
+     * received at.
+     */
+    public LogAppender appendReceiveTimestamp(int width) {
+        int start = line.length();
+        timestamps.appendEpochMillis(receivedAtMillis, line);
+        return padFrom(start, width);
+    }
+
+    private LogAppender padFrom(int start, int width) {
+        int padding = Math.abs(width) - (line.length() - start);
+        if (width > 0) {
+            for (int i = 0; i < padding; i++) {
+                line.insert(start, ' ');
+            }
+        } else {
+            pad(' ', padding);
+        }
+        return this;
+    }
+
+    /**
+     * End the current line and start another, for formatters that write more than one line for a frame.
+     */
+    public LogAppender newLine() {
+        line.append(LINE_SEPARATOR);
+        return this;
+    }
+
+    void setReceivedAt(long receivedAtMillis) {
+        this.receivedAtMillis = receivedAtMillis;
+    }
+
+    public int length() {
+        return line.length();
+    }
+
+    public void clear() {
+        line.setLength(0);
+    }
+
+    @Override
+    public String toString() {
+        return line.toString();
+    }
+
+    /**
+     * Terminate the current line, write it to {@code out} as UTF-8 and clear the buffer.
+     */
+    void writeLineTo(OutputStream out) throws IOException {
+        line.append(LINE_SEPARATOR);
+        int length = line.length();
+        ensureChars(length);
+        line.getChars(0, length, chars, 0);
+        line.setLength(0);
+        writeChars(out, length);
+    }
+
+    /**
+     * Write what was appended from {@code from} on to {@code out} like {@link #writeLineTo}, but leave it in the
+     * buffer.
+     */
+    void copyLineTo(OutputStream out, int from) throws IOException {
+        int end = line.length() - from;
+        int length = end + LINE_SEPARATOR.length();
+        ensureChars(length);
+        line.getChars(from, line.length(), chars, 0);
+        LINE_SEPARATOR.getChars(0, LINE_SEPARATOR.length(), chars, end);
+        writeChars(out, length);
+    }
+
+    private void ensureChars(int length) {
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+    }
+
+    private void writeChars(OutputStream out, int length) throws IOException {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80) {
+                encode(out, length);
+                return;
+            }
+            bytes[i] = (byte) c;
+        }
+        out.write(bytes, 0, length);
+    }
+
+    private void encode(OutputStream out, int length) throws IOException {
+        // UTF-8 never needs more than three bytes per UTF-16 char
+        if (bytes.length < length * 3) {
+            bytes = new byte[length * 3];
+        }
+        CharBuffer in = CharBuffer.wrap(chars, 0, length);
+        ByteBuffer encoded = ByteBuffer.wrap(bytes);
+        encoder.reset();
+        CoderResult result = encoder.encode(in, encoded, true);
+        if (!result.isError()) {
+            result = encoder.flush(encoded);
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        out.write(bytes, 0, encoded.position());
+    }
+
+    private void appendHexDigits(int value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            line.append(HEX_DIGITS[(value >>> shift) & 0xF]);
+        }
+    }
+
+    private void pad(char c, int count) {
+        for (int i = 0; i < count; i++) {
+            line.append(c);
+        }
+    }
+
+    private static int hexSize(int value) {
+        return value == 0 ? 1 : (35 - Integer.numberOfLeadingZeros(value)) / 4;
+    }
+
+    private static int stringSize(long value) {
+        int size = value < 0 ? 2 : 1;
+        long magnitude = Math.abs(value);
+        while (magnitude >= 10) {
+            magnitude /= 10;
+            size++;
+        }
+        return size;
+    }
+}
@@ -1,10 +1,8 @@
 package org.dalquist.hubitat.logging;
 
 public interface LogFormatter<T> {
-    @FunctionalInterface
-    public interface Logger {
-        void log(String format, Object... args);
-    }
-
-    void format(T msg, Logger logger);
+    /**
+     * Append a single log line for {@code msg}, without the line separator.
+     */
+    void format(T msg, LogAppender out);
 }
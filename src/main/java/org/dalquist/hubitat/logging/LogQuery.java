@@ -0,0 +1,497 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.google.devtools.common.options.OptionsParser;
+
+/**
+ * Prints the lines of one socket's logs whose timestamp falls in a range, reading only the part of each segment
+ * the {@link SegmentIndex} sidecar says can match. Segments without an index are scanned whole. Compressed segments
+ * are decompressed from the {@link SegmentCompressor} block the range starts in.
+ *
+ * <pre>
+ * java -cp hubitat-logging.jar org.dalquist.hubitat.logging.LogQuery -s zwaveLogsocket \
+ *     --from 2021-05-29T02:10 --to 2021-05-29T02:15
+ * </pre>
+ *
+ * <p>
+ * Lines are matched on their leading timestamp, the hub's time for most sockets, or {@code receivedAt} for raw
+ * NDJSON logs. The index is keyed on receive time, so the indexed range is widened by {@code --slack_ms} to
+ * cover the hub's clock trailing ours. Lines without a timestamp, the rest of a multi-line message, go with the
+ * line before them.
+ */
+public final class LogQuery {
+    // Lines are scanned through mappings of at most this much of a segment at a time
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final byte[] RAW_PREFIX = "{\"receivedAt\":".getBytes(StandardCharsets.US_ASCII);
+
+    private final long fromMillis;
+    private final long toMillis;
+    private final long fromKey;
+    private final long toKey;
+    private final long slackMillis;
+    private final FileChannel out;
+
+    LogQuery(LocalDateTime from, LocalDateTime to, long slackMillis, FileChannel out) {
+        ZoneId zone = ZoneId.systemDefault();
+        this.fromMillis = from == null ? Long.MIN_VALUE : from.atZone(zone).toInstant().toEpochMilli();
+        this.toMillis = to == null ? Long.MAX_VALUE : to.atZone(zone).toInstant().toEpochMilli();
+        this.fromKey = from == null ? Long.MIN_VALUE
+                : timestampKey(from.getYear(), from.getMonthValue(), from.getDayOfMonth(), from.getHour(),
+                        from.getMinute(), from.getSecond(), from.getNano() / 1_000_000);
+        this.toKey = to == null ? Long.MAX_VALUE
+                : timestampKey(to.getYear(), to.getMonthValue(), to.getDayOfMonth(), to.getHour(), to.getMinute(),
+                        to.getSecond(), to.getNano() / 1_000_000);
+        this.slackMillis = slackMillis;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptionsParser parser = OptionsParser.newOptionsParser(LogQueryOptions.class);
+        parser.parseAndExitUponError(args);
+        LogQueryOptions options = parser.getOptions(LogQueryOptions.class);
+
+        LocalDateTime from = options.from.isEmpty() ? null : LocalDateTime.parse(options.from);
+        LocalDateTime to = options.to.isEmpty() ? null : LocalDateTime.parse(options.to);
+        try (FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel()) {
+            LogQuery query = new LogQuery(from, to, options.slackMs, stdout);
+            for (File segment : segments(new File(options.logDir), options.socket)) {
+                query.query(segment);
+            }
+        }
+    }
+
+    /**
+     * The socket's segments, oldest first, with the segment currently being written last.
+     */
+    static List<File> segments(File logDir, String socket) {
+        File[] files = logDir.listFiles((dir, name) -> isSegment(dir, name, socket));
+        if (files == null) {
+            return List.of();
+        }
+        List<File> segments = new ArrayList<>(Arrays.asList(files));
+        segments.sort(Comparator.comparing((File file) -> !file.getName().startsWith(socket + "-"))
+                .thenComparingLong(LogQuery::firstIndexedMillis).thenComparingLong(File::lastModified)
+                .thenComparing(File::getName));
+        return segments;
+    }
+
+    private static boolean isSegment(File dir, String name, String socket) {
+        if (name.endsWith(SegmentCompressor.SUFFIX)) {
+            // Still being compressed if the original is there, read that instead
+            String original = name.substring(0, name.length() - SegmentCompressor.SUFFIX.length());
+            return isSegment(dir, original, socket) && !new File(dir, original).exists();
+        }
+        if (!name.endsWith(".log") && !name.endsWith(".ndjson")) {
+            return false;
+        }
+        String base = name.substring(0, name.lastIndexOf('.'));
+        return base.equals(socket) || base.startsWith(socket + "-");
+    }
+
+    private static long firstIndexedMillis(File segment) {
+        try (FileChannel channel = FileChannel.open(SegmentIndex.indexFile(uncompressed(segment)).toPath())) {
+            ByteBuffer first = ByteBuffer.allocate(SegmentIndex.RECORD_BYTES);
+            channel.read(first, SegmentIndex.MAGIC.length);
+            return first.hasRemaining() ? Long.MAX_VALUE : first.getLong(0);
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The segment a compressed segment was made from, its index is still named after it.
+     */
+    private static File uncompressed(File segment) {
+        String path = segment.getPath();
+        return isCompressed(segment) ? new File(path.substring(0, path.length() - SegmentCompressor.SUFFIX.length()))
+                : segment;
+    }
+
+    private static boolean isCompressed(File segment) {
+        return segment.getName().endsWith(SegmentCompressor.SUFFIX);
+    }
+
+    /**
+     * Copy the matching lines of one segment to the output.
+     */
+    void query(File segment) throws IOException {
+        if (isCompressed(segment)) {
+            queryCompressed(segment);
+            return;
+        }
+        try (FileChannel log = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            long[] range = indexedRange(segment, SegmentFile.contentLength(log));
+            if (range != null) {
+                scan(log, range[0], range[1]);
+            }
+        }
+    }
+
+    /**
+     * Decompress only the blocks that hold the indexed range, starting from the block it begins in. Without a
+     * block map the segment is decompressed from the start.
+     */
+    private void queryCompressed(File segment) throws IOException {
+        try (FileChannel compressed = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            if (compressed.size() == 0) {
+                return;
+            }
+            long blockStart = 0;
+            long blockOffset = 0;
+            long length = Long.MAX_VALUE;
+            MappedByteBuffer blocks = mapRecords(SegmentCompressor.blocksFile(segment), SegmentCompressor.BLOCKS_MAGIC);
+            long blockCount = blocks == null ? 0 : recordCount(blocks);
+            if (blockCount > 0) {
+                // The last record is the end of the file
+                length = recordKey(blocks, blockCount - 1);
+            }
+
+            long[] range = indexedRange(segment, length);
+            if (range == null) {
+                return;
+            }
+            if (blockCount > 0) {
+                long block = Math.max(0, firstAfter(blocks, blockCount, range[0]) - 1);
+                blockStart = recordKey(blocks, block);
+                blockOffset = recordValue(blocks, block);
+            }
+
+            compressed.position(blockOffset);
+            // Each block is a complete gzip member, GZIPInputStream carries on through the ones after it
+            InputStream in = new GZIPInputStream(
+                    new BufferedInputStream(Channels.newInputStream(compressed), 1 << 16), 1 << 16);
+            long skip = range[0] - blockStart;
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    return;
+                }
+                skip -= skipped;
+            }
+            scan(in, range[0], range[1]);
+        }
+    }
+
+    /**
+     * The byte range of the segment that can hold matching lines, null if none can, or the whole segment if it
+     * has no usable index.
+     */
+    private long[] indexedRange(File segment, long length) throws IOException {
+        MappedByteBuffer index = mapRecords(SegmentIndex.indexFile(uncompressed(segment)), SegmentIndex.MAGIC);
+        long records = index == null ? 0 : recordCount(index);
+        if (records == 0) {
+            return new long[] { 0, length };
+        }
+
+        long low = fromMillis == Long.MIN_VALUE ? Long.MIN_VALUE : fromMillis - slackMillis;
+        long high = toMillis == Long.MAX_VALUE ? Long.MAX_VALUE : toMillis + slackMillis;
+        // Lines after the last entry were received within an index interval of it, the slack covers that too
+        if (low != Long.MIN_VALUE && recordKey(index, records - 1) < low - slackMillis) {
+            return null;
+        }
+
+        // Last entry at or before the start of the range, and first entry after its end
+        long first = firstAfter(index, records, low) - 1;
+        long last = firstAfter(index, records, high);
+        long start = first < 0 ? 0 : recordValue(index, first);
+        long end = last >= records ? length : recordValue(index, last);
+        if (start >= end) {
+            return null;
+        }
+        return new long[] { start, Math.min(end, length) };
+    }
+
+    /**
+     * Map a sidecar of big-endian {@code (long key, long value)} records following {@code magic}, null if it is
+     * missing or isn't one.
+     */
+    private static MappedByteBuffer mapRecords(File file, byte[] magic) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long records = (channel.size() - magic.length) / SegmentIndex.RECORD_BYTES;
+            if (records <= 0) {
+                return null;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    magic.length + records * SegmentIndex.RECORD_BYTES);
+            for (int i = 0; i < magic.length; i++) {
+                if (map.get(i) != magic[i]) {
+                    return null;
+                }
+            }
+            return map;
+        }
+    }
+
+    private static long recordCount(MappedByteBuffer map) {
+        return (map.limit() - SegmentIndex.MAGIC.length) / SegmentIndex.RECORD_BYTES;
+    }
+
+    /**
+     * Index of the first record with a key after {@code key}, {@code records} if there is none. Index keys are
+     * receive times that only go backwards if our clock does, near enough sorted for a binary search.
+     */
+    private static long firstAfter(MappedByteBuffer map, long records, long key) {
+        long low = 0;
+        long high = records;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (recordKey(map, mid) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long recordKey(MappedByteBuffer map, long record) {
+        return map.getLong((int) (SegmentIndex.MAGIC.length + record * SegmentIndex.RECORD_BYTES));
+    }
+
+    private static long recordValue(MappedByteBuffer map, long record) {
+        return map.getLong((int) (SegmentIndex.MAGIC.length + record * SegmentIndex.RECORD_BYTES + 8));
+    }
+
+    /**
+     * Scan the lines starting in {@code [start, end)} and transfer each run of matching lines to the output in
+     * one go. {@code start} must be the start of a line.
+     */
+    private void scan(FileChannel log, long start, long end) throws IOException {
+        long length = log.size();
+        long runStart = -1;
+        boolean matching = false;
+        long windowStart = start;
+        while (windowStart < end) {
+            MappedByteBuffer window = log.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                    Math.min(MAP_WINDOW, length - windowStart));
+            int limit = window.limit();
+            int lineStart = 0;
+            while (windowStart + lineStart < end) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && window.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd == limit && windowStart + limit < length) {
+                    // Line continues past the window, map again from its start
+                    if (lineStart == 0) {
+                        throw new IOException("Line longer than " + MAP_WINDOW + " bytes at " + windowStart);
+                    }
+                    break;
+                }
+
+                int match = matches(window, lineStart, lineEnd);
+                if (match != 0) {
+                    matching = match > 0;
+                }
+                long absoluteStart = windowStart + lineStart;
+                if (matching && runStart < 0) {
+                    runStart = absoluteStart;
+                } else if (!matching && runStart >= 0) {
+                    transfer(log, runStart, absoluteStart);
+                    runStart = -1;
+                }
+                lineStart = Math.min(lineEnd + 1, limit);
+                if (lineEnd == limit) {
+                    break;
+                }
+            }
+            windowStart += lineStart;
+            if (lineStart == 0) {
+                break;
+            }
+        }
+        if (runStart >= 0) {
+            transfer(log, runStart, Math.min(windowStart, length));
+        }
+    }
+
+    private void transfer(FileChannel log, long from, long to) throws IOException {
+        while (from < to) {
+            from += log.transferTo(from, to - from, out);
+        }
+    }
+
+    /**
+     * Like {@link #scan(FileChannel, long, long)} for a decompressed stream positioned at {@code start}.
+     */
+    private void scan(InputStream in, long start, long end) throws IOException {
+        byte[] buffer = new byte[1 << 20];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        int filled = 0;
+        int lineStart = 0;
+        int runStart = -1;
+        boolean matching = false;
+        boolean eof = false;
+        long position = start;
+        while (position < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < filled && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == filled && !eof) {
+                // Write out what matched so far and move the partial line to the front before reading more
+                if (runStart >= 0) {
+                    write(buffer, runStart, lineStart);
+                    runStart = 0;
+                }
+                System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+                filled -= lineStart;
+                lineStart = 0;
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    view = ByteBuffer.wrap(buffer);
+                }
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    filled += read;
+                }
+                continue;
+            }
+            if (lineStart == filled) {
+                break;
+            }
+
+            int match = matches(view, lineStart, lineEnd);
+            if (match != 0) {
+                matching = match > 0;
+            }
+            if (matching && runStart < 0) {
+                runStart = lineStart;
+            } else if (!matching && runStart >= 0) {
+                write(buffer, runStart, lineStart);
+                runStart = -1;
+            }
+            int next = Math.min(lineEnd + 1, filled);
+            position += next - lineStart;
+            lineStart = next;
+        }
+        if (runStart >= 0) {
+            write(buffer, runStart, lineStart);
+        }
+    }
+
+    private void write(byte[] buffer, int from, int to) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, from, to - from);
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * 1 if the line's timestamp is in range, -1 if it is not and 0 if the line doesn't start with a timestamp.
+     */
+    private int matches(ByteBuffer buffer, int start, int end) {
+        if (startsWith(buffer, start, end, RAW_PREFIX)) {
+            long millis = parseLong(buffer, start + RAW_PREFIX.length, end);
+            if (millis == Long.MIN_VALUE) {
+                return 0;
+            }
+            return millis >= fromMillis && millis < toMillis ? 1 : -1;
+        }
+        long key = parseTimestamp(buffer, start, end);
+        if (key == Long.MIN_VALUE) {
+            return 0;
+        }
+        return key >= fromKey && key < toKey ? 1 : -1;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLong(ByteBuffer buffer, int start, int end) {
+        long value = 0;
+        int i = start;
+        for (; i < end && i - start < 18; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+        }
+        return i == start ? Long.MIN_VALUE : value;
+    }
+
+    /**
+     * Sortable key for a leading {@code yyyy-MM-ddTHH:mm:ss[.fraction]} as written by {@link TimestampCache}, or
+     * {@code Long.MIN_VALUE} if the line doesn't start with one.
+     */
+    private static long parseTimestamp(ByteBuffer buffer, int start, int end) {
+        if (end - start < 19 || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-'
+                || buffer.get(start + 10) != 'T' || buffer.get(start + 13) != ':' || buffer.get(start + 16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(buffer, start, 4);
+        int month = digits(buffer, start + 5, 2);
+        int day = digits(buffer, start + 8, 2);
+        int hour = digits(buffer, start + 11, 2);
+        int minute = digits(buffer, start + 14, 2);
+        int second = digits(buffer, start + 17, 2);
+        if ((year | month | day | hour | minute | second) < 0) {
+            return Long.MIN_VALUE;
+        }
+        int millis = 0;
+        int i = start + 19;
+        if (i < end && buffer.get(i) == '.') {
+            for (int scale = 100; ++i < end && scale > 0; scale /= 10) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                millis += digit * scale;
+            }
+        }
+        return timestampKey(year, month, day, hour, minute, second, millis);
+    }
+
+    private static int digits(ByteBuffer buffer, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Orders like the local date time, without the cost of building one per line.
+     */
+    private static long timestampKey(int year, int month, int day, int hour, int minute, int second, int millis) {
+        return (((((year * 13L + month) * 32 + day) * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+    }
+}
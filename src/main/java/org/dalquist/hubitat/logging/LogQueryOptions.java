@@ -0,0 +1,21 @@
+package org.dalquist.hubitat.logging;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+public final class LogQueryOptions extends OptionsBase {
+    @Option(name = "logdir", abbrev = 'd', help = "Directory the socket logs are in, the hub's sub-directory when logging several hubs.", defaultValue = "/Users/edalquist/tmp/")
+    public String logDir;
+
+    @Option(name = "socket", abbrev = 's', help = "Socket to query, e.g. zwaveLogsocket.", defaultValue = "logsocket")
+    public String socket;
+
+    @Option(name = "from", abbrev = 'f', help = "Start of the range (inclusive), local time as yyyy-MM-ddTHH:mm[:ss[.SSS]]. Empty for the start of the logs.", defaultValue = "")
+    public String from;
+
+    @Option(name = "to", abbrev = 't', help = "End of the range (exclusive), local time as yyyy-MM-ddTHH:mm[:ss[.SSS]]. Empty for the end of the logs.", defaultValue = "")
+    public String to;
+
+    @Option(name = "slack_ms", help = "How far a line's own timestamp may trail its receive time, widens the indexed range that is scanned.", defaultValue = "5000")
+    public int slackMs;
+}
@@ -0,0 +1,496 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Owns the log file for one socket. Frames are queued by the WebSocket thread and formatted and written by a
+ * {@link LogWriterPool} thread so disk stalls and file rotation never block the socket reader.
+ *
+ * <p>
+ * With a {@link SpillBuffer} frames that don't fit the queue go to the spill instead of the overflow policy, and a
+ * log that can't be written no longer ends the socket. The queue is moved to the spill, the WebSocket thread keeps
+ * spilling, and the log is reopened every {@code retryMillis}. Once it opens the spill is drained back through it.
+ */
+final class LogWriter {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final long FLUSH_WAIT_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long DROPPED_REPORT_SECONDS = 60;
+    // Frames written per turn before the pool thread moves on to its other writers
+    private static final int BATCH_SIZE = 256;
+
+    @FunctionalInterface
+    interface LogFileOpener {
+        GroupCommitOutputStream open() throws IOException;
+    }
+
+    @FunctionalInterface
+    interface CaptureOpener {
+        FrameCapture open() throws IOException;
+    }
+
+    private final String name;
+    private final FrameFormatter frameFormatter;
+    private final int queueSize;
+    private final OverflowPolicy overflowPolicy;
+    private final LogWriterPool pool;
+    private final LogFileOpener logFileOpener;
+    private final CaptureOpener captureOpener;
+    // Read by the WebSocket thread, a spill that failed or was closed takes no more frames
+    private final SpillBuffer spill;
+    private final long retryNanos;
+    private final SocketMetrics metrics;
+
+    private final AtomicLong flushRequests = new AtomicLong();
+    private volatile long flushesCompleted;
+
+    private volatile FrameRingBuffer frames;
+    private volatile LogWriterPool.Worker worker;
+    private volatile CountDownLatch finished;
+    private boolean closing;
+
+    // Only touched by the pool thread once start() has published them, logFile is null while it can't be written
+    private GroupCommitOutputStream logFile;
+    // The log that failed, holding the lines it couldn't commit until they can be written to the next one
+    private GroupCommitOutputStream failedLogFile;
+    private long reopenAtNanos;
+    private FrameCapture capture;
+    private Runnable onError;
+
+    /**
+     * @param captureOpener opens the file every received frame is also recorded to, null to not record them
+     * @param spillOpener opens the spill for frames the writer can't take yet, null to apply the overflow policy.
+     *            It is opened straight away, so frames left in it are there to drain once the writer starts.
+     * @param retryMillis how often a log that can't be written is reopened, with a spill
+     */
+    LogWriter(String name, FrameFormatter frameFormatter, int queueSize, OverflowPolicy overflowPolicy,
+            LogWriterPool pool, LogFileOpener logFileOpener, CaptureOpener captureOpener,
+            SpillBuffer.Opener spillOpener, long retryMillis, SocketMetrics metrics) throws IOException {
+        this.name = name;
+        this.frameFormatter = frameFormatter;
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+        this.pool = pool;
+        this.logFileOpener = logFileOpener;
+        this.captureOpener = captureOpener;
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMillis);
+        this.metrics = metrics;
+        this.spill = spillOpener == null ? null : spillOpener.open();
+    }
+
+    /**
+     * Open the log file and pin the writer to a pool thread. {@code onError} is called from the pool thread
+     * if a frame cannot be handled, and must not block it, other writers share the thread.
+     */
+    synchronized void start(Runnable onError) throws IOException {
+        if (worker != null) {
+            throw new IllegalStateException("Writer for " + name + " is already started");
+        }
+
+        try {
+            this.logFile = logFileOpener.open();
+            this.capture = captureOpener == null ? null : captureOpener.open();
+        } catch (IOException | RuntimeException e) {
+            if (logFile != null) {
+                logFile.close();
+            }
+            if (spill != null) {
+                spill.close();
+            }
+            throw e;
+        }
+        this.onError = onError;
+        this.finished = new CountDownLatch(1);
+        FrameRingBuffer frames = new FrameRingBuffer(queueSize, overflowPolicy);
+        // The volatile write of frames publishes the fields above to the pool thread
+        this.frames = frames;
+        LogWriterPool.Worker worker = pool.assign(this);
+        frames.setConsumerWakeup(worker::wake);
+        this.worker = worker;
+    }
+
+    /**
+     * Queue a frame for writing, returns false if it was dropped. {@code receivedMillis} is the
+     * {@link System#currentTimeMillis()} the frame arrived at and {@code receivedNanos} the {@link System#nanoTime()}.
+     */
+    boolean offer(String message, long receivedMillis, long receivedNanos) {
+        FrameRingBuffer frames = this.frames;
+        if (spill != null && frames != null && !frames.isClosed()) {
+            if (spill.offer(frames, message, receivedMillis, receivedNanos)) {
+                // Queued frames wake the writer themselves, spilled ones have to
+                LogWriterPool.Worker worker = this.worker;
+                if (worker != null && spill.isSpilling()) {
+                    worker.wake();
+                }
+                return true;
+            }
+            // Full, failing or closed, fall back on the overflow policy
+        }
+        if (frames == null || !frames.offer(message, receivedMillis, receivedNanos)) {
+            logger.atWarning().atMostEvery((int) DROPPED_REPORT_SECONDS, TimeUnit.SECONDS).log(
+                    "Dropped frame(s) for %s, %s dropped so far", name, frames == null ? "n/a" : frames.dropped());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Commit everything queued so far to the log file, waiting up to {@code timeout} for the pool thread to
+     * get to it. Returns false if the flush did not complete in time or the writer is not running.
+     */
+    boolean flush(long timeout, TimeUnit unit) {
+        LogWriterPool.Worker worker = this.worker;
+        if (worker == null || worker.isCurrentThread()) {
+            return false;
+        }
+
+        long request = flushRequests.incrementAndGet();
+        worker.wake();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (flushesCompleted < request) {
+            if (finished.getCount() == 0 || System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, FLUSH_WAIT_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting frames, write everything already queued and close the log file. Waits for the pool
+     * thread unless called from it.
+     */
+    void close() {
+        LogWriterPool.Worker worker;
+        synchronized (this) {
+            worker = this.worker;
+            if (worker == null || closing) {
+                return;
+            }
+            closing = true;
+            frames.close();
+        }
+
+        if (worker.isCurrentThread()) {
+            return;
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.atWarning().log("Interrupted waiting for %s to finish writing", name);
+        }
+    }
+
+    int queueDepth() {
+        FrameRingBuffer frames = this.frames;
+        return frames == null ? 0 : frames.size();
+    }
+
+    long spillBacklog() {
+        return spill == null ? 0 : spill.backlog();
+    }
+
+    long dropped() {
+        FrameRingBuffer frames = this.frames;
+        return frames == null ? 0 : frames.dropped();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * True if {@link #service} has something to do without waiting for a commit deadline.
+     */
+    boolean hasPendingWork() {
+        if (finished.getCount() == 0) {
+            return false;
+        }
+        if (logFile == null) {
+            // Nothing to do but move new frames to the spill until it is time to reopen, they wake the thread
+            return frames.isClosed();
+        }
+        return !frames.isEmpty() || frames.isClosed() || flushRequests.get() != flushesCompleted
+                || spill != null && spill.isSpilling();
+    }
+
+    long nanosUntilDue(long nowNanos) {
+        if (finished.getCount() == 0) {
+            return Long.MAX_VALUE;
+        }
+        return logFile == null ? Math.max(0, reopenAtNanos - nowNanos) : logFile.nanosUntilDue(nowNanos);
+    }
+
+    /**
+     * Called from the pool thread with its shared buffers. Writes up to a batch of frames, then handles any
+     * flush, commit or close that is due. Returns true if anything was done.
+     */
+    boolean service(Frame frame, LogAppender line) {
+        if (finished.getCount() == 0) {
+            return false;
+        }
+
+        try {
+            if (logFile == null && !reopen(frame)) {
+                return frames.isClosed();
+            }
+
+            int written = 0;
+            while (written < BATCH_SIZE && frames.poll(frame)) {
+                write(frame, line);
+                written++;
+            }
+            if (written > 0) {
+                return true;
+            }
+            // Spilled frames came after everything queued
+            if (spill != null && spill.isSpilling() && drainSpill(frame, line)) {
+                return true;
+            }
+
+            if (frames.isClosed()) {
+                // Closed flag is set before the final wake up, one last poll picks up any straggler.
+                if (frames.poll(frame)) {
+                    write(frame, line);
+                    return true;
+                }
+                writePending(line, true);
+                finish();
+                return true;
+            }
+
+            // Queue is drained, commit whatever is due before going idle
+            writePending(line, false);
+            long flushRequest = flushRequests.get();
+            if (flushRequest != flushesCompleted) {
+                logFile.flush();
+                flushCapture(true);
+                frameFormatter.flush(System.currentTimeMillis(), true);
+                flushesCompleted = flushRequest;
+                return true;
+            }
+            logFile.commitIfDue(System.nanoTime());
+            flushCapture(false);
+            frameFormatter.flush(System.currentTimeMillis(), false);
+            return false;
+        } catch (IOException e) {
+            if (spill != null && spill.isOpen()) {
+                suspend(e, frame);
+                return true;
+            }
+            logger.atSevere().withCause(e).log("Failed to write log file for %s", name);
+            frames.close();
+            finish();
+            onError.run();
+            return true;
+        }
+    }
+
+    /**
+     * Write a batch of spilled frames and commit them before the spill records them as drained.
+     */
+    private boolean drainSpill(Frame frame, LogAppender line) throws IOException {
+        int written = 0;
+        while (written < BATCH_SIZE && pollSpill(frame)) {
+            write(frame, line);
+            written++;
+        }
+        if (written > 0) {
+            logFile.flush();
+        }
+        if (spill.isOpen()) {
+            try {
+                spill.drained();
+            } catch (IOException e) {
+                spillFailed(e);
+            }
+        }
+        return written > 0;
+    }
+
+    private boolean pollSpill(Frame frame) {
+        try {
+            return spill.poll(frame);
+        } catch (IOException e) {
+            spillFailed(e);
+            return false;
+        }
+    }
+
+    /**
+     * Give up on a spill that can't be read, the frames still in it are lost. Closing it is what tells the
+     * WebSocket thread to stop spilling.
+     */
+    private void spillFailed(IOException e) {
+        logger.atSevere().withCause(e).log("Failed to read spill %s, no longer spilling %s", spill, name);
+        closeSpill();
+    }
+
+    /**
+     * Stop writing the log after it failed, spill the queue and reopen it later.
+     */
+    private void suspend(IOException e, Frame frame) {
+        logger.atSevere().withCause(e).log("Failed to write log file for %s, spilling to %s until it can be reopened",
+                name, spill);
+        try {
+            logFile.close();
+        } catch (IOException closeFailure) {
+            logger.atWarning().withCause(closeFailure).log("Failed to close log file for %s", name);
+        }
+        failedLogFile = logFile;
+        logFile = null;
+        reopenAtNanos = System.nanoTime() + retryNanos;
+        spill.takeQueuedAhead(frames, frame);
+    }
+
+    /**
+     * Try to reopen the log if it is time to, or straight away when closing. Until it opens queued frames are
+     * moved to the spill, and closing leaves them there for the next start.
+     */
+    private boolean reopen(Frame frame) {
+        boolean closing = frames.isClosed();
+        spill.takeQueued(frames, frame);
+        if (!closing && System.nanoTime() - reopenAtNanos < 0) {
+            return false;
+        }
+        GroupCommitOutputStream reopened = null;
+        try {
+            reopened = logFileOpener.open();
+            failedLogFile.transferPendingTo(reopened);
+            failedLogFile = null;
+            logFile = reopened;
+            logger.atInfo().log("Reopened log file for %s, writing what was spilled to %s", name, spill);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.atWarning().withCause(e).atMostEvery(1, TimeUnit.MINUTES).log("Failed to reopen log file for %s",
+                    name);
+            reopenAtNanos = System.nanoTime() + retryNanos;
+            if (reopened != null) {
+                try {
+                    reopened.close();
+                } catch (IOException closeFailure) {
+                    logger.atWarning().withCause(closeFailure).log("Failed to close log file for %s", name);
+                }
+            }
+        }
+        if (closing) {
+            logger.atSevere().log("Closing %s with its log still failing, frames are left in %s, lines not yet "
+                    + "committed are lost", name, spill);
+            finish();
+        }
+        return false;
+    }
+
+    private void write(Frame frame, LogAppender line) throws IOException {
+        if (capture != null) {
+            capture(frame);
+        }
+        try {
+            frameFormatter.format(frame, line);
+        } catch (IOException | RuntimeException e) {
+            line.clear();
+            logger.atSevere().withCause(e).log("Error handling message for %s\n%s", name, frame.message);
+            onError.run();
+            return;
+        }
+        if (line.length() == 0) {
+            // Left out, e.g. a suppressed repeat
+            return;
+        }
+        long start = System.nanoTime();
+        long offset = logFile.position();
+        line.writeLineTo(logFile);
+        logFile.frameWritten(offset, frame.receivedMillis, frame.receivedNanos);
+        metrics.writeNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Write the lines the formatter held back that are due, they aren't frames so they skip the latency and index
+     * bookkeeping.
+     */
+    private void writePending(LogAppender line, boolean closing) throws IOException {
+        frameFormatter.appendPending(System.currentTimeMillis(), closing, line);
+        if (line.length() > 0) {
+            line.writeLineTo(logFile);
+        }
+    }
+
+    /**
+     * Record the frame as received, before anything can go wrong decoding it. A capture that can't be written
+     * is given up on, the log carries on without it.
+     */
+    private void capture(Frame frame) {
+        try {
+            capture.append(frame);
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to write frame capture %s, no longer capturing %s", capture,
+                    name);
+            closeCapture();
+        }
+    }
+
+    private void flushCapture(boolean force) {
+        if (capture == null) {
+            return;
+        }
+        try {
+            if (force) {
+                capture.flush();
+            } else {
+                capture.flushIfDue(System.nanoTime());
+            }
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to write frame capture %s, no longer capturing %s", capture,
+                    name);
+            closeCapture();
+        }
+    }
+
+    private void closeCapture() {
+        try {
+            capture.close();
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to close frame capture %s", capture);
+        }
+        capture = null;
+    }
+
+    private void closeSpill() {
+        try {
+            spill.close();
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to close spill %s", spill);
+        }
+    }
+
+    private void finish() {
+        logger.atInfo().log("Saving log file for %s", name);
+        if (logFile != null) {
+            try {
+                logFile.close();
+            } catch (IOException e) {
+                logger.atSevere().withCause(e).log("Failed to close log file for %s", name);
+            }
+        }
+        if (capture != null) {
+            closeCapture();
+        }
+        if (spill != null) {
+            closeSpill();
+        }
+        frameFormatter.close();
+        if (frames.dropped() > 0) {
+            logger.atWarning().log("Dropped %s frame(s) for %s", frames.dropped(), name);
+        }
+        pool.release(this);
+        finished.countDown();
+    }
+}
@@ -0,0 +1,158 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Fixed set of writer threads shared by every {@link LogWriter}. Each writer is pinned to one thread for its
+ * whole life, which keeps its {@link FrameRingBuffer} single-consumer, and a thread services all of its writers
+ * round robin. The thread count does not grow with the number of hubs or sockets.
+ */
+final class LogWriterPool implements AutoCloseable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Worker[] workers;
+
+    LogWriterPool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one writer thread: " + threads);
+        }
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker("log-writer-" + i);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Pin {@code writer} to the least loaded thread.
+     */
+    synchronized Worker assign(LogWriter writer) {
+        Worker leastLoaded = workers[0];
+        for (Worker worker : workers) {
+            if (worker.writers.length < leastLoaded.writers.length) {
+                leastLoaded = worker;
+            }
+        }
+        leastLoaded.add(writer);
+        return leastLoaded;
+    }
+
+    /**
+     * Unpin {@code writer}, called from its thread once it has finished writing.
+     */
+    synchronized void release(LogWriter writer) {
+        for (Worker worker : workers) {
+            worker.remove(writer);
+        }
+    }
+
+    /**
+     * Stop the threads once their writers are closed.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        for (Worker worker : workers) {
+            worker.shutdown = true;
+            LockSupport.unpark(worker.thread);
+        }
+        for (Worker worker : workers) {
+            worker.thread.join();
+        }
+    }
+
+    static final class Worker implements Runnable {
+        private final Thread thread;
+        // Copy on write so the run loop can iterate without allocating
+        private volatile LogWriter[] writers = new LogWriter[0];
+        private volatile boolean parked;
+        private volatile boolean shutdown;
+
+        private Worker(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        boolean isCurrentThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Wake the thread if it is parked waiting for work.
+         */
+        void wake() {
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private synchronized void add(LogWriter writer) {
+            LogWriter[] updated = Arrays.copyOf(writers, writers.length + 1);
+            updated[writers.length] = writer;
+            writers = updated;
+            wake();
+        }
+
+        private synchronized void remove(LogWriter writer) {
+            writers = Arrays.stream(writers).filter(w -> w != writer).toArray(LogWriter[]::new);
+        }
+
+        @Override
+        public void run() {
+            // Formatting buffers are shared by every writer on this thread
+            Frame frame = new Frame();
+            LogAppender line = new LogAppender();
+            try {
+                while (true) {
+                    LogWriter[] current = writers;
+                    if (shutdown && current.length == 0) {
+                        return;
+                    }
+
+                    boolean didWork = false;
+                    for (LogWriter writer : current) {
+                        didWork |= writer.service(frame, line);
+                    }
+                    if (didWork) {
+                        continue;
+                    }
+
+                    long now = System.nanoTime();
+                    long timeout = IDLE_PARK_NANOS;
+                    for (LogWriter writer : current) {
+                        timeout = Math.min(timeout, writer.nanosUntilDue(now));
+                    }
+
+                    // Publish parked before the final check so a producer either sees it or we see its frame
+                    parked = true;
+                    try {
+                        if (!shutdown && !hasPendingWork(writers)) {
+                            LockSupport.parkNanos(this, timeout);
+                        }
+                    } finally {
+                        parked = false;
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                logger.atSevere().withCause(e).log("Writer thread %s died", thread.getName());
+                throw e;
+            }
+        }
+
+        private static boolean hasPendingWork(LogWriter[] writers) {
+            for (LogWriter writer : writers) {
+                if (writer.hasPendingWork()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SegmentFile} written through a memory mapped region of the file, a commit is a copy into the page cache
+ * instead of a write call. The file is mapped a region at a time from where the content ends, and the next region
+ * is mapped once one is full. Closing trims the file to what was written.
+ *
+ * <p>
+ * Each region is zero-filled with ordinary writes before it is mapped, so running out of disk space is an
+ * {@link IOException} from {@link #write} rather than a SIGBUS on a store into a sparse page, which the JVM turns
+ * into an {@link InternalError}. One that still happens, e.g. an I/O error paging in, is rethrown as an
+ * {@link IOException} too. Until the segment is closed the file is longer than its content, so readers such as
+ * {@code tail} or {@code grep} see the zero-filled tail of the current region; {@link LogQuery} and
+ * {@link SegmentIndex} go by the content length.
+ *
+ * <p>
+ * Dirty pages go to disk when the OS gets to them, or every {@code forceMillis} when a commit comes along. Regions
+ * are never unmapped explicitly, Java has no supported way to, they go when the buffer is collected.
+ *
+ * <p>
+ * Not thread safe, {@link SegmentedOutputStream} serializes access.
+ */
+final class MappedSegmentFile extends SegmentFile {
+    private final File file;
+    private final FileChannel channel;
+    private final long regionBytes;
+    private final long forceNanos;
+    private long length;
+    private MappedByteBuffer region;
+    private long lastForceNanos;
+
+    private MappedSegmentFile(File file, FileChannel channel, long length, long regionBytes, long forceMillis) {
+        this.file = file;
+        this.channel = channel;
+        this.length = length;
+        this.regionBytes = regionBytes;
+        this.forceNanos = TimeUnit.MILLISECONDS.toNanos(forceMillis);
+        this.lastForceNanos = System.nanoTime();
+    }
+
+    /**
+     * @param regionBytes how much of the file is mapped at a time, the file grows by this much at a time
+     * @param forceMillis how often committed lines are forced to disk, 0 to leave it to the OS
+     */
+    static MappedSegmentFile open(File file, boolean append, long preallocateBytes, long regionBytes,
+            long forceMillis) throws IOException {
+        if (regionBytes < 1 || regionBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid mapped region size: " + regionBytes);
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (!append) {
+                channel.truncate(0);
+            }
+            // Left mapped or pre-allocated past its content if the process died before the segment was closed
+            long length = SegmentFile.contentLength(channel);
+            SegmentFile.zeroFill(channel, channel.size(), length + preallocateBytes);
+            return new MappedSegmentFile(file, channel, length, regionBytes, forceMillis);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    long length() {
+        return length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (region == null || !region.hasRemaining()) {
+                map();
+            }
+            int n = Math.min(len, region.remaining());
+            try {
+                region.put(b, off, n);
+            } catch (InternalError e) {
+                // A fault on the mapping, keep it on the path for write errors rather than killing the thread
+                region = null;
+                throw new IOException("Failed to write to mapped " + file, e);
+            }
+            off += n;
+            len -= n;
+            length += n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (forceNanos > 0 && region != null) {
+            long now = System.nanoTime();
+            if (now - lastForceNanos >= forceNanos) {
+                region.force();
+                lastForceNanos = now;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (forceNanos > 0 && region != null) {
+                region.force();
+            }
+            region = null;
+            if (channel.size() > length) {
+                channel.truncate(length);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    private void map() throws IOException {
+        if (forceNanos > 0 && region != null) {
+            // Lines in the full region are not forced again once it is dropped
+            region.force();
+            lastForceNanos = System.nanoTime();
+        }
+        region = null;
+        SegmentFile.zeroFill(channel, Math.max(length, channel.size()), length + regionBytes);
+        region = channel.map(FileChannel.MapMode.READ_WRITE, length, regionBytes);
+    }
+}
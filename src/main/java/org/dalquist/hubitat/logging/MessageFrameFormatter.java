@@ -0,0 +1,132 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.List;
+import java.util.function.Function;
+
+import com.google.gson.stream.JsonReader;
+
+import org.dalquist.hubitat.logging.messages.MessageTypeAdapter;
+
+/**
+ * Decodes the frame into a message and hands it to a {@link LogFormatter}.
+ */
+final class MessageFrameFormatter<T> implements FrameFormatter {
+    private final MessageTypeAdapter<T> messageAdapter;
+    private final LogFormatter<T> logFormatter;
+    private final Function<T, LocalDateTime> hubTime;
+    private final SocketMetrics metrics;
+    private final SequenceTracker<T> sequences;
+    private final RepeatFilter<T> repeats;
+    private final MessageRouter<T> router;
+    private final List<MessageSink<T>> sinks;
+    private final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+    // Safe to reuse, formatters are done with a message before the next frame is decoded
+    private final T msg;
+
+    /**
+     * @param hubTime the hub's timestamp for a message, in the local zone, or null if the messages don't have
+     *            one
+     */
+    MessageFrameFormatter(MessageTypeAdapter<T> messageAdapter, LogFormatter<T> logFormatter,
+            Function<T, LocalDateTime> hubTime, SocketMetrics metrics) {
+        this(messageAdapter, logFormatter, hubTime, metrics, null, null, null, List.of());
+    }
+
+    /**
+     * @param sequences checks the sequence numbers of the decoded messages, or null not to
+     * @param repeats suppresses repeated messages, or null to log every one
+     * @param router copies the lines of some messages to other files, or null not to
+     * @param sinks also get every decoded message
+     */
+    MessageFrameFormatter(MessageTypeAdapter<T> messageAdapter, LogFormatter<T> logFormatter,
+            Function<T, LocalDateTime> hubTime, SocketMetrics metrics, SequenceTracker<T> sequences,
+            RepeatFilter<T> repeats, MessageRouter<T> router, List<MessageSink<T>> sinks) {
+        this.sequences = sequences;
+        this.repeats = repeats;
+        this.router = router;
+        this.sinks = sinks;
+        this.messageAdapter = messageAdapter;
+        this.logFormatter = logFormatter;
+        this.hubTime = hubTime;
+        this.metrics = metrics;
+        this.msg = messageAdapter.newMessage();
+    }
+
+    @Override
+    public void format(Frame frame, LogAppender out) throws IOException {
+        long start = System.nanoTime();
+        T decoded;
+        try {
+            JsonReader in = new JsonReader(new StringReader(frame.message));
+            in.setLenient(true);
+            decoded = messageAdapter.read(in, msg);
+        } catch (IOException | RuntimeException e) {
+            metrics.parseFailures.increment();
+            throw e;
+        }
+        long parsed = System.nanoTime();
+        metrics.parseNanos.record(parsed - start);
+        recordHubLatency(decoded, frame.receivedMillis);
+
+        out.setReceivedAt(frame.receivedMillis);
+        if (sequences != null) {
+            sequences.check(decoded, out);
+        }
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).accept(decoded, frame.receivedMillis);
+        }
+        if (repeats != null && repeats.suppress(decoded, frame.receivedMillis, out)) {
+            metrics.suppressedRepeats.increment();
+        } else {
+            // Only the message's own line is routed, not the markers or summaries before it
+            int from = out.length();
+            logFormatter.format(decoded, out);
+            if (router != null) {
+                router.route(decoded, out, from);
+            }
+        }
+        metrics.formatNanos.record(System.nanoTime() - parsed);
+    }
+
+    @Override
+    public void appendPending(long nowMillis, boolean closing, LogAppender out) {
+        if (repeats != null) {
+            repeats.appendExpired(nowMillis, closing, out);
+        }
+    }
+
+    @Override
+    public void flush(long nowMillis, boolean force) {
+        if (router != null) {
+            router.flush(nowMillis, force);
+        }
+        // Not forced, sinks write what they hold once it is due
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).flushIfDue(nowMillis);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (router != null) {
+            router.close();
+        }
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).close();
+        }
+    }
+
+    private void recordHubLatency(T decoded, long receivedMillis) {
+        LocalDateTime time = hubTime == null ? null : hubTime.apply(decoded);
+        if (time == null) {
+            return;
+        }
+        long hubMillis = time.toEpochSecond(zoneRules.getOffset(time)) * 1000 + time.getNano() / 1_000_000;
+        metrics.hubToReceiveNanos.record((receivedMillis - hubMillis) * 1_000_000);
+    }
+}
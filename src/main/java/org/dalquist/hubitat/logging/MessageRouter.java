@@ -0,0 +1,413 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Copies the lines of messages matching a {@code --route} rule to extra log files, one per rule or one per
+ * device and rule, on top of the socket's own log. A rule is
+ * {@code <socket>:<output>[:<field>=<value>[,<value>]...]...}, a message matches if every field has one of the
+ * values listed for it. Numbers are decimal or {@code 0x} hex, text is compared ignoring case and a value ending
+ * in {@code *} matches by prefix. {@code {id}} in the output name gives each device its own file.
+ *
+ * <p>
+ * Rules are compiled into predicates over the decoded message once, when the writer is created. Open files are
+ * kept in an LRU of at most {@code maxOpen}, the least recently written is closed to make room and appended to
+ * again when it is next needed, so a rule splitting thousands of devices doesn't run out of descriptors.
+ *
+ * <p>
+ * Not thread safe, called from the {@link LogWriterPool} thread of the socket. A file that can't be opened or
+ * written is logged and skipped, the socket's own log carries on.
+ */
+final class MessageRouter<T> {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final String DEVICE = "{id}";
+    private static final Pattern OUTPUT = Pattern.compile("[A-Za-z0-9._{}-]+");
+    private static final int NONE = -1;
+    private static final int BUFFER_BYTES = 8192;
+
+    @FunctionalInterface
+    interface OutputOpener {
+        /**
+         * Open the file for output {@code name}, appending to anything it already holds.
+         */
+        OutputStream open(String name) throws IOException;
+    }
+
+    /**
+     * The fields of a socket's messages that rules can match on.
+     */
+    static final class Fields<T> {
+        private final ToIntFunction<T> device;
+        private final IntFunction<String> deviceName;
+        private final Map<String, ToIntFunction<T>> numbers = new HashMap<>();
+        private final Map<String, Function<T, String>> texts = new HashMap<>();
+
+        /**
+         * @param device the device, or app, a message belongs to, for outputs split by {@code {id}}
+         * @param deviceName what {@code {id}} is replaced with for a device
+         */
+        Fields(ToIntFunction<T> device, IntFunction<String> deviceName) {
+            this.device = device;
+            this.deviceName = deviceName;
+        }
+
+        Fields<T> number(String name, ToIntFunction<T> field) {
+            numbers.put(name, field);
+            return this;
+        }
+
+        Fields<T> text(String name, Function<T, String> field) {
+            texts.put(name, field);
+            return this;
+        }
+    }
+
+    private static final class Rule<T> {
+        final String output;
+        final Predicate<T> matches;
+        final boolean perDevice;
+        // Device, 0 if the rule has one output, to the LRU slot of its open file
+        final IntIntMap slots = new IntIntMap(16);
+
+        Rule(String output, Predicate<T> matches) {
+            this.output = output;
+            this.matches = matches;
+            this.perDevice = output.contains(DEVICE);
+        }
+    }
+
+    private final Fields<T> fields;
+    private final List<Rule<T>> rules;
+    private final OutputOpener opener;
+    private final long flushMillis;
+    private final SocketMetrics metrics;
+
+    private final int[] slotRules;
+    private final int[] slotDevices;
+    private final OutputStream[] outputs;
+    private final String[] names;
+    private final boolean[] dirty;
+    // Most recently written first
+    private final int[] newer;
+    private final int[] older;
+    private int newest = NONE;
+    private int oldest = NONE;
+    private int used;
+    private int dirtyCount;
+    private long flushDueMillis;
+
+    /**
+     * @param rules the rules for this socket, see {@link #socket}
+     * @param flushMillis how long a routed line may wait in memory before it is written out
+     */
+    MessageRouter(List<String> rules, Fields<T> fields, int maxOpen, long flushMillis, OutputOpener opener,
+            SocketMetrics metrics) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("Invalid number of open route files: " + maxOpen);
+        }
+        this.fields = fields;
+        this.rules = new ArrayList<>(rules.size());
+        for (String rule : rules) {
+            this.rules.add(compile(rule, fields));
+        }
+        this.opener = opener;
+        this.flushMillis = flushMillis;
+        this.metrics = metrics;
+        this.slotRules = new int[maxOpen];
+        this.slotDevices = new int[maxOpen];
+        this.outputs = new OutputStream[maxOpen];
+        this.names = new String[maxOpen];
+        this.dirty = new boolean[maxOpen];
+        this.newer = new int[maxOpen];
+        this.older = new int[maxOpen];
+    }
+
+    /**
+     * The socket a {@code --route} rule is for.
+     */
+    static String socket(String rule) {
+        int end = rule.indexOf(':');
+        if (end < 1) {
+            throw new IllegalArgumentException("Route has no socket and output: " + rule);
+        }
+        return rule.substring(0, end);
+    }
+
+    private static <T> Rule<T> compile(String rule, Fields<T> fields) {
+        String[] parts = rule.split(":");
+        if (parts.length < 2 || !OUTPUT.matcher(parts[1]).matches()
+                || parts[1].replace(DEVICE, "").matches(".*[{}].*")) {
+            throw new IllegalArgumentException("Route output must be letters, digits, ._- and {id}: " + rule);
+        }
+        Predicate<T> matches = msg -> true;
+        for (int i = 2; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq < 1 || eq == parts[i].length() - 1) {
+                throw new IllegalArgumentException("Route condition is not <field>=<values>: " + parts[i]);
+            }
+            String field = parts[i].substring(0, eq);
+            String[] values = parts[i].substring(eq + 1).split(",");
+            matches = matches.and(condition(field, values, fields, rule));
+        }
+        return new Rule<>(parts[1], matches);
+    }
+
+    private static <T> Predicate<T> condition(String field, String[] values, Fields<T> fields, String rule) {
+        ToIntFunction<T> number = fields.numbers.get(field);
+        if (number != null) {
+            int[] sorted = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    sorted[i] = Integer.decode(values[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Route " + field + " is not a number: " + values[i], e);
+                }
+            }
+            Arrays.sort(sorted);
+            return msg -> Arrays.binarySearch(sorted, number.applyAsInt(msg)) >= 0;
+        }
+
+        Function<T, String> text = fields.texts.get(field);
+        if (text == null) {
+            List<String> known = new ArrayList<>(fields.numbers.keySet());
+            known.addAll(fields.texts.keySet());
+            known.sort(null);
+            throw new IllegalArgumentException(
+                    "Unknown route field " + field + " in " + rule + ", the socket has " + known);
+        }
+        List<String> exact = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        for (String value : values) {
+            if (value.endsWith("*")) {
+                prefixes.add(value.substring(0, value.length() - 1).toLowerCase(Locale.ROOT));
+            } else {
+                exact.add(value.toLowerCase(Locale.ROOT));
+            }
+        }
+        String[] exactValues = exact.toArray(new String[0]);
+        String[] prefixValues = prefixes.toArray(new String[0]);
+        return msg -> matchesText(text.apply(msg), exactValues, prefixValues);
+    }
+
+    private static boolean matchesText(String value, String[] exact, String[] prefixes) {
+        if (value == null) {
+            return false;
+        }
+        for (String candidate : exact) {
+            if (candidate.equalsIgnoreCase(value)) {
+                return true;
+            }
+        }
+        for (String prefix : prefixes) {
+            if (value.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy what was appended to {@code line} from {@code from} on, the line for {@code msg}, to the file of every
+     * rule it matches.
+     */
+    void route(T msg, LogAppender line, int from) {
+        for (int r = 0; r < rules.size(); r++) {
+            Rule<T> rule = rules.get(r);
+            if (!rule.matches.test(msg)) {
+                continue;
+            }
+            int device = rule.perDevice ? fields.device.applyAsInt(msg) : 0;
+            if (device == Integer.MIN_VALUE) {
+                // Reserved by IntIntMap, no device has it
+                continue;
+            }
+            int slot = slot(r, device);
+            if (slot == NONE) {
+                continue;
+            }
+            try {
+                line.copyLineTo(outputs[slot], from);
+            } catch (IOException e) {
+                logger.atSevere().withCause(e).log("Failed to write route %s", names[slot]);
+                release(slot);
+                continue;
+            }
+            metrics.routedLines.increment();
+            if (!dirty[slot]) {
+                dirty[slot] = true;
+                if (dirtyCount++ == 0) {
+                    flushDueMillis = System.currentTimeMillis() + flushMillis;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write out the lines held in memory, if the oldest has waited long enough or {@code force}.
+     */
+    void flush(long nowMillis, boolean force) {
+        if (dirtyCount == 0 || (!force && nowMillis < flushDueMillis)) {
+            return;
+        }
+        // Backwards, releasing a slot moves the last one in use into it
+        for (int slot = used - 1; slot >= 0; slot--) {
+            if (dirty[slot]) {
+                try {
+                    outputs[slot].flush();
+                    markClean(slot);
+                } catch (IOException e) {
+                    logger.atSevere().withCause(e).log("Failed to write route %s", names[slot]);
+                    release(slot);
+                }
+            }
+        }
+    }
+
+    void close() {
+        for (int slot = 0; slot < used; slot++) {
+            if (outputs[slot] != null) {
+                closeOutput(slot);
+            }
+        }
+        used = 0;
+        newest = NONE;
+        oldest = NONE;
+    }
+
+    /**
+     * The slot of the open file for the rule and device, opening it if need be, or {@link #NONE} if it can't be.
+     */
+    private int slot(int r, int device) {
+        Rule<T> rule = rules.get(r);
+        int slot = rule.slots.get(device, NONE);
+        if (slot != NONE) {
+            if (slot != newest) {
+                unlink(slot);
+                linkNewest(slot);
+            }
+            return slot;
+        }
+
+        String name = rule.perDevice ? rule.output.replace(DEVICE, fields.deviceName.apply(device)) : rule.output;
+        OutputStream output;
+        try {
+            output = new BufferedOutputStream(opener.open(name), BUFFER_BYTES);
+        } catch (IOException | RuntimeException e) {
+            logger.atSevere().atMostEvery(60, TimeUnit.SECONDS).withCause(e).log("Failed to open route %s", name);
+            return NONE;
+        }
+        metrics.routeFileOpens.increment();
+
+        if (used < outputs.length) {
+            slot = used++;
+        } else {
+            // Slots stay in use once they have been, the oldest one is always open
+            slot = oldest;
+            closeOutput(slot);
+            unlink(slot);
+        }
+        slotRules[slot] = r;
+        slotDevices[slot] = device;
+        outputs[slot] = output;
+        names[slot] = name;
+        rule.slots.put(device, slot);
+        linkNewest(slot);
+        return slot;
+    }
+
+    /**
+     * Give up on the file in a slot after an error, it is opened again for the next line routed to it.
+     */
+    private void release(int slot) {
+        closeOutput(slot);
+        unlink(slot);
+        // Move the last slot in use into the gap so the ones in use stay 0 to used - 1
+        int last = --used;
+        if (slot != last) {
+            int n = newer[last];
+            int o = older[last];
+            slotRules[slot] = slotRules[last];
+            slotDevices[slot] = slotDevices[last];
+            outputs[slot] = outputs[last];
+            names[slot] = names[last];
+            dirty[slot] = dirty[last];
+            rules.get(slotRules[slot]).slots.put(slotDevices[slot], slot);
+            newer[slot] = n;
+            older[slot] = o;
+            if (n == NONE) {
+                newest = slot;
+            } else {
+                older[n] = slot;
+            }
+            if (o == NONE) {
+                oldest = slot;
+            } else {
+                newer[o] = slot;
+            }
+        }
+        outputs[last] = null;
+        names[last] = null;
+        dirty[last] = false;
+    }
+
+    private void closeOutput(int slot) {
+        rules.get(slotRules[slot]).slots.remove(slotDevices[slot], NONE);
+        markClean(slot);
+        try {
+            outputs[slot].close();
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to close route %s", names[slot]);
+        }
+        outputs[slot] = null;
+    }
+
+    private void markClean(int slot) {
+        if (dirty[slot]) {
+            dirty[slot] = false;
+            dirtyCount--;
+        }
+    }
+
+    private void unlink(int slot) {
+        int n = newer[slot];
+        int o = older[slot];
+        if (n == NONE) {
+            newest = o;
+        } else {
+            older[n] = o;
+        }
+        if (o == NONE) {
+            oldest = n;
+        } else {
+            newer[o] = n;
+        }
+    }
+
+    private void linkNewest(int slot) {
+        newer[slot] = NONE;
+        older[slot] = newest;
+        if (newest == NONE) {
+            oldest = slot;
+        } else {
+            newer[newest] = slot;
+        }
+        newest = slot;
+    }
+}
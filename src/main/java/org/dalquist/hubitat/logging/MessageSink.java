@@ -0,0 +1,20 @@
+package org.dalquist.hubitat.logging;
+
+/**
+ * Something other than the log that decoded messages are handed to, e.g. {@link RadioHealth}. Called from the
+ * {@link LogWriterPool} thread of the socket, before the message is formatted, so the message is only valid for
+ * the call. Sinks write their own files and deal with their own errors, they never stop the log.
+ */
+interface MessageSink<T> {
+    void accept(T msg, long receivedMillis);
+
+    /**
+     * Write out what is due by {@code nowMillis}. Called while the writer is idle.
+     */
+    void flushIfDue(long nowMillis);
+
+    /**
+     * Write out everything held, called once the writer is done with the sink.
+     */
+    void close();
+}
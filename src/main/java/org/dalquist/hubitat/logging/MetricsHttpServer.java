@@ -0,0 +1,225 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+import com.google.common.flogger.FluentLogger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link SocketMetrics} at {@code /metrics} in the Prometheus text format. Only listens on the loopback
+ * address, scrape through a local agent or tunnel.
+ */
+final class MetricsHttpServer {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final HttpServer server;
+    private final Supplier<List<SocketMetrics>> sockets;
+
+    private MetricsHttpServer(HttpServer server, Supplier<List<SocketMetrics>> sockets) {
+        this.server = server;
+        this.sockets = sockets;
+    }
+
+    static MetricsHttpServer start(int port, Supplier<List<SocketMetrics>> sockets) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        MetricsHttpServer metricsServer = new MetricsHttpServer(server, sockets);
+        server.createContext("/metrics", metricsServer::handle);
+        server.start();
+        logger.atInfo().log("Serving metrics on http://%s/metrics", server.getAddress());
+        return metricsServer;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render(sockets.get()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static String render(List<SocketMetrics> sockets) {
+        StringBuilder out = new StringBuilder(4096);
+        value(out, sockets, "hubitat_messages_total", "counter", "Frames received.", SocketMetrics::getMessages);
+        value(out, sockets, "hubitat_received_bytes_total", "counter", "Frame bytes received.",
+                SocketMetrics::getBytes);
+        value(out, sockets, "hubitat_parse_failures_total", "counter", "Frames that could not be decoded.",
+                SocketMetrics::getParseFailures);
+        value(out, sockets, "hubitat_suppressed_repeats_total", "counter",
+                "Messages left out of the log for repeating the one before from the same device.",
+                SocketMetrics::getSuppressedRepeats);
+        value(out, sockets, "hubitat_routed_lines_total", "counter", "Lines also written to a route file.",
+                SocketMetrics::getRoutedLines);
+        value(out, sockets, "hubitat_route_file_opens_total", "counter",
+                "Times a route file was opened, including reopening ones closed to make room.",
+                SocketMetrics::getRouteFileOpens);
+        value(out, sockets, "hubitat_dropped_frames_total", "counter", "Frames dropped because the queue was full.",
+                SocketMetrics::getDropped);
+        value(out, sockets, "hubitat_spilled_frames_total", "counter",
+                "Frames spilled to disk because the queue was full or the log couldn't be written.",
+                SocketMetrics::getSpilledFrames);
+        value(out, sockets, "hubitat_spill_backlog_bytes", "gauge", "Bytes of spilled frames not yet logged.",
+                SocketMetrics::getSpillBacklogBytes);
+        value(out, sockets, "hubitat_reconnects_total", "counter", "Reconnect attempts.",
+                SocketMetrics::getReconnects);
+        value(out, sockets, "hubitat_queue_depth", "gauge", "Frames waiting for the writer.",
+                SocketMetrics::getQueueDepth);
+        value(out, sockets, "hubitat_connected", "gauge", "1 if the socket is connected.",
+                m -> m.isConnected() ? 1 : 0);
+        summary(out, sockets, "hubitat_parse_seconds", "Time to decode a frame.", m -> m.parseNanos);
+        summary(out, sockets, "hubitat_format_seconds", "Time to format a decoded frame.", m -> m.formatNanos);
+        summary(out, sockets, "hubitat_write_seconds", "Time to write a formatted line.", m -> m.writeNanos);
+        summary(out, sockets, "hubitat_commit_seconds", "Time to commit buffered lines to the log file.",
+                m -> m.commitNanos);
+        summary(out, sockets, "hubitat_hub_to_receive_seconds", "Hub message timestamp to frame receipt.",
+                m -> m.hubToReceiveNanos);
+        summary(out, sockets, "hubitat_receive_to_disk_seconds", "Frame receipt to its line being committed.",
+                m -> m.receiveToDiskNanos);
+        device(out, sockets, "hubitat_device_frames_total", "counter",
+                "Frames received from the device with a sequence number.", SequenceTracker.RECEIVED);
+        device(out, sockets, "hubitat_device_missed_frames_total", "counter",
+                "Frames the device sent that never arrived, going by the gaps in its sequence numbers.",
+                SequenceTracker.MISSED);
+        device(out, sockets, "hubitat_device_sequence_gaps_total", "counter",
+                "Gaps in the device's sequence numbers.", SequenceTracker.GAPS);
+        device(out, sockets, "hubitat_device_duplicate_frames_total", "counter",
+                "Frames that repeated the device's last sequence number.", SequenceTracker.DUPLICATES);
+        device(out, sockets, "hubitat_device_late_frames_total", "counter",
+                "Frames that arrived after later ones from the device.", SequenceTracker.LATE);
+        device(out, sockets, "hubitat_device_sequence_resets_total", "counter",
+                "Times the device's sequence numbers jumped back, e.g. when it restarted.", SequenceTracker.RESETS);
+        device(out, sockets, "hubitat_device_sequence_wraps_total", "counter",
+                "Times the device's sequence numbers wrapped around.", SequenceTracker.WRAPS);
+        header(out, "hubitat_device_loss_ratio", "gauge", "Share of the frames the device sent that were missed.");
+        forEachDevice(sockets, (metrics, tracker, devices, index) -> {
+            out.append("hubitat_device_loss_ratio");
+            deviceLabels(out, metrics, tracker, devices.id(index));
+            out.append(' ').append(devices.lossRatio(index)).append('\n');
+        });
+        return out.toString();
+    }
+
+    @FunctionalInterface
+    private interface DeviceVisitor {
+        void visit(SocketMetrics metrics, SequenceTracker<?> tracker, SequenceTracker.Devices devices, int index);
+    }
+
+    private static void forEachDevice(List<SocketMetrics> sockets, DeviceVisitor visitor) {
+        for (SocketMetrics metrics : sockets) {
+            SequenceTracker<?> tracker = metrics.sequences();
+            if (tracker == null) {
+                continue;
+            }
+            int count = tracker.deviceCount();
+            SequenceTracker.Devices devices = tracker.devices();
+            for (int i = 0; i < count; i++) {
+                visitor.visit(metrics, tracker, devices, i);
+            }
+        }
+    }
+
+    private static void device(StringBuilder out, List<SocketMetrics> sockets, String name, String type, String help,
+            int stat) {
+        header(out, name, type, help);
+        forEachDevice(sockets, (metrics, tracker, devices, index) -> {
+            out.append(name);
+            deviceLabels(out, metrics, tracker, devices.id(index));
+            out.append(' ').append(devices.get(index, stat)).append('\n');
+        });
+    }
+
+    private static void value(StringBuilder out, List<SocketMetrics> sockets, String name, String type, String help,
+            ToDoubleFunction<SocketMetrics> value) {
+        header(out, name, type, help);
+        for (SocketMetrics metrics : sockets) {
+            out.append(name);
+            labels(out, metrics, null);
+            out.append(' ').append(value.applyAsDouble(metrics)).append('\n');
+        }
+    }
+
+    private static void summary(StringBuilder out, List<SocketMetrics> sockets, String name, String help,
+            Function<SocketMetrics, Histogram> histogram) {
+        header(out, name, "summary", help);
+        for (SocketMetrics metrics : sockets) {
+            Histogram.Snapshot snapshot = histogram.apply(metrics).snapshot();
+            for (double quantile : QUANTILES) {
+                out.append(name);
+                labels(out, metrics, quantile);
+                out.append(' ').append(snapshot.valueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            out.append(name).append("_sum");
+            labels(out, metrics, null);
+            out.append(' ').append(snapshot.sum() / 1e9).append('\n');
+            out.append(name).append("_count");
+            labels(out, metrics, null);
+            out.append(' ').append(snapshot.count()).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void labels(StringBuilder out, SocketMetrics metrics, Double quantile) {
+        out.append("{hub=\"");
+        escape(out, metrics.getHub());
+        out.append("\",socket=\"");
+        escape(out, metrics.getSocket());
+        out.append('"');
+        if (quantile != null) {
+            out.append(",quantile=\"").append(quantile).append('"');
+        }
+        out.append('}');
+    }
+
+    private static void deviceLabels(StringBuilder out, SocketMetrics metrics, SequenceTracker<?> tracker, int id) {
+        out.append("{hub=\"");
+        escape(out, metrics.getHub());
+        out.append("\",socket=\"");
+        escape(out, metrics.getSocket());
+        out.append("\",device=\"");
+        String hex = Integer.toHexString(id).toUpperCase();
+        for (int i = hex.length(); i < tracker.deviceDigits(); i++) {
+            out.append('0');
+        }
+        out.append(hex).append("\"}");
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
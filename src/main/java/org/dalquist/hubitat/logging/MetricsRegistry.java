@@ -0,0 +1,94 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Creates the {@link SocketMetrics} for every socket, publishes them as MXBeans and, if a port is configured,
+ * on a local Prometheus endpoint. Also logs latency percentiles periodically, see {@link LatencyReporter}.
+ */
+final class MetricsRegistry implements AutoCloseable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final long TICK_SECONDS = 5;
+
+    private final CopyOnWriteArrayList<SocketMetrics> sockets = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ObjectName> mbeanNames = new CopyOnWriteArrayList<>();
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("metrics").setDaemon(true).build());
+    private final LatencyReporter latencyReporter = new LatencyReporter(this::sockets);
+    private final MetricsHttpServer httpServer;
+
+    /**
+     * @param httpPort port for the Prometheus endpoint on the loopback address, 0 to disable it
+     * @param latencyReportSeconds how often to log latency percentiles, 0 to only log them at shutdown
+     */
+    MetricsRegistry(int httpPort, int latencyReportSeconds) throws IOException {
+        ticker.scheduleAtFixedRate(this::tick, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+        if (latencyReportSeconds > 0) {
+            ticker.scheduleAtFixedRate(latencyReporter::reportInterval, latencyReportSeconds, latencyReportSeconds,
+                    TimeUnit.SECONDS);
+        }
+        httpServer = httpPort > 0 ? MetricsHttpServer.start(httpPort, this::sockets) : null;
+    }
+
+    SocketMetrics register(String hub, String socket) {
+        SocketMetrics metrics = new SocketMetrics(hub, socket);
+        sockets.add(metrics);
+        try {
+            ObjectName name = new ObjectName(String.format("org.dalquist.hubitat.logging:type=Socket,hub=%s,socket=%s",
+                    ObjectName.quote(hub), ObjectName.quote(socket)));
+            mbeanServer.registerMBean(metrics, name);
+            mbeanNames.add(name);
+        } catch (JMException e) {
+            logger.atWarning().withCause(e).log("Failed to register JMX metrics for %s/%s", hub, socket);
+        }
+        return metrics;
+    }
+
+    /**
+     * Log latency percentiles since startup.
+     */
+    void reportLatencies() {
+        latencyReporter.reportTotals();
+    }
+
+    ImmutableList<SocketMetrics> sockets() {
+        return ImmutableList.copyOf(sockets);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (SocketMetrics metrics : sockets) {
+            metrics.tick(now);
+        }
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        if (httpServer != null) {
+            httpServer.stop();
+        }
+        for (ObjectName name : mbeanNames) {
+            try {
+                mbeanServer.unregisterMBean(name);
+            } catch (JMException e) {
+                logger.atWarning().withCause(e).log("Failed to unregister %s", name);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.dalquist.hubitat.logging;
+
+import com.google.devtools.common.options.EnumConverter;
+
+/**
+ * What a {@link FrameRingBuffer} does when the writer thread falls behind and the buffer is full.
+ */
+public enum OverflowPolicy {
+    /** Park the WebSocket thread until the writer frees a slot. Nothing is lost. */
+    BLOCK,
+    /** Discard the oldest queued frame to make room for the new one. */
+    DROP_OLDEST,
+    /** Discard the new frame. */
+    DROP;
+
+    public static final class Converter extends EnumConverter<OverflowPolicy> {
+        public Converter() {
+            super(OverflowPolicy.class, "overflow policy");
+        }
+    }
+}
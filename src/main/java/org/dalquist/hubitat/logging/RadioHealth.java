@@ -0,0 +1,325 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Per-device radio health, e.g. LQI and RSSI, aggregated over fixed intervals and appended to
+ * {@code <dir>/<socket>-<yyyyMMdd>.log} as each ends, so a health report doesn't mean reparsing the logs. Each
+ * interval, aligned to the wall clock, has a line per device heard from in it:
+ *
+ * <pre>
+ * 2021-05-29T07:28:00     2B2B frames=12 lqi=12:200/231.5/240/255/255 rssi=12:-80/-67.3/-67/-60/-58 Drier - Plug
+ * </pre>
+ *
+ * <p>
+ * The interval start, the device, the frames from it, then for each measure the samples and their
+ * {@code min/mean/p50/p90/max}, then each count, and the device name last as it has spaces. A measure the device
+ * didn't report is left out. Percentiles come from linear buckets per measure, values outside the bucket range
+ * land in the first or last one, min and max are exact.
+ *
+ * <p>
+ * Devices are mapped to a dense index by an {@link IntIntMap} into primitive arrays, cleared for each interval,
+ * so recording a message allocates nothing once the arrays are big enough for the devices heard in an interval.
+ * Not thread safe, called from the {@link LogWriterPool} thread of the socket.
+ */
+final class RadioHealth<T> implements MessageSink<T> {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    /** Returned by a measure the message didn't report. */
+    static final int NONE = Integer.MIN_VALUE;
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    /**
+     * The measures and counts for a socket's messages.
+     */
+    static final class Spec<T> {
+        private final ToIntFunction<T> device;
+        private final Function<T, String> name;
+        private final int deviceDigits;
+        private final List<Measure<T>> measures = new ArrayList<>();
+        private final List<String> countNames = new ArrayList<>();
+        private final List<Predicate<T>> counts = new ArrayList<>();
+        private int buckets;
+
+        /**
+         * @param device the device a message came from, -1 for messages to skip
+         * @param deviceDigits hex digits to show device ids with
+         */
+        Spec(ToIntFunction<T> device, Function<T, String> name, int deviceDigits) {
+            this.device = device;
+            this.name = name;
+            this.deviceDigits = deviceDigits;
+        }
+
+        /**
+         * A value aggregated per device, {@link #NONE} when a message doesn't have it. Percentiles are taken from
+         * {@code buckets} buckets {@code width} wide starting at {@code lowest}.
+         */
+        Spec<T> measure(String name, ToIntFunction<T> value, int lowest, int width, int buckets) {
+            measures.add(new Measure<>(name, value, lowest, width, buckets, this.buckets));
+            this.buckets += buckets;
+            return this;
+        }
+
+        /**
+         * Messages counted per device.
+         */
+        Spec<T> count(String name, Predicate<T> counted) {
+            countNames.add(name);
+            counts.add(counted);
+            return this;
+        }
+
+        /**
+         * @param retention tracks the day files for retention, or null
+         */
+        RadioHealth<T> create(File dir, String socket, long intervalMillis, RetentionManager retention) {
+            return new RadioHealth<>(this, dir, socket, intervalMillis, retention);
+        }
+    }
+
+    private static final class Measure<T> {
+        final String name;
+        final ToIntFunction<T> value;
+        final int lowest;
+        final int width;
+        final int buckets;
+        // Of the measure's first bucket in a device's
+        final int offset;
+
+        Measure(String name, ToIntFunction<T> value, int lowest, int width, int buckets, int offset) {
+            if (width < 1 || buckets < 1) {
+                throw new IllegalArgumentException("Invalid buckets for " + name + ": " + buckets + " x " + width);
+            }
+            this.name = name;
+            this.value = value;
+            this.lowest = lowest;
+            this.width = width;
+            this.buckets = buckets;
+            this.offset = offset;
+        }
+    }
+
+    private final Spec<T> spec;
+    private final File dir;
+    private final String socket;
+    private final long intervalMillis;
+    private final RetentionManager retention;
+    private final Measure<?>[] measures;
+    private final int countsPerDevice;
+    private final int bucketsPerDevice;
+    private final LogAppender line = new LogAppender();
+
+    private final IntIntMap indexes = new IntIntMap(64);
+    private int used;
+    private int[] devices = new int[0];
+    private String[] names = new String[0];
+    private int[] frames = new int[0];
+    // Per device and measure
+    private int[] samples = new int[0];
+    private long[] sums = new long[0];
+    private int[] mins = new int[0];
+    private int[] maxes = new int[0];
+    // Per device and count
+    private int[] counts = new int[0];
+    // Per device and bucket
+    private int[] buckets = new int[0];
+
+    private long intervalStartMillis = Long.MIN_VALUE;
+    // The day file last written to
+    private File file;
+
+    private RadioHealth(Spec<T> spec, File dir, String socket, long intervalMillis, RetentionManager retention) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid radio health interval: " + intervalMillis + "ms");
+        }
+        this.spec = spec;
+        this.dir = dir;
+        this.socket = socket;
+        this.intervalMillis = intervalMillis;
+        this.retention = retention;
+        this.measures = spec.measures.toArray(new Measure<?>[0]);
+        this.countsPerDevice = spec.counts.size();
+        this.bucketsPerDevice = spec.buckets;
+        grow(64);
+        if (retention != null) {
+            retention.register(new File(dir, socket + ".log"));
+        }
+    }
+
+    private void grow(int capacity) {
+        int oldMeasures = mins.length;
+        devices = Arrays.copyOf(devices, capacity);
+        names = Arrays.copyOf(names, capacity);
+        frames = Arrays.copyOf(frames, capacity);
+        samples = Arrays.copyOf(samples, capacity * measures.length);
+        sums = Arrays.copyOf(sums, capacity * measures.length);
+        mins = Arrays.copyOf(mins, capacity * measures.length);
+        maxes = Arrays.copyOf(maxes, capacity * measures.length);
+        Arrays.fill(mins, oldMeasures, mins.length, Integer.MAX_VALUE);
+        Arrays.fill(maxes, oldMeasures, maxes.length, Integer.MIN_VALUE);
+        counts = Arrays.copyOf(counts, capacity * countsPerDevice);
+        buckets = Arrays.copyOf(buckets, capacity * bucketsPerDevice);
+    }
+
+    /**
+     * Add {@code msg}, received at {@code receivedMillis}, to its device's aggregates. Writes out the interval
+     * before if it has ended.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void accept(T msg, long receivedMillis) {
+        flushIfDue(receivedMillis);
+        int device = spec.device.applyAsInt(msg);
+        if (device == -1 || device == Integer.MIN_VALUE) {
+            return;
+        }
+        int index = indexes.get(device, -1);
+        if (index == -1) {
+            if (used == devices.length) {
+                grow(used * 2);
+            }
+            index = used++;
+            indexes.put(device, index);
+            devices[index] = device;
+        }
+        names[index] = spec.name.apply(msg);
+        frames[index]++;
+
+        for (int m = 0; m < measures.length; m++) {
+            Measure<T> measure = (Measure<T>) measures[m];
+            int value = measure.value.applyAsInt(msg);
+            if (value == NONE) {
+                continue;
+            }
+            int i = index * measures.length + m;
+            samples[i]++;
+            sums[i] += value;
+            mins[i] = Math.min(mins[i], value);
+            maxes[i] = Math.max(maxes[i], value);
+            int bucket = Math.max(0, Math.min(measure.buckets - 1, (value - measure.lowest) / measure.width));
+            buckets[index * bucketsPerDevice + measure.offset + bucket]++;
+        }
+        for (int c = 0; c < countsPerDevice; c++) {
+            if (spec.counts.get(c).test(msg)) {
+                counts[index * countsPerDevice + c]++;
+            }
+        }
+    }
+
+    /**
+     * Write out the current interval if it ended before {@code nowMillis}.
+     */
+    @Override
+    public void flushIfDue(long nowMillis) {
+        if (intervalStartMillis == Long.MIN_VALUE) {
+            intervalStartMillis = nowMillis - Math.floorMod(nowMillis, intervalMillis);
+        } else if (nowMillis - intervalStartMillis >= intervalMillis) {
+            write();
+            intervalStartMillis = nowMillis - Math.floorMod(nowMillis, intervalMillis);
+        }
+    }
+
+    /**
+     * Write out what there is of the current interval.
+     */
+    @Override
+    public void close() {
+        write();
+    }
+
+    private void write() {
+        if (used == 0) {
+            return;
+        }
+        String day = DAY.format(Instant.ofEpochMilli(intervalStartMillis).atZone(ZoneId.systemDefault()));
+        File file = new File(dir, socket + "-" + day + ".log");
+        if (retention != null && !file.equals(this.file)) {
+            retention.rolledOver(this.file, file);
+        }
+        this.file = file;
+        try {
+            Files.createDirectories(dir.toPath());
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))) {
+                line.setReceivedAt(intervalStartMillis);
+                for (int index = 0; index < used; index++) {
+                    appendDevice(index);
+                    line.writeLineTo(out);
+                }
+            }
+        } catch (IOException e) {
+            line.clear();
+            logger.atSevere().withCause(e).log("Failed to write radio health to %s", file);
+        }
+        reset();
+    }
+
+    private void appendDevice(int index) {
+        line.appendReceiveTimestamp(-23).append(' ').appendHex(devices[index], spec.deviceDigits).append(" frames=")
+                .append(frames[index]);
+        for (int m = 0; m < measures.length; m++) {
+            int i = index * measures.length + m;
+            int n = samples[i];
+            if (n == 0) {
+                continue;
+            }
+            Measure<?> measure = measures[m];
+            int first = index * bucketsPerDevice + measure.offset;
+            line.append(' ').append(measure.name).append('=').append(n).append(':').append(mins[i]).append('/')
+                    .appendFixed((double) sums[i] / n, 0, 1).append('/')
+                    .append(percentile(measure, first, n, 50, mins[i], maxes[i])).append('/')
+                    .append(percentile(measure, first, n, 90, mins[i], maxes[i])).append('/').append(maxes[i]);
+        }
+        for (int c = 0; c < countsPerDevice; c++) {
+            line.append(' ').append(spec.countNames.get(c)).append('=')
+                    .append(counts[index * countsPerDevice + c]);
+        }
+        line.append(' ').append(names[index]);
+    }
+
+    /**
+     * The top of the bucket the percentile falls in, kept within the exact min and max.
+     */
+    private int percentile(Measure<?> measure, int first, int n, int percentile, int min, int max) {
+        int rank = Math.max(1, (n * percentile + 99) / 100);
+        int seen = 0;
+        for (int b = 0; b < measure.buckets; b++) {
+            seen += buckets[first + b];
+            if (seen >= rank) {
+                int top = measure.lowest + (b + 1) * measure.width - 1;
+                return Math.max(min, Math.min(max, top));
+            }
+        }
+        return max;
+    }
+
+    private void reset() {
+        indexes.clear();
+        Arrays.fill(names, 0, used, null);
+        Arrays.fill(frames, 0, used, 0);
+        Arrays.fill(samples, 0, used * measures.length, 0);
+        Arrays.fill(sums, 0, used * measures.length, 0);
+        Arrays.fill(mins, 0, used * measures.length, Integer.MAX_VALUE);
+        Arrays.fill(maxes, 0, used * measures.length, Integer.MIN_VALUE);
+        Arrays.fill(counts, 0, used * countsPerDevice, 0);
+        Arrays.fill(buckets, 0, used * bucketsPerDevice, 0);
+        used = 0;
+    }
+}
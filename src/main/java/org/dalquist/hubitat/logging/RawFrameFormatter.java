@@ -0,0 +1,29 @@
+package org.dalquist.hubitat.logging;
+
+/**
+ * Writes the frame as received, wrapped in a JSON object with the receive time:
+ * {@code {"receivedAt":<epoch millis>,"frame":<frame>}}. Nothing is decoded, so every field the hub sent is
+ * kept. Hub frames are JSON objects, line breaks in them can only be whitespace and are replaced with spaces
+ * to keep one frame per line.
+ */
+final class RawFrameFormatter implements FrameFormatter {
+    static final FrameFormatter INSTANCE = new RawFrameFormatter();
+
+    private RawFrameFormatter() {
+    }
+
+    @Override
+    public void format(Frame frame, LogAppender out) {
+        out.append("{\"receivedAt\":").append(frame.receivedMillis).append(",\"frame\":");
+        String message = frame.message;
+        if (message.indexOf('\n') < 0 && message.indexOf('\r') < 0) {
+            out.append(message);
+        } else {
+            for (int i = 0; i < message.length(); i++) {
+                char c = message.charAt(i);
+                out.append(c == '\n' || c == '\r' ? ' ' : c);
+            }
+        }
+        out.append('}');
+    }
+}
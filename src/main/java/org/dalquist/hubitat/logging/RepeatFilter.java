@@ -0,0 +1,230 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Suppresses runs of identical messages from chatty devices. The first message of a run is logged, the ones
+ * that repeat it within {@code windowMillis} are only counted, and a {@code last line repeated N times} line
+ * stands in for them once the run ends: when the device sends something else, the window runs out or the
+ * device is forgotten.
+ *
+ * <p>
+ * Runs are tracked by a key for the device, or device and attribute, in an LRU of at most {@code capacity}
+ * keys, the least recently seen is forgotten to make room. Messages are compared by a 64-bit hash of every
+ * field that ends up in the line apart from its timestamp, so a suppressed line would have been the same as the
+ * first but for its time. Everything lives in primitive arrays sized up front, checking a message allocates
+ * nothing.
+ *
+ * <p>
+ * Not thread safe, called from the {@link LogWriterPool} thread of the socket.
+ */
+final class RepeatFilter<T> {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int NONE = -1;
+    private static final long SWEEP_MILLIS = 1000;
+
+    @FunctionalInterface
+    interface Factory<T> {
+        RepeatFilter<T> create(long windowMillis, int capacity);
+    }
+
+    private final ToIntFunction<T> key;
+    private final ToLongFunction<T> signature;
+    private final BiConsumer<T, StringBuilder> describe;
+    private final long windowMillis;
+
+    private final IntIntMap slots;
+    private final int[] keys;
+    private final long[] signatures;
+    private final long[] firstMillis;
+    private final long[] lastMillis;
+    private final int[] repeats;
+    // What the summary line says repeated, written when a run's first repeat is suppressed
+    private final StringBuilder[] descriptions;
+    // Most recently seen first
+    private final int[] newer;
+    private final int[] older;
+    private int newest = NONE;
+    private int oldest = NONE;
+    private int used;
+    // Runs with suppressed repeats not yet written out
+    private int pendingRuns;
+    private long nextSweepMillis;
+
+    /**
+     * @param key the device, or device and attribute, a message belongs to
+     * @param signature hash of the message's fields, see {@link #hash}
+     * @param describe appends what a summary line names as repeating, e.g. the device and attribute
+     */
+    RepeatFilter(ToIntFunction<T> key, ToLongFunction<T> signature, BiConsumer<T, StringBuilder> describe,
+            long windowMillis, int capacity) {
+        if (windowMillis < 1 || capacity < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid repeat filter: " + windowMillis + "ms window, " + capacity + " keys");
+        }
+        this.key = key;
+        this.signature = signature;
+        this.describe = describe;
+        this.windowMillis = windowMillis;
+        this.slots = new IntIntMap(capacity);
+        this.keys = new int[capacity];
+        this.signatures = new long[capacity];
+        this.firstMillis = new long[capacity];
+        this.lastMillis = new long[capacity];
+        this.repeats = new int[capacity];
+        this.descriptions = new StringBuilder[capacity];
+        for (int i = 0; i < capacity; i++) {
+            descriptions[i] = new StringBuilder(64);
+        }
+        this.newer = new int[capacity];
+        this.older = new int[capacity];
+    }
+
+    /**
+     * Start of a {@link #signature} hash.
+     */
+    static long hash() {
+        return FNV_OFFSET;
+    }
+
+    /**
+     * Add {@code value} to the hash {@code hash}, FNV-1a over its chars and a terminator so adjacent fields
+     * can't run together.
+     */
+    static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xffff) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ 0x10000) * FNV_PRIME;
+    }
+
+    static long hash(long hash, int value) {
+        return (hash ^ (value & 0xffffffffL) ^ 0x100000000L) * FNV_PRIME;
+    }
+
+    /**
+     * Returns true if {@code msg} repeats the run for its key and is not to be logged. Otherwise it starts a new
+     * run, after appending the summary of the run it ends, or of one forgotten to make room, followed by a line
+     * separator.
+     */
+    boolean suppress(T msg, long receivedMillis, LogAppender out) {
+        int k = key.applyAsInt(msg);
+        if (k == Integer.MIN_VALUE) {
+            // Reserved by IntIntMap, share a slot with 0
+            k = 0;
+        }
+        long sig = signature.applyAsLong(msg);
+        int slot = slots.get(k, NONE);
+        if (slot == NONE) {
+            slot = allocate(k, out);
+        } else {
+            touch(slot);
+            if (signatures[slot] == sig && receivedMillis - firstMillis[slot] < windowMillis) {
+                if (repeats[slot]++ == 0) {
+                    pendingRuns++;
+                    descriptions[slot].setLength(0);
+                    describe.accept(msg, descriptions[slot]);
+                }
+                lastMillis[slot] = receivedMillis;
+                return true;
+            }
+            if (repeats[slot] > 0) {
+                appendSummary(slot, out);
+                out.newLine();
+            }
+        }
+        out.setReceivedAt(receivedMillis);
+        signatures[slot] = sig;
+        firstMillis[slot] = receivedMillis;
+        lastMillis[slot] = receivedMillis;
+        return false;
+    }
+
+    /**
+     * Append the summaries of runs whose window ended before {@code nowMillis}, or of every run if
+     * {@code closing}, separated by line separators and without one after the last. Only looks every second.
+     */
+    void appendExpired(long nowMillis, boolean closing, LogAppender out) {
+        if (pendingRuns == 0 || (!closing && nowMillis < nextSweepMillis)) {
+            return;
+        }
+        nextSweepMillis = nowMillis + SWEEP_MILLIS;
+        for (int slot = oldest; slot != NONE; slot = newer[slot]) {
+            if (repeats[slot] > 0 && (closing || nowMillis - firstMillis[slot] >= windowMillis)) {
+                if (out.length() > 0) {
+                    out.newLine();
+                }
+                appendSummary(slot, out);
+            }
+        }
+    }
+
+    private void appendSummary(int slot, LogAppender out) {
+        out.setReceivedAt(lastMillis[slot]);
+        out.appendReceiveTimestamp(-23).append(' ').append(descriptions[slot]).append(": last line repeated ")
+                .append(repeats[slot]).append(repeats[slot] == 1 ? " time" : " times");
+        repeats[slot] = 0;
+        pendingRuns--;
+    }
+
+    /**
+     * A slot for a new key, the least recently seen one if they are all in use.
+     */
+    private int allocate(int k, LogAppender out) {
+        int slot;
+        if (used < keys.length) {
+            slot = used++;
+        } else {
+            slot = oldest;
+            if (repeats[slot] > 0) {
+                appendSummary(slot, out);
+                out.newLine();
+            }
+            slots.remove(keys[slot], NONE);
+            unlink(slot);
+        }
+        keys[slot] = k;
+        slots.put(k, slot);
+        linkNewest(slot);
+        return slot;
+    }
+
+    private void touch(int slot) {
+        if (slot != newest) {
+            unlink(slot);
+            linkNewest(slot);
+        }
+    }
+
+    private void unlink(int slot) {
+        int n = newer[slot];
+        int o = older[slot];
+        if (n == NONE) {
+            newest = o;
+        } else {
+            older[n] = o;
+        }
+        if (o == NONE) {
+            oldest = n;
+        } else {
+            newer[o] = n;
+        }
+    }
+
+    private void linkNewest(int slot) {
+        newer[slot] = NONE;
+        older[slot] = newest;
+        if (newest == NONE) {
+            oldest = slot;
+        } else {
+            newer[newest] = slot;
+        }
+        newest = slot;
+    }
+}
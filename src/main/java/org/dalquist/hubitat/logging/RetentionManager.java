@@ -0,0 +1,409 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import com.google.common.flogger.FluentLogger;
+import com.vlkan.rfos.RotationCallback;
+import com.vlkan.rfos.policy.RotationPolicy;
+
+/**
+ * Keeps the log directories within a total size, a size per socket and a maximum age by deleting the oldest
+ * rotated segments, along with their index and block map.
+ *
+ * <p>
+ * Segments are tracked in an in-memory catalog, each socket's directory is listed once when it is registered and
+ * rotations add to it from then on. Writers that start a new file each day report it through {@link #rolledOver}
+ * instead. A segment's size is taken once {@code busy} no longer says it may change, e.g.
+ * once it has been compressed, and it doesn't count towards the budgets before then. Deleting happens on a low
+ * priority thread, one segment at a time and never while holding the catalog lock, so a rotation never waits on
+ * it.
+ */
+final class RetentionManager implements RotationCallback, AutoCloseable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private static final long CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Files that belong to a segment, named by adding to the segment's name
+    private static final List<String> SIDECAR_SUFFIXES = List.of(SegmentIndex.SUFFIX,
+            SegmentCompressor.SUFFIX + SegmentCompressor.BLOCKS_SUFFIX, SegmentCompressor.SUFFIX);
+
+    private final long maxTotalBytes;
+    private final long maxSocketBytes;
+    private final long maxAgeMillis;
+    private final Predicate<File> busy;
+    private final RotationCallback delegate;
+
+    // Keyed by <dir>/<socket>, guarded by this
+    private final Map<String, SocketSegments> sockets = new LinkedHashMap<>();
+    private long rotatedBytes;
+    private boolean checkRequested;
+    private boolean closed;
+
+    private final Thread thread;
+
+    /**
+     * @param maxTotalBytes budget for every socket's files together, 0 for no limit
+     * @param maxSocketBytes budget for each socket's files, 0 for no limit
+     * @param maxAgeMillis delete segments rotated longer ago than this, 0 for no limit
+     * @param busy true for a rotated segment that is still being worked on and must not be deleted yet
+     * @param delegate next rotation stage, called before a rotated segment is cataloged so it can mark the
+     *            segment busy
+     */
+    RetentionManager(long maxTotalBytes, long maxSocketBytes, long maxAgeMillis, Predicate<File> busy,
+            RotationCallback delegate) {
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxSocketBytes = maxSocketBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.busy = busy;
+        this.delegate = delegate;
+        this.thread = new Thread(this::run, "log-retention");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Start tracking the socket logging to {@code active}, cataloging the segments it has already rotated. Does
+     * nothing for a socket already registered, e.g. a route file opened again.
+     */
+    void register(File active) {
+        File file = active.getAbsoluteFile();
+        String name = file.getName();
+        String socket = name.substring(0, name.lastIndexOf('.'));
+        String key = file.getParent() + File.separator + socket;
+        synchronized (this) {
+            SocketSegments catalog = sockets.get(key);
+            if (catalog != null && catalog.active != null) {
+                return;
+            }
+        }
+        File[] files = file.getParentFile().listFiles((dir, found) -> found.startsWith(socket + "-"));
+
+        // Group the sidecars with their segment
+        Map<String, Segment> found = new HashMap<>();
+        for (File each : files == null ? new File[0] : files) {
+            String segmentName = segmentName(each.getName());
+            if (segmentName != null) {
+                found.computeIfAbsent(segmentName, n -> new Segment(new File(each.getParentFile(), n)));
+            }
+        }
+        Segment[] segments = found.values().toArray(new Segment[0]);
+        for (Segment segment : segments) {
+            segment.refresh(busy);
+        }
+        Arrays.sort(segments, Comparator.comparingLong((Segment segment) -> segment.rotatedAtMillis)
+                .thenComparing(segment -> segment.file.getName()));
+
+        synchronized (this) {
+            SocketSegments catalog = sockets.computeIfAbsent(key, k -> new SocketSegments());
+            if (catalog.active != null) {
+                return;
+            }
+            catalog.active = file;
+            for (Segment segment : segments) {
+                catalog.add(segment);
+                rotatedBytes += segment.bytes;
+            }
+            checkRequested = true;
+            notifyAll();
+        }
+        logger.atInfo().log("Retention tracking %s with %d rotated segments", active, segments.length);
+    }
+
+    /**
+     * The segment a file belongs to, null for files that aren't part of one.
+     */
+    private static String segmentName(String name) {
+        if (name.endsWith(".tmp") || name.endsWith(".rotating")) {
+            return null;
+        }
+        for (String suffix : SIDECAR_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return name;
+    }
+
+    /**
+     * The catalog of the socket a rotated file belongs to, the longest registered one its name starts with as
+     * sockets, e.g. route outputs, may have dashes of their own.
+     */
+    private SocketSegments catalog(File file) {
+        String path = file.getParent() + File.separator + file.getName();
+        int nameStart = path.length() - file.getName().length();
+        for (int end = path.lastIndexOf('-'); end > nameStart; end = path.lastIndexOf('-', end - 1)) {
+            SocketSegments catalog = sockets.get(path.substring(0, end));
+            if (catalog != null) {
+                return catalog;
+            }
+        }
+        String name = file.getName();
+        int end = name.indexOf('-');
+        String socket = name.substring(0, end < 0 ? name.lastIndexOf('.') : end);
+        return sockets.computeIfAbsent(file.getParent() + File.separator + socket, key -> new SocketSegments());
+    }
+
+    @Override
+    public void onTrigger(RotationPolicy policy, Instant instant) {
+        delegate.onTrigger(policy, instant);
+    }
+
+    @Override
+    public void onOpen(RotationPolicy policy, Instant instant, OutputStream stream) {
+        delegate.onOpen(policy, instant, stream);
+    }
+
+    @Override
+    public void onClose(RotationPolicy policy, Instant instant, OutputStream stream) {
+        delegate.onClose(policy, instant, stream);
+    }
+
+    @Override
+    public void onSuccess(RotationPolicy policy, Instant instant, File rotatedFile) {
+        delegate.onSuccess(policy, instant, rotatedFile);
+        Segment segment = new Segment(rotatedFile.getAbsoluteFile());
+        segment.refresh(busy);
+        synchronized (this) {
+            catalog(segment.file).add(segment);
+            rotatedBytes += segment.bytes;
+            checkRequested = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * For a registered socket whose writer rolls over to new files by itself, e.g. one a day, rather than being
+     * rotated: {@code active} is now the file being written and {@code finished}, if not null, is cataloged like a
+     * rotated segment. Register the socket with any name for its active file, e.g. {@code <socket>.log}.
+     */
+    void rolledOver(File finished, File active) {
+        Segment segment = null;
+        if (finished != null) {
+            segment = new Segment(finished.getAbsoluteFile());
+            segment.refresh(busy);
+        }
+        synchronized (this) {
+            SocketSegments catalog = catalog(active.getAbsoluteFile());
+            // Cataloged when it was registered if it was written to before a restart
+            Segment current = catalog.remove(active.getAbsoluteFile());
+            if (current != null) {
+                rotatedBytes -= current.bytes;
+            }
+            catalog.active = active.getAbsoluteFile();
+            if (segment != null) {
+                catalog.add(segment);
+                rotatedBytes += segment.bytes;
+            }
+            checkRequested = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onFailure(RotationPolicy policy, Instant instant, File rotatedFile, Exception error) {
+        delegate.onFailure(policy, instant, rotatedFile, error);
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                long waitUntil = System.currentTimeMillis() + CHECK_INTERVAL_MILLIS;
+                while (!checkRequested && !closed) {
+                    long wait = waitUntil - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                checkRequested = false;
+            }
+            try {
+                enforce(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                logger.atWarning().withCause(e).log("Failed to apply log retention");
+            }
+        }
+    }
+
+    /**
+     * Delete segments until every budget is met, oldest first.
+     */
+    void enforce(long nowMillis) {
+        refresh();
+        Segment segment;
+        while ((segment = nextToDelete(nowMillis)) != null) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Update the sizes that may have changed since they were taken, the active files and segments that were
+     * busy.
+     */
+    private void refresh() {
+        SocketSegments[] catalogs;
+        synchronized (this) {
+            catalogs = sockets.values().toArray(new SocketSegments[0]);
+        }
+        for (SocketSegments catalog : catalogs) {
+            File active = catalog.active;
+            long activeBytes = active == null ? 0 : active.length();
+            Segment[] changing;
+            synchronized (this) {
+                catalog.activeBytes = activeBytes;
+                changing = catalog.segments.stream().filter(segment -> segment.changing).toArray(Segment[]::new);
+            }
+            for (Segment segment : changing) {
+                boolean stillChanging = busy.test(segment.file);
+                long bytes = stillChanging ? 0 : segment.size();
+                synchronized (this) {
+                    // Unless it was deleted meanwhile
+                    if (catalog.segments.contains(segment)) {
+                        catalog.bytes += bytes - segment.bytes;
+                        rotatedBytes += bytes - segment.bytes;
+                    }
+                    segment.bytes = bytes;
+                    segment.changing = stillChanging;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the next segment to delete from the catalog, null once every budget is met. A budget that can only
+     * be met by deleting a busy segment waits for the next check.
+     */
+    private synchronized Segment nextToDelete(long nowMillis) {
+        long totalBytes = rotatedBytes;
+        SocketSegments oldest = null;
+        for (SocketSegments catalog : sockets.values()) {
+            totalBytes += catalog.activeBytes;
+            Segment head = catalog.segments.peekFirst();
+            if (head == null || head.changing) {
+                continue;
+            }
+            if ((maxAgeMillis > 0 && head.rotatedAtMillis < nowMillis - maxAgeMillis)
+                    || (maxSocketBytes > 0 && catalog.bytes + catalog.activeBytes > maxSocketBytes)) {
+                return remove(catalog);
+            }
+            if (oldest == null || head.rotatedAtMillis < oldest.segments.peekFirst().rotatedAtMillis) {
+                oldest = catalog;
+            }
+        }
+        if (maxTotalBytes > 0 && totalBytes > maxTotalBytes && oldest != null) {
+            return remove(oldest);
+        }
+        return null;
+    }
+
+    private Segment remove(SocketSegments catalog) {
+        Segment segment = catalog.segments.removeFirst();
+        catalog.bytes -= segment.bytes;
+        rotatedBytes -= segment.bytes;
+        return segment;
+    }
+
+    private static void delete(Segment segment) {
+        // The log itself first, a leftover sidecar is harmless
+        File compressed = SegmentCompressor.compressedFile(segment.file);
+        for (File file : new File[] { segment.file, compressed, SegmentCompressor.blocksFile(compressed),
+                SegmentIndex.indexFile(segment.file) }) {
+            if (file.exists() && !file.delete()) {
+                logger.atWarning().log("Failed to delete %s", file);
+            }
+        }
+        logger.atInfo().log("Deleted %s (%d bytes) for log retention", segment.file, segment.bytes);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        thread.join();
+    }
+
+    /**
+     * One socket's rotated segments, oldest first.
+     */
+    private static final class SocketSegments {
+        final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        volatile File active;
+        long activeBytes;
+        // Rotated segments only
+        long bytes;
+
+        void add(Segment segment) {
+            segments.addLast(segment);
+            bytes += segment.bytes;
+        }
+
+        /**
+         * Stop tracking {@code file}, returning its segment if it was tracked.
+         */
+        Segment remove(File file) {
+            for (Iterator<Segment> it = segments.iterator(); it.hasNext();) {
+                Segment segment = it.next();
+                if (segment.file.equals(file)) {
+                    it.remove();
+                    bytes -= segment.bytes;
+                    return segment;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A rotated segment, named by its uncompressed log, and the files that go with it.
+     */
+    private static final class Segment {
+        final File file;
+        long rotatedAtMillis;
+        long bytes;
+        boolean changing;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Take the segment's time and size before it is cataloged.
+         */
+        void refresh(Predicate<File> busy) {
+            changing = busy.test(file);
+            File compressed = SegmentCompressor.compressedFile(file);
+            // Last written to when it was rotated, compressing happens shortly after
+            long lastModified = file.exists() ? file.lastModified() : compressed.lastModified();
+            rotatedAtMillis = lastModified == 0 ? System.currentTimeMillis() : lastModified;
+            // Not counted until it settles, a segment waiting to be compressed would push out older ones
+            bytes = changing ? 0 : size();
+        }
+
+        long size() {
+            File compressed = SegmentCompressor.compressedFile(file);
+            return file.length() + compressed.length() + SegmentCompressor.blocksFile(compressed).length()
+                    + SegmentIndex.indexFile(file).length();
+        }
+    }
+}
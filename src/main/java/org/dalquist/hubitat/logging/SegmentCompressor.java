@@ -0,0 +1,325 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.flogger.FluentLogger;
+import com.vlkan.rfos.LoggingRotationCallback;
+import com.vlkan.rfos.RotationCallback;
+import com.vlkan.rfos.policy.RotationPolicy;
+
+/**
+ * Rotation callback stage that gzips each rotated segment in the background. Segments are split at line
+ * boundaries into blocks of about {@code blockBytes} that are deflated in parallel, each one a complete gzip
+ * member, so {@code <segment>.gz} is a plain multi-member gzip file and any block can be decompressed on its
+ * own. The block boundaries go in a {@code <segment>.gz.blocks} sidecar, {@link #BLOCKS_MAGIC} followed by
+ * big-endian {@code (long uncompressedOffset, long compressedOffset)} records, one per block and a last one for
+ * the end of the file.
+ *
+ * <p>
+ * {@link #onSuccess} only queues the segment, the writer never waits on compression. Segments are compressed
+ * one at a time on a low priority thread with at most {@code 2 * threads} blocks in memory.
+ */
+final class SegmentCompressor implements RotationCallback, AutoCloseable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    static final String SUFFIX = ".gz";
+    static final String BLOCKS_SUFFIX = ".blocks";
+    static final byte[] BLOCKS_MAGIC = "HUBBLK01".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String TMP_SUFFIX = ".tmp";
+    // Fixed member header: deflate, no name or comment, unknown OS
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final int blockBytes;
+    private final int maxInFlight;
+    private final RotationCallback delegate = LoggingRotationCallback.getInstance();
+    private final ExecutorService segments;
+    private final ExecutorService blocks;
+    // Queued or being compressed
+    private final Set<File> pending = ConcurrentHashMap.newKeySet();
+    // One deflater per block thread, reset between blocks rather than reallocating its native state
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    SegmentCompressor(int threads, int blockBytes) {
+        if (threads < 1 || blockBytes < 1) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid compression settings: %s threads, %s byte blocks", threads, blockBytes));
+        }
+        this.blockBytes = blockBytes;
+        this.maxInFlight = 2 * threads;
+        this.segments = Executors.newSingleThreadExecutor(threadFactory("log-compress"));
+        this.blocks = Executors.newFixedThreadPool(threads, threadFactory("log-compress-block"));
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+    }
+
+    static File compressedFile(File segment) {
+        return new File(segment.getPath() + SUFFIX);
+    }
+
+    static File blocksFile(File compressed) {
+        return new File(compressed.getPath() + BLOCKS_SUFFIX);
+    }
+
+    /**
+     * Queue the rotated segments {@code socket} left uncompressed, e.g. when the process stopped mid-way.
+     */
+    void compressPending(File logDir, String socket) {
+        File[] pending = logDir.listFiles((dir, name) -> name.startsWith(socket + "-")
+                && (name.endsWith(".log") || name.endsWith(".ndjson")));
+        if (pending == null) {
+            return;
+        }
+        for (File segment : pending) {
+            submit(segment);
+        }
+    }
+
+    @Override
+    public void onTrigger(RotationPolicy policy, Instant instant) {
+        delegate.onTrigger(policy, instant);
+    }
+
+    @Override
+    public void onOpen(RotationPolicy policy, Instant instant, OutputStream stream) {
+        delegate.onOpen(policy, instant, stream);
+    }
+
+    @Override
+    public void onClose(RotationPolicy policy, Instant instant, OutputStream stream) {
+        delegate.onClose(policy, instant, stream);
+    }
+
+    @Override
+    public void onSuccess(RotationPolicy policy, Instant instant, File rotatedFile) {
+        delegate.onSuccess(policy, instant, rotatedFile);
+        submit(rotatedFile);
+    }
+
+    @Override
+    public void onFailure(RotationPolicy policy, Instant instant, File rotatedFile, Exception error) {
+        delegate.onFailure(policy, instant, rotatedFile, error);
+    }
+
+    /**
+     * True while {@code segment} is queued or being compressed, it and its sidecars are about to change.
+     */
+    boolean isPending(File segment) {
+        return pending.contains(segment);
+    }
+
+    private void submit(File segment) {
+        if (!pending.add(segment)) {
+            return;
+        }
+        try {
+            segments.execute(() -> {
+                try {
+                    compress(segment);
+                } catch (IOException | RuntimeException e) {
+                    logger.atWarning().withCause(e).log("Failed to compress %s, leaving it uncompressed", segment);
+                } finally {
+                    pending.remove(segment);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(segment);
+            logger.atWarning().log("Shutting down, leaving %s uncompressed", segment);
+        }
+    }
+
+    /**
+     * Write {@code <segment>.gz} and its block map next to {@code segment}, then delete the segment. Both are
+     * written to temporary files first so a crash leaves either the segment or a complete compressed copy.
+     */
+    void compress(File segment) throws IOException {
+        long start = System.nanoTime();
+        File compressed = compressedFile(segment);
+        File tmp = new File(compressed.getPath() + TMP_SUFFIX);
+        File blocksTmp = new File(blocksFile(compressed).getPath() + TMP_SUFFIX);
+
+        long uncompressedLength = 0;
+        long compressedLength = 0;
+        // Blocks being compressed, in file order, and where each one starts in the segment
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        ArrayDeque<Long> inFlightOffsets = new ArrayDeque<>();
+        ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+        try (InputStream in = new FileInputStream(segment);
+                FileOutputStream fileOut = new FileOutputStream(tmp);
+                OutputStream out = new BufferedOutputStream(fileOut, 1 << 16);
+                DataOutputStream blockMap = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(blocksTmp)))) {
+            blockMap.write(BLOCKS_MAGIC);
+            byte[] carry = new byte[blockBytes];
+            int carried = 0;
+            boolean eof = false;
+            while (!eof || carried > 0 || !inFlight.isEmpty()) {
+                if (inFlight.size() == maxInFlight || (eof && carried == 0)) {
+                    byte[] member = await(inFlight.remove());
+                    blockMap.writeLong(inFlightOffsets.remove());
+                    blockMap.writeLong(compressedLength);
+                    out.write(member);
+                    compressedLength += member.length;
+                    continue;
+                }
+
+                // Fill a block, then cut it after its last newline and carry the rest into the next one
+                byte[] block;
+                synchronized (freeBuffers) {
+                    block = freeBuffers.isEmpty() ? new byte[blockBytes] : freeBuffers.remove();
+                }
+                System.arraycopy(carry, 0, block, 0, carried);
+                int length = carried;
+                while (length < blockBytes) {
+                    int read = in.read(block, length, blockBytes - length);
+                    if (read < 0) {
+                        eof = true;
+                        break;
+                    }
+                    length += read;
+                }
+                int cut = length;
+                if (!eof) {
+                    while (cut > 0 && block[cut - 1] != '\n') {
+                        cut--;
+                    }
+                    if (cut == 0) {
+                        // One line bigger than a block, split it
+                        cut = length;
+                    }
+                }
+                carried = length - cut;
+                System.arraycopy(block, cut, carry, 0, carried);
+
+                if (cut > 0) {
+                    int blockLength = cut;
+                    inFlight.add(blocks.submit(() -> {
+                        try {
+                            return gzipMember(block, blockLength);
+                        } finally {
+                            synchronized (freeBuffers) {
+                                freeBuffers.add(block);
+                            }
+                        }
+                    }));
+                    inFlightOffsets.add(uncompressedLength);
+                    uncompressedLength += cut;
+                }
+            }
+            blockMap.writeLong(uncompressedLength);
+            blockMap.writeLong(compressedLength);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            for (Future<byte[]> future : inFlight) {
+                future.cancel(false);
+            }
+            tmp.delete();
+            blocksTmp.delete();
+            throw e;
+        }
+
+        if (!blocksTmp.renameTo(blocksFile(compressed)) || !tmp.renameTo(compressed)) {
+            throw new IOException("Failed to rename " + tmp + " to " + compressed);
+        }
+        if (!segment.delete()) {
+            logger.atWarning().log("Compressed %s but failed to delete it", segment);
+        }
+        logger.atInfo().log("Compressed %s, %d to %d bytes in %dms", segment, uncompressedLength, compressedLength,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Deflate {@code length} bytes of {@code block} into a complete gzip member.
+     */
+    private byte[] gzipMember(byte[] block, int length) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, length);
+
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4 + 64);
+        member.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        byte[] chunk = new byte[1 << 16];
+        while (!deflater.finished()) {
+            int deflated = deflater.deflate(chunk);
+            member.write(chunk, 0, deflated);
+        }
+        writeIntLE(member, (int) crc.getValue());
+        writeIntLE(member, length);
+        return member.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * Stop taking segments and wait a while for the one being compressed, an unfinished one is picked up again
+     * by {@link #compressPending} on the next start.
+     */
+    @Override
+    public void close() {
+        segments.shutdown();
+        try {
+            if (!segments.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.atWarning().log("Gave up waiting for log compression to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Interrupt a segment still waiting on its blocks before they're dropped, it deletes its temporary
+            // files and leaves the segment as it was
+            segments.shutdownNow();
+            blocks.shutdownNow();
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted compressing a block", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress a block", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One log segment on disk, written by a {@link SegmentedOutputStream}. A segment may be pre-allocated, longer on
+ * disk than what has been written to it with the rest zero filled, so {@link #length()} and not the file's length
+ * is where the next write goes. Closing it trims the unused space.
+ */
+abstract class SegmentFile extends OutputStream {
+    private static final int BLOCK_BYTES = 4096;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1 << 20).asReadOnlyBuffer();
+
+    @FunctionalInterface
+    interface Opener {
+        /**
+         * @param append carry on after what the file already holds, otherwise start it empty
+         * @param preallocateBytes disk space to allocate past what has been written, 0 for none
+         */
+        SegmentFile open(File file, boolean append, long preallocateBytes) throws IOException;
+    }
+
+    /**
+     * Bytes written to the segment, including what it held when opened.
+     */
+    abstract long length();
+
+    /**
+     * Pre-allocate {@code [from, to)} of the file. Java has no fallocate, so this writes zeros, which makes the
+     * file system allocate the blocks up front instead of one at a time as the log grows.
+     */
+    static void zeroFill(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer zeros = ZEROS.duplicate();
+        while (from < to) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), to - from));
+            from += channel.write(zeros, from);
+        }
+    }
+
+    /**
+     * Where the written part of a possibly pre-allocated segment ends, going back over the zero filled tail. Log
+     * lines end with a newline so the last written byte is never zero.
+     */
+    static long contentLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+        if (size == 0 || lastNonZero(channel, size - 1, size, block) >= 0) {
+            return size;
+        }
+        return scanBack(channel, size, block);
+    }
+
+    /**
+     * Binary search for the first all zero block of the tail, the content ends in the block before it.
+     */
+    private static long scanBack(FileChannel channel, long size, ByteBuffer block) throws IOException {
+        long low = 0;
+        long high = (size + BLOCK_BYTES - 1) / BLOCK_BYTES - 1;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long start = mid * BLOCK_BYTES;
+            if (lastNonZero(channel, start, Math.min(size, start + BLOCK_BYTES), block) < 0) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if (low == 0) {
+            return 0;
+        }
+        long start = (low - 1) * BLOCK_BYTES;
+        return lastNonZero(channel, start, start + BLOCK_BYTES, block) + 1;
+    }
+
+    /**
+     * Position of the last non zero byte in {@code [from, to)}, or -1 if they are all zero.
+     */
+    private static long lastNonZero(FileChannel channel, long from, long to, ByteBuffer block) throws IOException {
+        block.clear().limit((int) (to - from));
+        while (block.hasRemaining()) {
+            if (channel.read(block, from + block.position()) < 0) {
+                break;
+            }
+        }
+        for (int i = block.position() - 1; i >= 0; i--) {
+            if (block.get(i) != 0) {
+                return from + i;
+            }
+        }
+        return -1;
+    }
+}
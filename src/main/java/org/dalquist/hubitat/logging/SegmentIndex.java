@@ -0,0 +1,226 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+import com.google.common.flogger.FluentLogger;
+import com.vlkan.rfos.LoggingRotationCallback;
+import com.vlkan.rfos.RotatingFilePattern;
+import com.vlkan.rfos.RotationCallback;
+import com.vlkan.rfos.policy.RotationPolicy;
+
+/**
+ * Writes a sparse {@code <segment>.idx} sidecar for a rotating log file, mapping receive time to the byte offset
+ * of a line. An entry is written for the first line and then every {@code everyLines} lines or whenever
+ * {@code everyMillis} have passed since the last entry. The sidecar follows its segment through rotation.
+ *
+ * <p>
+ * The file is {@link #MAGIC} followed by big-endian {@code (long receivedMillis, long offset)} records, see
+ * {@link LogQuery} for the reader.
+ */
+final class SegmentIndex implements RotationCallback {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    static final String SUFFIX = ".idx";
+    static final byte[] MAGIC = "HUBIDX01".getBytes(StandardCharsets.US_ASCII);
+    static final int RECORD_BYTES = 16;
+
+    private final File file;
+    private final int everyLines;
+    private final long everyMillis;
+    private final RotationCallback delegate;
+
+    // Only touched by the writer thread
+    private int linesSinceEntry;
+    private long lastEntryMillis;
+
+    // Entries for lines not yet written to the segment, by offset in the whole stream
+    private long[] pendingMillis = new long[16];
+    private long[] pendingOffsets = new long[16];
+    private int pendingCount;
+    // Bytes written to the rotating stream so far
+    private long written;
+    // Stream offset the current segment starts at and the segment's length when it was opened
+    private long segmentStart;
+    private long segmentBase;
+    private DataOutputStream out;
+    // Names the segment a rotation is about to rename the current one to, set by wrap
+    private RotatingFilePattern filePattern;
+
+    SegmentIndex(File file, int everyLines, long everyMillis) {
+        this(file, everyLines, everyMillis, LoggingRotationCallback.getInstance());
+    }
+
+    /**
+     * @param delegate next rotation stage, called once the index has been taken care of
+     */
+    SegmentIndex(File file, int everyLines, long everyMillis, RotationCallback delegate) {
+        this.file = file;
+        this.everyLines = everyLines;
+        this.everyMillis = everyMillis;
+        this.delegate = delegate;
+        this.linesSinceEntry = everyLines - 1;
+    }
+
+    static File indexFile(File segment) {
+        return new File(segment.getPath() + SUFFIX);
+    }
+
+    /**
+     * Called from the writer thread for every line once it's written, {@code offset} is where the line starts in
+     * the stream written through {@link #wrap}.
+     */
+    void lineAt(long receivedMillis, long offset) throws IOException {
+        if (++linesSinceEntry < everyLines && receivedMillis - lastEntryMillis < everyMillis) {
+            return;
+        }
+        linesSinceEntry = 0;
+        lastEntryMillis = receivedMillis;
+        synchronized (this) {
+            if (pendingCount == pendingMillis.length) {
+                pendingMillis = Arrays.copyOf(pendingMillis, pendingCount * 2);
+                pendingOffsets = Arrays.copyOf(pendingOffsets, pendingCount * 2);
+            }
+            pendingMillis[pendingCount] = receivedMillis;
+            pendingOffsets[pendingCount] = offset;
+            pendingCount++;
+            if (offset < written) {
+                // Already committed, the next write could be to another segment
+                writeEntries();
+                if (out != null) {
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap the rotating stream the log is written to so the index knows which segment each byte ended up in.
+     */
+    OutputStream wrap(SegmentedOutputStream rotating) {
+        synchronized (this) {
+            filePattern = rotating.getConfig().getFilePattern();
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // Same monitor the rotating stream uses, a time based rotation can't run between the write and
+                // counting it
+                synchronized (rotating) {
+                    rotating.write(b, off, len);
+                    written(len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                rotating.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                rotating.close();
+            }
+        };
+    }
+
+    private synchronized void written(long len) throws IOException {
+        written += len;
+        writeEntries();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Write the pending entries for lines that are already in the current segment.
+     */
+    private void writeEntries() throws IOException {
+        int i = 0;
+        for (; i < pendingCount && pendingOffsets[i] < written; i++) {
+            long offset = pendingOffsets[i] - segmentStart;
+            if (out != null && offset >= 0) {
+                out.writeLong(pendingMillis[i]);
+                out.writeLong(segmentBase + offset);
+            }
+        }
+        System.arraycopy(pendingMillis, i, pendingMillis, 0, pendingCount - i);
+        System.arraycopy(pendingOffsets, i, pendingOffsets, 0, pendingCount - i);
+        pendingCount -= i;
+    }
+
+    @Override
+    public void onTrigger(RotationPolicy policy, Instant instant) {
+        delegate.onTrigger(policy, instant);
+    }
+
+    @Override
+    public synchronized void onOpen(RotationPolicy policy, Instant instant, OutputStream stream) {
+        delegate.onOpen(policy, instant, stream);
+        segmentStart = written;
+        // A pre-allocated segment is longer on disk than what has been written to it
+        segmentBase = stream instanceof SegmentFile ? ((SegmentFile) stream).length() : file.length();
+        File index = indexFile(file);
+        try {
+            boolean empty = index.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index, true)));
+            if (empty) {
+                out.write(MAGIC);
+            }
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("Failed to open index %s, segment will not be indexed", index);
+            out = null;
+        }
+    }
+
+    @Override
+    public synchronized void onClose(RotationPolicy policy, Instant instant, OutputStream stream) {
+        delegate.onClose(policy, instant, stream);
+        File index = indexFile(file);
+        try {
+            writeEntries();
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("Failed to write index %s", index);
+        }
+        out = null;
+
+        // Rotating, the segment is renamed right after this to the name the pattern gives the instant. Rename the
+        // index to match now, so the next segment starts a new one and later rotations can't touch it.
+        if (policy != null && filePattern != null && index.exists()) {
+            File rotated = indexFile(filePattern.create(instant).getAbsoluteFile());
+            if (!index.renameTo(rotated)) {
+                logger.atWarning().log("Failed to rename index %s to %s", index, rotated);
+            }
+        }
+    }
+
+    @Override
+    public void onSuccess(RotationPolicy policy, Instant instant, File rotatedFile) {
+        delegate.onSuccess(policy, instant, rotatedFile);
+    }
+
+    @Override
+    public void onFailure(RotationPolicy policy, Instant instant, File rotatedFile, Exception error) {
+        delegate.onFailure(policy, instant, rotatedFile, error);
+        File rotated = indexFile(rotatedFile);
+        // Offsets no longer match anything, queries fall back to scanning the segment
+        if (rotated.exists() && !rotated.delete()) {
+            logger.atWarning().log("Failed to delete index %s", rotated);
+        }
+    }
+}
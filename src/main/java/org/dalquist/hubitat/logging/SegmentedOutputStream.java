@@ -0,0 +1,317 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.vlkan.rfos.Rotatable;
+import com.vlkan.rfos.RotationCallback;
+import com.vlkan.rfos.RotationConfig;
+import com.vlkan.rfos.policy.RotationPolicy;
+import com.vlkan.rfos.policy.TimeBasedRotationPolicy;
+
+/**
+ * Rotating log file that keeps file system work off the thread that triggers a rotation, in place of rfos'
+ * {@code RotatingFileOutputStream}, which closes, renames and reopens inline. A rotation only renames the current
+ * segment to its rotated name, opens a fresh one in its place and swaps it in. Trimming, closing and
+ * {@link RotationCallback#onSuccess} for the old segment go to a background thread.
+ *
+ * <p>
+ * With pre-allocation the next segment is also opened, and zero-filled, ahead of time in the background as
+ * {@code <file>.next}, which costs one more open file per stream. A rotation renames it into place if it is ready,
+ * and never waits for it: if it isn't, a plain segment is opened instead and the pre-opened one is kept for the
+ * rotation after.
+ *
+ * <p>
+ * Uses the file, pattern, clock, policies and callback of a {@link RotationConfig}, with the callbacks in the
+ * same order as rfos. Writes and rotations are synchronized on the stream, like rfos, see
+ * {@link SegmentIndex#wrap}. Time based policies are scheduled here rather than started, so closing the stream
+ * cancels them.
+ */
+final class SegmentedOutputStream extends OutputStream implements Rotatable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    static final String NEXT_SUFFIX = ".next";
+
+    // Shared by every stream. The work for each file is chained, so it runs in the order it was handed over, even
+    // across a stream closed and another opened on the same file.
+    private static final ExecutorService BACKGROUND = Executors.newFixedThreadPool(
+            Math.min(4, Runtime.getRuntime().availableProcessors()),
+            new ThreadFactoryBuilder().setNameFormat("segment-rotation-%d").setDaemon(true).build());
+    private static final ConcurrentHashMap<File, CompletableFuture<Void>> CHAINS = new ConcurrentHashMap<>();
+
+    private final RotationConfig config;
+    private final File file;
+    private final File nextFile;
+    private final SegmentFile.Opener opener;
+    private final long preallocateBytes;
+    private final List<RotationPolicy> writeSensitivePolicies;
+
+    // Guarded by this
+    private SegmentFile current;
+    // The pre-opened next segment, null without pre-allocation
+    private CompletableFuture<SegmentFile> next;
+    // The next rotation of each time based policy
+    private final Map<RotationPolicy, ScheduledFuture<?>> scheduled = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * @param preallocateBytes disk space to allocate for each new segment before it is swapped in, 0 for none
+     */
+    SegmentedOutputStream(RotationConfig config, SegmentFile.Opener opener, long preallocateBytes)
+            throws IOException {
+        this.config = config;
+        this.file = config.getFile().getAbsoluteFile();
+        this.nextFile = new File(file.getPath() + NEXT_SUFFIX);
+        this.opener = opener;
+        this.preallocateBytes = preallocateBytes;
+        this.writeSensitivePolicies = config.getPolicies().stream().filter(RotationPolicy::isWriteSensitive)
+                .collect(Collectors.toList());
+
+        synchronized (this) {
+            current = opener.open(file, true, 0);
+            config.getCallback().onOpen(null, config.getClock().now(), current);
+            if (preallocateBytes > 0) {
+                next = background(file, this::openNext);
+            }
+        }
+        for (RotationPolicy policy : config.getPolicies()) {
+            if (policy instanceof TimeBasedRotationPolicy) {
+                schedule((TimeBasedRotationPolicy) policy);
+            } else {
+                policy.start(this);
+            }
+        }
+    }
+
+    /**
+     * Schedule the next rotation of {@code policy}, like {@link TimeBasedRotationPolicy#start} but keeping the
+     * future. rfos' own reschedules itself forever, so every stream reopened after a failed write would leave a
+     * timer behind.
+     */
+    private synchronized void schedule(TimeBasedRotationPolicy policy) {
+        if (closed) {
+            return;
+        }
+        Instant now = config.getClock().now();
+        Instant trigger = policy.getTriggerInstant(config.getClock());
+        scheduled.put(policy, config.getExecutorService().schedule(() -> {
+            rotate(policy, trigger);
+            schedule(policy);
+        }, Duration.between(now, trigger).toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Run {@code task} on the background pool once the work handed over for {@code file} before it is done.
+     */
+    private static <T> CompletableFuture<T> background(File file, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Void> chain = CHAINS.compute(file, (key, tail) -> {
+            CompletableFuture<Void> after = tail == null ? CompletableFuture.completedFuture(null) : tail;
+            return after.handleAsync((ignored, error) -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+                return null;
+            }, BACKGROUND);
+        });
+        chain.whenComplete((ignored, error) -> CHAINS.remove(file, chain));
+        return result;
+    }
+
+    /**
+     * Wait for the background work handed over so far, so rotated segments are finished before the process exits.
+     */
+    static void awaitBackground(long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<?> all = CompletableFuture.allOf(CHAINS.values().toArray(new CompletableFuture<?>[0]));
+        try {
+            all.get(timeout, unit);
+        } catch (ExecutionException e) {
+            // Failures are handed to the rotation callbacks
+        } catch (TimeoutException e) {
+            logger.atWarning().log("Timed out finishing rotated segments");
+        }
+    }
+
+    private SegmentFile openNext() throws IOException {
+        return opener.open(nextFile, false, preallocateBytes);
+    }
+
+    @Override
+    public RotationConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public synchronized void rotate(RotationPolicy policy, Instant instant) {
+        if (closed) {
+            return;
+        }
+        RotationCallback callback = config.getCallback();
+        callback.onTrigger(policy, instant);
+        if (current.length() == 0) {
+            logger.atFine().log("Skipping rotation of empty %s", file);
+            return;
+        }
+
+        File rotated = config.getFilePattern().create(instant).getAbsoluteFile();
+        SegmentFile old = current;
+        callback.onClose(policy, instant, old);
+        if (!file.renameTo(rotated)) {
+            fail(policy, instant, rotated, new IOException(
+                    String.format("Failed to rename %s to %s", file, rotated)));
+            return;
+        }
+        SegmentFile fresh;
+        try {
+            fresh = openFresh();
+        } catch (IOException e) {
+            if (!rotated.renameTo(file)) {
+                e.addSuppressed(new IOException(String.format("Failed to rename %s back", rotated)));
+            }
+            fail(policy, instant, rotated, e);
+            return;
+        }
+        current = fresh;
+        callback.onOpen(policy, instant, fresh);
+        background(file, () -> {
+            finish(old, policy, instant, rotated);
+            return null;
+        });
+        if (preallocateBytes > 0 && next == null) {
+            next = background(file, this::openNext);
+        }
+    }
+
+    /**
+     * The pre-opened next segment moved into place if it is ready, else a plain one opened here.
+     */
+    private SegmentFile openFresh() throws IOException {
+        if (next != null) {
+            try {
+                SegmentFile fresh = next.getNow(null);
+                if (fresh != null && nextFile.renameTo(file)) {
+                    next = null;
+                    return fresh;
+                }
+                if (fresh != null) {
+                    logger.atWarning().log("Failed to rename %s to %s", nextFile, file);
+                }
+            } catch (CompletionException e) {
+                logger.atWarning().withCause(e.getCause()).log("Failed to open %s ahead of time", nextFile);
+                next = null;
+            }
+        }
+        return opener.open(file, false, 0);
+    }
+
+    /**
+     * Rotating failed after the current segment was closed, carry on with it like rfos does after reopening.
+     */
+    private void fail(RotationPolicy policy, Instant instant, File rotated, Exception error) {
+        RotationCallback callback = config.getCallback();
+        callback.onFailure(policy, instant, rotated, error);
+        callback.onOpen(policy, instant, current);
+    }
+
+    private void finish(SegmentFile old, RotationPolicy policy, Instant instant, File rotated) {
+        RotationCallback callback = config.getCallback();
+        try {
+            old.close();
+        } catch (IOException e) {
+            callback.onFailure(policy, instant, rotated, e);
+            return;
+        }
+        callback.onSuccess(policy, instant, rotated);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        acceptWrite(1);
+        current.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        acceptWrite(len);
+        current.write(b, off, len);
+    }
+
+    /**
+     * Let the policies rotate before the write that would take the segment over, like rfos, so a write always
+     * lands in the segment that was current when it started. {@link SegmentIndex} relies on that.
+     */
+    private void acceptWrite(int len) {
+        for (int i = 0; i < writeSensitivePolicies.size(); i++) {
+            writeSensitivePolicies.get(i).acceptWrite(current.length() + len);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        current.flush();
+    }
+
+    /**
+     * Closes the current segment and cancels the scheduled rotations. The pre-opened one is closed and deleted in
+     * the background, after the work on earlier segments.
+     */
+    @Override
+    public void close() throws IOException {
+        CompletableFuture<SegmentFile> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (ScheduledFuture<?> rotation : scheduled.values()) {
+                rotation.cancel(false);
+            }
+            scheduled.clear();
+            pending = next;
+            current.close();
+        }
+        if (pending != null) {
+            background(file, () -> {
+                closeNext(pending);
+                return null;
+            });
+        }
+    }
+
+    private void closeNext(CompletableFuture<SegmentFile> pending) throws IOException {
+        try {
+            pending.join().close();
+        } catch (CompletionException e) {
+            logger.atWarning().withCause(e.getCause()).log("Failed to open %s ahead of time", nextFile);
+        }
+        if (nextFile.exists() && !nextFile.delete()) {
+            logger.atWarning().log("Failed to delete %s", nextFile);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentedOutputStream{" + file + "}";
+    }
+}
@@ -0,0 +1,207 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToIntFunction;
+
+/**
+ * Checks the sequence numbers devices put on their radio frames, to tell how many frames we never saw. The last
+ * sequence for each device is kept in an {@link IntIntMap} from the device id to a dense index into primitive
+ * arrays, so checking a message allocates nothing once the device has been seen.
+ *
+ * <p>
+ * Sequence numbers count modulo {@code modulus}. Going from {@code last} to {@code next}, a step of 1 is in order
+ * and a step of 0 a duplicate. A step a little short of a full turn, within {@link #LATE_WINDOW}, is a frame that
+ * arrived late and doesn't move {@code last}. Any other step under half a turn is a gap, the frames in between
+ * were missed, and a step over half a turn is taken to be the device restarting its count.
+ *
+ * <p>
+ * {@link #check} is called from the {@link LogWriterPool} thread of the socket. The counts are published through
+ * an {@link AtomicLongArray} for the metrics readers.
+ */
+final class SequenceTracker<T> {
+    static final int RECEIVED = 0;
+    static final int MISSED = 1;
+    static final int GAPS = 2;
+    static final int DUPLICATES = 3;
+    static final int LATE = 4;
+    static final int RESETS = 5;
+    static final int WRAPS = 6;
+    private static final int STATS = 7;
+
+    private static final int LATE_WINDOW = 16;
+
+    @FunctionalInterface
+    interface Factory<T> {
+        /**
+         * @param markGaps also write a line to the log before a message that follows a gap
+         */
+        SequenceTracker<T> create(boolean markGaps);
+    }
+
+    private final ToIntFunction<T> device;
+    private final ToIntFunction<T> sequence;
+    private final int modulus;
+    private final int deviceDigits;
+    private final boolean markGaps;
+
+    // Only touched by the writer thread
+    private final IntIntMap indexes = new IntIntMap(64);
+    private int[] last = new int[64];
+
+    // Replaced when it grows, before count is raised to cover the new device
+    private volatile Devices devices = new Devices(64);
+    private volatile int count;
+
+    /**
+     * @param device the id of the device a message came from, -1 for messages to skip such as the ones the hub
+     *            sent
+     * @param deviceDigits hex digits to show device ids with
+     */
+    SequenceTracker(ToIntFunction<T> device, ToIntFunction<T> sequence, int modulus, int deviceDigits,
+            boolean markGaps) {
+        this.device = device;
+        this.sequence = sequence;
+        this.modulus = modulus;
+        this.deviceDigits = deviceDigits;
+        this.markGaps = markGaps;
+    }
+
+    /**
+     * Check the sequence of {@code msg}, appending a gap marker line to {@code out} if it follows a gap and
+     * markers are on.
+     */
+    void check(T msg, LogAppender out) {
+        int id = device.applyAsInt(msg);
+        if (id < 0) {
+            return;
+        }
+        int next = Math.floorMod(sequence.applyAsInt(msg), modulus);
+        int index = indexes.get(id, -1);
+        if (index < 0) {
+            add(id, next);
+            return;
+        }
+
+        Devices current = devices;
+        current.increment(index, RECEIVED, 1);
+        int previous = last[index];
+        int step = Math.floorMod(next - previous, modulus);
+        if (step == 1) {
+            if (next < previous) {
+                current.increment(index, WRAPS, 1);
+            }
+            last[index] = next;
+        } else if (step == 0) {
+            current.increment(index, DUPLICATES, 1);
+        } else if (step >= modulus - LATE_WINDOW) {
+            current.increment(index, LATE, 1);
+        } else if (step <= modulus / 2) {
+            int missed = step - 1;
+            current.increment(index, MISSED, missed);
+            current.increment(index, GAPS, 1);
+            if (next < previous) {
+                current.increment(index, WRAPS, 1);
+            }
+            last[index] = next;
+            if (markGaps) {
+                out.appendReceiveTimestamp(-23).append(" SEQUENCE GAP ").appendHex(id, deviceDigits).append(": ")
+                        .append(missed).append(" missed between ").appendZeroPadded(previous, 3).append(" and ")
+                        .appendZeroPadded(next, 3).newLine();
+            }
+        } else {
+            current.increment(index, RESETS, 1);
+            last[index] = next;
+        }
+    }
+
+    private void add(int id, int first) {
+        int index = indexes.size();
+        Devices current = devices;
+        if (index == current.ids.length) {
+            current = current.grow();
+            last = Arrays.copyOf(last, current.ids.length);
+            devices = current;
+        }
+        indexes.put(id, index);
+        current.ids[index] = id;
+        current.increment(index, RECEIVED, 1);
+        last[index] = first;
+        count = index + 1;
+    }
+
+    /**
+     * Devices seen so far, the ones below this index of {@link #devices()} are valid.
+     */
+    int deviceCount() {
+        return count;
+    }
+
+    /**
+     * Read {@link #deviceCount()} first, the devices seen by then are in this.
+     */
+    Devices devices() {
+        return devices;
+    }
+
+    int deviceDigits() {
+        return deviceDigits;
+    }
+
+    /**
+     * {@code stat} summed over every device.
+     */
+    long total(int stat) {
+        int n = count;
+        Devices current = devices;
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            total += current.get(i, stat);
+        }
+        return total;
+    }
+
+    static final class Devices {
+        private final int[] ids;
+        private final AtomicLongArray stats;
+
+        private Devices(int capacity) {
+            ids = new int[capacity];
+            stats = new AtomicLongArray(capacity * STATS);
+        }
+
+        private Devices grow() {
+            Devices grown = new Devices(ids.length * 2);
+            System.arraycopy(ids, 0, grown.ids, 0, ids.length);
+            for (int i = 0; i < stats.length(); i++) {
+                grown.stats.lazySet(i, stats.get(i));
+            }
+            return grown;
+        }
+
+        int id(int index) {
+            return ids[index];
+        }
+
+        long get(int index, int stat) {
+            return stats.get(index * STATS + stat);
+        }
+
+        /**
+         * Only ever called from the writer thread, so a plain read and an ordered write are enough.
+         */
+        private void increment(int index, int stat, long delta) {
+            int i = index * STATS + stat;
+            stats.lazySet(i, stats.get(i) + delta);
+        }
+
+        /**
+         * Share of the frames sent that were missed.
+         */
+        double lossRatio(int index) {
+            long missed = get(index, MISSED);
+            long total = get(index, RECEIVED) + missed;
+            return total == 0 ? 0 : (double) missed / total;
+        }
+    }
+}
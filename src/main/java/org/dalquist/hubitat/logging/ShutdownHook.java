@@ -9,18 +9,24 @@ import com.google.common.flogger.FluentLogger;
 final class ShutdownHook extends Thread {
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
-    private ImmutableSet<WebSocketLogger<?>> loggers;
+    private ImmutableSet<WebSocketLogger> loggers;
+    private final MetricsRegistry metrics;
 
-    ShutdownHook(WebSocketLogger<?>... loggers) {
-        this.loggers = ImmutableSet.copyOf(loggers);
-    }
-
-    ShutdownHook(Collection<WebSocketLogger<?>> loggers) {
+    ShutdownHook(Collection<WebSocketLogger> loggers, MetricsRegistry metrics) {
         this.loggers = ImmutableSet.copyOf(loggers);
+        this.metrics = metrics;
     }
 
     @Override
     public void run() {
+        logger.atInfo().log("Flushing %s Loggers", loggers.size());
+        loggers.forEach(l -> {
+            if (!l.flush(5, TimeUnit.SECONDS)) {
+                logger.atWarning().log("Timed out flushing %s", l);
+            }
+        });
+        metrics.reportLatencies();
+
         logger.atInfo().log("Disconnecting %s Loggers", loggers.size());
         loggers.forEach(WebSocketLogger::disconnect);
         loggers.forEach(l -> {
@@ -31,5 +37,11 @@ final class ShutdownHook extends Thread {
                 throw new RuntimeException(e);
             }
         });
+        try {
+            SegmentedOutputStream.awaitBackground(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and timings for one hub socket. Counters the WebSocket thread touches are {@link LongAdder}s and
+ * timings are lock-free {@link Histogram}s, so recording never contends with readers.
+ */
+final class SocketMetrics implements SocketMetricsMXBean {
+    private final String hub;
+    private final String socket;
+
+    // Recorded by the WebSocket thread
+    final LongAdder messages = new LongAdder();
+    // Frame length in chars, the same as bytes for the ASCII JSON the hub sends
+    final LongAdder bytes = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    // Also by the writer thread while its log can't be written
+    final LongAdder spilledFrames = new LongAdder();
+
+    // Recorded by the writer thread
+    final LongAdder parseFailures = new LongAdder();
+    final LongAdder suppressedRepeats = new LongAdder();
+    final LongAdder routedLines = new LongAdder();
+    final LongAdder routeFileOpens = new LongAdder();
+    final Histogram parseNanos = new Histogram();
+    final Histogram formatNanos = new Histogram();
+    final Histogram writeNanos = new Histogram();
+    final Histogram commitNanos = new Histogram();
+    // Hub timestamp to receipt, only for sockets whose messages carry a hub time. Skewed by any difference
+    // between the hub's clock and ours.
+    final Histogram hubToReceiveNanos = new Histogram();
+    // Receipt to the line being committed to the log file
+    final Histogram receiveToDiskNanos = new Histogram();
+
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile LongSupplier dropped = () -> 0;
+    private volatile LongSupplier spillBacklog = () -> 0;
+    private volatile BooleanSupplier connected = () -> false;
+    // Null for sockets whose messages have no sequence numbers
+    private volatile SequenceTracker<?> sequences;
+
+    // Updated by tick()
+    private long lastTickNanos = System.nanoTime();
+    private long lastMessages;
+    private long lastBytes;
+    private volatile double messagesPerSecond;
+    private volatile double bytesPerSecond;
+
+    SocketMetrics(String hub, String socket) {
+        this.hub = hub;
+        this.socket = socket;
+    }
+
+    /**
+     * Read gauges from the writer and socket they describe.
+     */
+    void bind(IntSupplier queueDepth, LongSupplier dropped, LongSupplier spillBacklog, BooleanSupplier connected) {
+        this.queueDepth = queueDepth;
+        this.dropped = dropped;
+        this.spillBacklog = spillBacklog;
+        this.connected = connected;
+    }
+
+    /**
+     * Report the sequence checks of the socket's writer.
+     */
+    void bindSequences(SequenceTracker<?> sequences) {
+        this.sequences = sequences;
+    }
+
+    SequenceTracker<?> sequences() {
+        return sequences;
+    }
+
+    private long sequenceTotal(int stat) {
+        SequenceTracker<?> current = sequences;
+        return current == null ? 0 : current.total(stat);
+    }
+
+    /**
+     * Recompute the rates from the counters, called periodically by {@link MetricsRegistry}.
+     */
+    synchronized void tick(long nowNanos) {
+        double seconds = (nowNanos - lastTickNanos) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        long currentMessages = messages.sum();
+        long currentBytes = bytes.sum();
+        messagesPerSecond = (currentMessages - lastMessages) / seconds;
+        bytesPerSecond = (currentBytes - lastBytes) / seconds;
+        lastMessages = currentMessages;
+        lastBytes = currentBytes;
+        lastTickNanos = nowNanos;
+    }
+
+    @Override
+    public String getHub() {
+        return hub;
+    }
+
+    @Override
+    public String getSocket() {
+        return socket;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected.getAsBoolean();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getParseFailures() {
+        return parseFailures.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.getAsLong();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getSpilledFrames() {
+        return spilledFrames.sum();
+    }
+
+    @Override
+    public long getSpillBacklogBytes() {
+        return spillBacklog.getAsLong();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getSuppressedRepeats() {
+        return suppressedRepeats.sum();
+    }
+
+    @Override
+    public long getRoutedLines() {
+        return routedLines.sum();
+    }
+
+    @Override
+    public long getRouteFileOpens() {
+        return routeFileOpens.sum();
+    }
+
+    @Override
+    public long getSequenceMissed() {
+        return sequenceTotal(SequenceTracker.MISSED);
+    }
+
+    @Override
+    public long getSequenceGaps() {
+        return sequenceTotal(SequenceTracker.GAPS);
+    }
+
+    @Override
+    public long getSequenceDuplicates() {
+        return sequenceTotal(SequenceTracker.DUPLICATES);
+    }
+
+    @Override
+    public long getSequenceLate() {
+        return sequenceTotal(SequenceTracker.LATE);
+    }
+
+    @Override
+    public long getSequenceResets() {
+        return sequenceTotal(SequenceTracker.RESETS);
+    }
+
+    @Override
+    public LatencySummary getParseTime() {
+        return new LatencySummary(parseNanos.snapshot());
+    }
+
+    @Override
+    public LatencySummary getFormatTime() {
+        return new LatencySummary(formatNanos.snapshot());
+    }
+
+    @Override
+    public LatencySummary getWriteTime() {
+        return new LatencySummary(writeNanos.snapshot());
+    }
+
+    @Override
+    public LatencySummary getCommitTime() {
+        return new LatencySummary(commitNanos.snapshot());
+    }
+
+    @Override
+    public LatencySummary getHubToReceiveLatency() {
+        return new LatencySummary(hubToReceiveNanos.snapshot());
+    }
+
+    @Override
+    public LatencySummary getReceiveToDiskLatency() {
+        return new LatencySummary(receiveToDiskNanos.snapshot());
+    }
+}
@@ -0,0 +1,79 @@
+package org.dalquist.hubitat.logging;
+
+/**
+ * JMX view of a {@link SocketMetrics}. Rates are averaged over the last {@link MetricsRegistry} tick.
+ */
+public interface SocketMetricsMXBean {
+    String getHub();
+
+    String getSocket();
+
+    boolean isConnected();
+
+    long getMessages();
+
+    long getBytes();
+
+    double getMessagesPerSecond();
+
+    double getBytesPerSecond();
+
+    long getParseFailures();
+
+    long getDropped();
+
+    int getQueueDepth();
+
+    /**
+     * Frames written to the --spill_dir spill because the queue was full or the log couldn't be written.
+     */
+    long getSpilledFrames();
+
+    /**
+     * Bytes of spilled frames not yet written to the log.
+     */
+    long getSpillBacklogBytes();
+
+    long getReconnects();
+
+    /**
+     * Messages left out of the log for repeating the one before from the same device, see --repeat_window_s.
+     */
+    long getSuppressedRepeats();
+
+    /**
+     * Lines also written to a --route file, once for each file.
+     */
+    long getRoutedLines();
+
+    /**
+     * Times a --route file was opened, climbing steadily when there are more than --route_open_files in use.
+     */
+    long getRouteFileOpens();
+
+    /**
+     * Frames devices sent that never arrived, going by their sequence numbers. Only for sockets whose messages
+     * carry one, summed over the devices.
+     */
+    long getSequenceMissed();
+
+    long getSequenceGaps();
+
+    long getSequenceDuplicates();
+
+    long getSequenceLate();
+
+    long getSequenceResets();
+
+    LatencySummary getParseTime();
+
+    LatencySummary getFormatTime();
+
+    LatencySummary getWriteTime();
+
+    LatencySummary getCommitTime();
+
+    LatencySummary getHubToReceiveLatency();
+
+    LatencySummary getReceiveToDiskLatency();
+}
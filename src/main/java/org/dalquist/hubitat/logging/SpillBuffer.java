@@ -0,0 +1,394 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Frames a {@link LogWriter} couldn't take, kept on disk until it can. The WebSocket thread appends here when the
+ * frame queue is full, and the writer thread moves the queue here while the log can't be written. Once a frame is
+ * here the rest follow it until the writer thread has drained them back through the log, so frames are still
+ * written in the order they arrived.
+ *
+ * <p>
+ * The file is {@link #MAGIC}, the offset of the first frame not yet drained and a generation, then one record per
+ * frame: the length of the UTF-8 frame, the CRC32 of the generation and the rest of the record, the receive time in
+ * epoch millis, then the frame. It is pre-allocated to its full size when opened so a full volume can't stop it
+ * later, the first record that fails its CRC is the end. Once drained the file is reused from the start in the next
+ * generation, so records left from the one before never check out. Frames still in it when the process stopped are
+ * drained first the next time it is opened.
+ *
+ * <p>
+ * {@link #offer} is called from the WebSocket thread, everything else from the {@link LogWriterPool} thread.
+ */
+final class SpillBuffer implements Closeable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    static final String SUFFIX = ".spill";
+    static final byte[] MAGIC = "HUBSPL01".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int HEADER_BYTES = MAGIC.length + 8 + 8;
+    // Length, CRC and receive time
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 8;
+
+    @FunctionalInterface
+    interface Opener {
+        SpillBuffer open() throws IOException;
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final long capacity;
+    private final SocketMetrics metrics;
+
+    // Guarded by this, the append position and whether frames go here rather than to the queue
+    private long writePosition;
+    private long generation;
+    private volatile boolean spilling;
+    // Set once the spill failed or was closed, it takes no more frames
+    private volatile boolean closed;
+
+    // Writer thread only
+    private long readPosition;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private final CRC32 readCrc = new CRC32();
+
+    // Guarded by this
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+    private final CRC32 writeCrc = new CRC32();
+
+    private SpillBuffer(File file, FileChannel channel, long capacity, SocketMetrics metrics, long readPosition,
+            long generation) {
+        this.file = file;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.metrics = metrics;
+        this.readPosition = readPosition;
+        this.writePosition = readPosition;
+        this.generation = generation;
+    }
+
+    /**
+     * Open {@code file}, holding at most {@code capacity} bytes of frames, and pick up any it still holds.
+     */
+    static SpillBuffer open(File file, long capacity, SocketMetrics metrics) throws IOException {
+        if (capacity < HEADER_BYTES + RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("Invalid spill size: " + capacity);
+        }
+        Files.createDirectories(file.toPath().getParent());
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            long readPosition = HEADER_BYTES;
+            long generation = 0;
+            if (!header.hasRemaining()
+                    && Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)) {
+                readPosition = header.getLong(MAGIC.length);
+                generation = header.getLong(MAGIC.length + 8);
+                if (readPosition < HEADER_BYTES || readPosition > capacity) {
+                    readPosition = HEADER_BYTES;
+                    generation++;
+                }
+            } else {
+                channel.truncate(0);
+            }
+            writeHeader(channel, readPosition, generation);
+            SegmentFile.zeroFill(channel, channel.size(), capacity);
+
+            SpillBuffer spill = new SpillBuffer(file, channel, capacity, metrics, readPosition, generation);
+            spill.writePosition = spill.recover();
+            if (spill.writePosition > readPosition) {
+                spill.spilling = true;
+                logger.atWarning().log("%s holds %s byte(s) of frames from before, writing them to the log first",
+                        file, spill.writePosition - readPosition);
+            }
+            return spill;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Where the valid records from the drained position end.
+     */
+    private long recover() throws IOException {
+        long position = readPosition;
+        while (readRecord(position) != null) {
+            position += RECORD_HEADER_BYTES + readBuffer.getInt(0);
+        }
+        return position;
+    }
+
+    private static void writeHeader(FileChannel channel, long readPosition, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).put(MAGIC).putLong(readPosition).putLong(generation)
+                .flip();
+        while (header.hasRemaining()) {
+            channel.write(header, HEADER_BYTES - header.remaining());
+        }
+    }
+
+    /**
+     * True while there are frames here that haven't been drained.
+     */
+    boolean isSpilling() {
+        return spilling;
+    }
+
+    /**
+     * False once the spill failed or was closed.
+     */
+    boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Queue the frame if nothing is here and there is room in {@code frames}, else append it here. Returns false if
+     * it was neither, because the spill is full, failing or closed.
+     */
+    synchronized boolean offer(FrameRingBuffer frames, String message, long receivedMillis, long receivedNanos) {
+        if (closed) {
+            return false;
+        }
+        if (!spilling && frames.offerIfRoom(message, receivedMillis, receivedNanos)) {
+            return true;
+        }
+        return append(message, receivedMillis);
+    }
+
+    /**
+     * Move the frames queued in {@code frames} here, ahead of any the WebSocket thread offers after. Stops if the
+     * spill fills up, leaving the rest queued.
+     */
+    synchronized void takeQueued(FrameRingBuffer frames, Frame frame) {
+        for (long sequence; (sequence = frames.peek(frame)) >= 0; frames.remove(sequence)) {
+            if (!append(frame.message, frame.receivedMillis)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move the frames queued in {@code frames} here ahead of those already spilled, for when the log fails with
+     * both. Once anything is spilled new frames only go to the queue when the spill is full, so unless it filled up
+     * the queued ones arrived first. Stops if the spill fills up, leaving the rest queued.
+     */
+    synchronized void takeQueuedAhead(FrameRingBuffer frames, Frame frame) {
+        if (writePosition == readPosition) {
+            takeQueued(frames, frame);
+            return;
+        }
+        ByteBuffer records = ByteBuffer.allocate(1024);
+        int taken = 0;
+        for (long sequence; (sequence = frames.peek(frame)) >= 0; frames.remove(sequence)) {
+            int length = encode(frame.message, frame.receivedMillis);
+            if (writePosition + records.position() + length > capacity) {
+                logger.atWarning().atMostEvery(60, TimeUnit.SECONDS).log("%s is full", file);
+                break;
+            }
+            if (records.remaining() < length) {
+                records = ByteBuffer.allocate(Math.max(records.position() + length, records.capacity() * 2))
+                        .put(records.flip());
+            }
+            records.put(writeBuffer);
+            taken++;
+        }
+        if (taken == 0) {
+            return;
+        }
+        records.flip();
+        int length = records.remaining();
+        try {
+            if (readPosition - HEADER_BYTES >= length) {
+                // Room before the spilled frames from draining them, and moving the read position back is a single
+                // header write
+                writeFully(records, readPosition - length);
+                readPosition -= length;
+                writeHeader(channel, readPosition, generation);
+            } else {
+                // Make room by moving the spilled frames along, from the end so nothing is overwritten before it
+                // is copied. A crash part way through can leave frames repeated or cut short.
+                ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+                for (long end = writePosition; end > readPosition;) {
+                    long start = Math.max(readPosition, end - chunk.capacity());
+                    chunk.clear().limit((int) (end - start));
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, start + chunk.position()) < 0) {
+                            throw new IOException("Unexpected end of " + file);
+                        }
+                    }
+                    writeFully(chunk.flip(), start + length);
+                    end = start;
+                }
+                writeFully(records, readPosition);
+                writePosition += length;
+            }
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to write to %s, lost %s queued frame(s)", file, taken);
+            return;
+        }
+        spilling = true;
+        metrics.spilledFrames.add(taken);
+    }
+
+    private boolean append(String message, long receivedMillis) {
+        int length = encode(message, receivedMillis);
+        if (writePosition + length > capacity) {
+            logger.atWarning().atMostEvery(60, TimeUnit.SECONDS).log("%s is full", file);
+            return false;
+        }
+        try {
+            writeFully(writeBuffer, writePosition);
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).atMostEvery(60, TimeUnit.SECONDS).log("Failed to write to %s", file);
+            return false;
+        }
+        writePosition += length;
+        spilling = true;
+        metrics.spilledFrames.increment();
+        return true;
+    }
+
+    /**
+     * Fill {@link #writeBuffer} with the record for a frame, returns its length.
+     */
+    private int encode(String message, long receivedMillis) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER_BYTES + bytes.length;
+        if (writeBuffer.capacity() < length) {
+            writeBuffer = ByteBuffer.allocate(Math.max(length, writeBuffer.capacity() * 2));
+        }
+        writeCrc.reset();
+        updateGeneration(writeCrc, generation);
+        writeBuffer.clear().putInt(bytes.length).putInt(0).putLong(receivedMillis).put(bytes).flip();
+        writeCrc.update(writeBuffer.array(), 8, length - 8);
+        writeBuffer.putInt(4, (int) writeCrc.getValue());
+        return length;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Bytes of frames not yet drained.
+     */
+    synchronized long backlog() {
+        return closed ? 0 : writePosition - readPosition;
+    }
+
+    /**
+     * Read the oldest frame not yet drained into {@code into}, false if there is none. Its receive nanos is made
+     * up from its age, so the latency metrics include the time it was spilled for, even across a restart.
+     */
+    boolean poll(Frame into) throws IOException {
+        long end;
+        synchronized (this) {
+            end = writePosition;
+        }
+        if (readPosition >= end) {
+            return false;
+        }
+        ByteBuffer record = readRecord(readPosition);
+        if (record == null) {
+            logger.atSevere().log("Corrupt frame at %s of %s, dropping %s byte(s) of frames", readPosition, file,
+                    end - readPosition);
+            readPosition = end;
+            return false;
+        }
+        int length = record.getInt(0);
+        into.receivedMillis = record.getLong(8);
+        into.receivedNanos = System.nanoTime()
+                - TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - into.receivedMillis));
+        into.message = new String(record.array(), RECORD_HEADER_BYTES, length, StandardCharsets.UTF_8);
+        readPosition += RECORD_HEADER_BYTES + length;
+        return true;
+    }
+
+    /**
+     * The record at {@code position} in {@link #readBuffer}, or null if there isn't a valid one.
+     */
+    private ByteBuffer readRecord(long position) throws IOException {
+        if (position + RECORD_HEADER_BYTES > capacity) {
+            return null;
+        }
+        readBuffer.clear().limit(RECORD_HEADER_BYTES);
+        readFully(position);
+        int length = readBuffer.getInt(0);
+        if (length <= 0 || position + RECORD_HEADER_BYTES + length > capacity) {
+            return null;
+        }
+        if (readBuffer.capacity() < RECORD_HEADER_BYTES + length) {
+            readBuffer = ByteBuffer.allocate(Math.max(RECORD_HEADER_BYTES + length, readBuffer.capacity() * 2));
+        }
+        readBuffer.clear().limit(RECORD_HEADER_BYTES + length);
+        readFully(position);
+        readCrc.reset();
+        synchronized (this) {
+            updateGeneration(readCrc, generation);
+        }
+        readCrc.update(readBuffer.array(), 8, 8 + length);
+        return (int) readCrc.getValue() == readBuffer.getInt(4) ? readBuffer : null;
+    }
+
+    private static void updateGeneration(CRC32 crc, long generation) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (generation >>> shift));
+        }
+    }
+
+    private void readFully(long position) throws IOException {
+        while (readBuffer.hasRemaining()) {
+            if (channel.read(readBuffer, position + readBuffer.position()) < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record how far the frames have been drained, called once those polled are in the log. Once everything is
+     * drained new frames go back to the queue and the file is reused from the start.
+     */
+    void drained() throws IOException {
+        long generation;
+        synchronized (this) {
+            if (readPosition >= writePosition) {
+                readPosition = HEADER_BYTES;
+                writePosition = HEADER_BYTES;
+                this.generation++;
+                spilling = false;
+                // Appends in the new generation wait for it to be recorded
+                writeHeader(channel, readPosition, this.generation);
+                return;
+            }
+            generation = this.generation;
+        }
+        writeHeader(channel, readPosition, generation);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        spilling = false;
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
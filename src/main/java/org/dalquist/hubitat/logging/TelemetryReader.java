@@ -0,0 +1,355 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.devtools.common.options.OptionsParser;
+
+/**
+ * Scans the {@link TelemetryWriter} files of one socket and prints, per device, the records in a time range and
+ * the min, mean and max of each column.
+ *
+ * <pre>
+ * java -cp hubitat-logging.jar org.dalquist.hubitat.logging.TelemetryReader -s zwaveLogsocket \
+ *     --from 2021-05-29T00:00 --to 2021-05-30T00:00 --columns tx_ms,rssi
+ * </pre>
+ *
+ * <p>
+ * Files are mapped a window at a time and walked block by block. A block whose time range misses the query is
+ * skipped on its header alone, as are the columns of a block that weren't asked for, so a query only decodes the
+ * bytes it needs. Reading stops at a block cut short at the end of a file, the one being written.
+ */
+public final class TelemetryReader {
+    // Blocks are scanned through mappings of at most this much of a file at a time
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final String DEVICE = "device";
+
+    /**
+     * Receives the records of each block in the range. The arrays are reused for the next block.
+     */
+    interface Visitor {
+        /**
+         * @param times the epoch millis of the first {@code count} records
+         * @param values for each requested column, its value for the first {@code count} records,
+         *            {@link TelemetryWriter#NONE} where a record doesn't have one
+         */
+        void visit(int count, long[] times, int[][] values);
+    }
+
+    private final long fromMillis;
+    private final long toMillis;
+    private final List<String> columns;
+
+    private long[] times = new long[0];
+    private int[][] values = new int[0][];
+
+    /**
+     * @param columns the columns to decode for the visitor, in the order it gets them
+     */
+    TelemetryReader(LocalDateTime from, LocalDateTime to, List<String> columns) {
+        ZoneId zone = ZoneId.systemDefault();
+        this.fromMillis = from == null ? Long.MIN_VALUE : from.atZone(zone).toInstant().toEpochMilli();
+        this.toMillis = to == null ? Long.MAX_VALUE : to.atZone(zone).toInstant().toEpochMilli();
+        this.columns = List.copyOf(columns);
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptionsParser parser = OptionsParser.newOptionsParser(TelemetryReaderOptions.class);
+        parser.parseAndExitUponError(args);
+        TelemetryReaderOptions options = parser.getOptions(TelemetryReaderOptions.class);
+
+        LocalDateTime from = options.from.isEmpty() ? null : LocalDateTime.parse(options.from);
+        LocalDateTime to = options.to.isEmpty() ? null : LocalDateTime.parse(options.to);
+        List<File> files = files(new File(options.logDir, "telemetry"), options.socket);
+        if (files.isEmpty()) {
+            System.err.println("No telemetry for " + options.socket + " in " + options.logDir);
+            return;
+        }
+
+        List<String> requested = new ArrayList<>(options.columns);
+        if (requested.isEmpty()) {
+            requested.addAll(columnNames(files.get(files.size() - 1)));
+            requested.remove(TelemetryWriter.TIME);
+        }
+        // Decoded first to group by, only summarized if asked for
+        boolean summarizeDevice = requested.remove(DEVICE);
+        requested.add(0, DEVICE);
+
+        Summary summary = new Summary(requested.size(), summarizeDevice ? 0 : 1);
+        TelemetryReader reader = new TelemetryReader(from, to, requested);
+        for (File file : files) {
+            reader.read(file, summary);
+        }
+        summary.print(requested);
+    }
+
+    /**
+     * The socket's telemetry files, oldest first.
+     */
+    static List<File> files(File dir, String socket) {
+        File[] files = dir.listFiles(
+                (parent, name) -> name.startsWith(socket + "-") && name.endsWith(TelemetryWriter.SUFFIX));
+        if (files == null) {
+            return List.of();
+        }
+        // Named by day, so that is the order they were written in
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * The columns of a file, the time first.
+     */
+    static List<String> columnNames(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), TelemetryWriter.MAGIC.length + 1 + 256 * 256));
+            return readHeader(map, file);
+        }
+    }
+
+    private static List<String> readHeader(ByteBuffer map, File file) throws IOException {
+        byte[] magic = new byte[TelemetryWriter.MAGIC.length];
+        if (map.remaining() < magic.length + 1) {
+            throw new IOException(file + " is not a telemetry file");
+        }
+        map.get(magic);
+        if (!Arrays.equals(magic, TelemetryWriter.MAGIC)) {
+            throw new IOException(file + " is not a telemetry file");
+        }
+        int count = map.get() & 0xff;
+        List<String> names = new ArrayList<>(count);
+        for (int c = 0; c < count; c++) {
+            int length = map.hasRemaining() ? map.get() & 0xff : -1;
+            if (length < 0 || map.remaining() < length) {
+                throw new IOException(file + " has a truncated header");
+            }
+            byte[] name = new byte[length];
+            map.get(name);
+            names.add(new String(name, StandardCharsets.US_ASCII));
+        }
+        return names;
+    }
+
+    /**
+     * Pass the records of one file in the time range to the visitor, a block at a time.
+     */
+    void read(File file, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(MAP_WINDOW, size));
+            List<String> names = readHeader(window, file);
+            // Where each requested column is in the file's, -1 for one it doesn't have
+            int[] sources = new int[columns.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = names.indexOf(columns.get(i));
+            }
+            int headerBytes = TelemetryWriter.blockHeaderBytes(names.size());
+
+            long windowStart = 0;
+            int position = window.position();
+            while (true) {
+                if (window.limit() - position >= headerBytes
+                        && window.getInt(position) != TelemetryWriter.BLOCK_MAGIC) {
+                    throw new IOException("No telemetry block at " + (windowStart + position) + " of " + file);
+                }
+                long end = windowStart + window.limit();
+                if (window.limit() - position < blockLength(window, position, names.size())) {
+                    if (end == size) {
+                        // Cut short at the end of the file, still being written or left by a crash
+                        return;
+                    }
+                    if (position == 0) {
+                        throw new IOException("Block longer than " + MAP_WINDOW + " bytes at " + windowStart);
+                    }
+                    windowStart += position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                            Math.min(MAP_WINDOW, size - windowStart));
+                    position = 0;
+                    continue;
+                }
+                readBlock(window, position, names.size(), sources, visitor);
+                position += blockLength(window, position, names.size());
+            }
+        }
+    }
+
+    /**
+     * The block header and columns, or past the end of the window for a header that doesn't fit it.
+     */
+    private static long blockLength(ByteBuffer window, int position, int columns) {
+        int headerBytes = TelemetryWriter.blockHeaderBytes(columns);
+        if (window.limit() - position < headerBytes) {
+            return Long.MAX_VALUE;
+        }
+        long length = headerBytes;
+        for (int c = 0; c < columns; c++) {
+            length += window.getInt(position + 24 + 4 * c);
+        }
+        return length;
+    }
+
+    private void readBlock(ByteBuffer window, int position, int columnCount, int[] sources, Visitor visitor) {
+        int count = window.getInt(position + 4);
+        long lowest = window.getLong(position + 8);
+        long highest = window.getLong(position + 16);
+        if (highest < fromMillis || lowest >= toMillis || count == 0) {
+            return;
+        }
+        if (times.length < count) {
+            times = new long[count];
+            values = new int[columns.size()][count];
+        } else if (values.length != columns.size()) {
+            values = new int[columns.size()][times.length];
+        }
+
+        // Column offsets within the block from the lengths in its header
+        int[] starts = new int[columnCount];
+        int start = position + TelemetryWriter.blockHeaderBytes(columnCount);
+        for (int c = 0; c < columnCount; c++) {
+            starts[c] = start;
+            start += window.getInt(position + 24 + 4 * c);
+        }
+
+        window.position(starts[0]);
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            time += unZigZag(getVarint(window));
+            times[i] = time;
+        }
+        for (int v = 0; v < sources.length; v++) {
+            int[] column = values[v];
+            if (sources[v] < 0) {
+                Arrays.fill(column, 0, count, TelemetryWriter.NONE);
+                continue;
+            }
+            window.position(starts[sources[v]]);
+            long stored = 0;
+            for (int i = 0; i < count; i++) {
+                stored += unZigZag(getVarint(window));
+                column[i] = TelemetryWriter.load(stored);
+            }
+        }
+
+        if (lowest < fromMillis || highest >= toMillis) {
+            count = inRange(count);
+        }
+        if (count > 0) {
+            visitor.visit(count, times, values);
+        }
+    }
+
+    /**
+     * Move the records in the time range to the front, returning how many there are.
+     */
+    private int inRange(int count) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (times[i] < fromMillis || times[i] >= toMillis) {
+                continue;
+            }
+            times[kept] = times[i];
+            for (int[] column : values) {
+                column[kept] = column[i];
+            }
+            kept++;
+        }
+        return kept;
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Records and, per column, the values present and their min, sum and max for each device, the first column.
+     */
+    private static final class Summary implements Visitor {
+        private static final int STATS = 4;
+
+        private final Map<Integer, long[]> devices = new TreeMap<>();
+        private final int columns;
+        private final int firstSummarized;
+
+        Summary(int columns, int firstSummarized) {
+            this.columns = columns;
+            this.firstSummarized = firstSummarized;
+        }
+
+        @Override
+        public void visit(int count, long[] times, int[][] values) {
+            for (int i = 0; i < count; i++) {
+                long[] stats = devices.computeIfAbsent(values[0][i], device -> newStats());
+                stats[0]++;
+                for (int c = 0; c < columns; c++) {
+                    int value = values[c][i];
+                    if (value == TelemetryWriter.NONE) {
+                        continue;
+                    }
+                    int at = 1 + STATS * c;
+                    stats[at]++;
+                    stats[at + 1] = Math.min(stats[at + 1], value);
+                    stats[at + 2] += value;
+                    stats[at + 3] = Math.max(stats[at + 3], value);
+                }
+            }
+        }
+
+        private long[] newStats() {
+            long[] stats = new long[1 + STATS * columns];
+            for (int c = 0; c < columns; c++) {
+                stats[2 + STATS * c] = Long.MAX_VALUE;
+                stats[4 + STATS * c] = Long.MIN_VALUE;
+            }
+            return stats;
+        }
+
+        /**
+         * A line per device, each column as {@code <name>=<values>:<min>/<mean>/<max>} like the radio health
+         * files, and left out if no record had it.
+         */
+        void print(List<String> names) {
+            StringBuilder line = new StringBuilder();
+            for (Map.Entry<Integer, long[]> device : devices.entrySet()) {
+                long[] stats = device.getValue();
+                line.setLength(0);
+                line.append(Integer.toHexString(device.getKey()).toUpperCase()).append(" records=").append(stats[0]);
+                for (int c = firstSummarized; c < columns; c++) {
+                    int at = 1 + STATS * c;
+                    if (stats[at] == 0) {
+                        continue;
+                    }
+                    line.append(' ').append(names.get(c)).append('=').append(stats[at]).append(':')
+                            .append(stats[at + 1]).append('/')
+                            .append(String.format("%.1f", (double) stats[at + 2] / stats[at])).append('/')
+                            .append(stats[at + 3]);
+                }
+                System.out.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.List;
+
+import com.google.devtools.common.options.Converters;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+public final class TelemetryReaderOptions extends OptionsBase {
+    @Option(name = "logdir", abbrev = 'd', help = "Directory the socket logs are in, the hub's sub-directory when logging several hubs. Telemetry is read from its telemetry sub-directory.", defaultValue = "/Users/edalquist/tmp/")
+    public String logDir;
+
+    @Option(name = "socket", abbrev = 's', help = "Socket to read the telemetry of, e.g. zwaveLogsocket.", defaultValue = "zwaveLogsocket")
+    public String socket;
+
+    @Option(name = "from", abbrev = 'f', help = "Start of the range (inclusive), local time as yyyy-MM-ddTHH:mm[:ss[.SSS]]. Empty for the start of the telemetry.", defaultValue = "")
+    public String from;
+
+    @Option(name = "to", abbrev = 't', help = "End of the range (exclusive), local time as yyyy-MM-ddTHH:mm[:ss[.SSS]]. Empty for the end of the telemetry.", defaultValue = "")
+    public String to;
+
+    @Option(name = "columns", abbrev = 'c', help = "Comma separated columns to summarize per device, empty for all of them.", defaultValue = "", converter = Converters.CommaSeparatedOptionListConverter.class)
+    public List<String> columns;
+}
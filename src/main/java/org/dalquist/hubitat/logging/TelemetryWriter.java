@@ -0,0 +1,336 @@
+package org.dalquist.hubitat.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Writes the numeric fields of a radio socket's messages to {@code <dir>/<socket>-<yyyyMMdd>.tel}, a compact
+ * column store for bulk analysis that {@link TelemetryReader} scans, instead of reparsing the text logs.
+ *
+ * <p>
+ * A file starts with {@link #MAGIC}, the number of columns and their names, each a length byte and ASCII. Then
+ * come blocks of up to {@code blockRecords} messages, each with a header of {@link #BLOCK_MAGIC}, the record count,
+ * the lowest and highest time in it and the encoded length of every column, then the columns one after the other.
+ * The first column is the message time in epoch millis, the hub's time if the messages have one, the rest are
+ * ints. Every column holds the zig-zag varint of each value's difference from the one before it, so slowly changing
+ * values such as times, sequence numbers and device ids mostly take a byte. An int that isn't negative is stored
+ * plus one, leaving 0 for {@link #NONE}, a value the message didn't have. All numbers in headers are big-endian.
+ *
+ * <p>
+ * A block is written once it is full or its first record has waited {@code flushMillis}, to the file for the day
+ * of its first record. A block cut short by a crash is truncated away when the file is next opened.
+ *
+ * <p>
+ * Not thread safe, called from the {@link LogWriterPool} thread of the socket.
+ */
+final class TelemetryWriter<T> implements MessageSink<T> {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    static final byte[] MAGIC = "HTEL2\n".getBytes(StandardCharsets.US_ASCII);
+    static final int BLOCK_MAGIC = 0x424c4b31;
+    static final String SUFFIX = ".tel";
+    static final String TIME = "time";
+    /** Returned by a column for a message that doesn't have a value for it. */
+    static final int NONE = RadioHealth.NONE;
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    /**
+     * The columns of a socket's messages.
+     */
+    static final class Spec<T> {
+        private final Function<T, LocalDateTime> hubTime;
+        private final List<String> names = new ArrayList<>();
+        private final List<ToIntFunction<T>> columns = new ArrayList<>();
+
+        /**
+         * @param hubTime the hub's timestamp for a message, in the local zone, or null to use the receive time
+         */
+        Spec(Function<T, LocalDateTime> hubTime) {
+            this.hubTime = hubTime;
+        }
+
+        Spec<T> column(String name, ToIntFunction<T> value) {
+            if (name.equals(TIME) || names.contains(name) || name.isEmpty() || name.length() > 255) {
+                throw new IllegalArgumentException("Invalid telemetry column: " + name);
+            }
+            names.add(name);
+            columns.add(value);
+            return this;
+        }
+
+        /**
+         * @param retention tracks the day files for retention, or null
+         */
+        TelemetryWriter<T> create(File dir, String socket, int blockRecords, long flushMillis,
+                RetentionManager retention) {
+            return new TelemetryWriter<>(this, dir, socket, blockRecords, flushMillis, retention);
+        }
+    }
+
+    private final Spec<T> spec;
+    private final File dir;
+    private final String socket;
+    private final long flushMillis;
+    private final RetentionManager retention;
+    private final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+    private final List<ToIntFunction<T>> columns;
+    private final byte[] fileHeader;
+
+    private final long[] times;
+    private final int[][] values;
+    private final int[] lengths;
+    private final ByteBuffer block;
+    private int count;
+    private long firstPendingMillis;
+
+    private FileChannel file;
+    private String fileDay;
+    // The day file last opened, kept when it is closed after an error
+    private File path;
+
+    private TelemetryWriter(Spec<T> spec, File dir, String socket, int blockRecords, long flushMillis,
+            RetentionManager retention) {
+        if (blockRecords < 1) {
+            throw new IllegalArgumentException("Invalid telemetry block size: " + blockRecords);
+        }
+        this.spec = spec;
+        this.dir = dir;
+        this.socket = socket;
+        this.flushMillis = flushMillis;
+        this.retention = retention;
+        this.columns = List.copyOf(spec.columns);
+        this.fileHeader = fileHeader(spec.names);
+        this.times = new long[blockRecords];
+        this.values = new int[columns.size()][blockRecords];
+        this.lengths = new int[columns.size() + 1];
+        // Room for every value taking a full varint
+        this.block = ByteBuffer.allocate(
+                blockHeaderBytes(columns.size() + 1) + blockRecords * (10 + 10 * columns.size()));
+        if (retention != null) {
+            retention.register(new File(dir, socket + SUFFIX));
+        }
+    }
+
+    private static byte[] fileHeader(List<String> names) {
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1 + names.size() * 256);
+        header.put(MAGIC).put((byte) (names.size() + 1));
+        putName(header, TIME);
+        for (String name : names) {
+            putName(header, name);
+        }
+        return Arrays.copyOf(header.array(), header.position());
+    }
+
+    private static void putName(ByteBuffer header, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        header.put((byte) bytes.length).put(bytes);
+    }
+
+    /**
+     * Magic, record count, lowest and highest time, then the length of each column.
+     */
+    static int blockHeaderBytes(int columns) {
+        return 4 + 4 + 8 + 8 + 4 * columns;
+    }
+
+    @Override
+    public void accept(T msg, long receivedMillis) {
+        LocalDateTime hubTime = spec.hubTime == null ? null : spec.hubTime.apply(msg);
+        long millis = hubTime == null ? receivedMillis
+                : hubTime.toEpochSecond(zoneRules.getOffset(hubTime)) * 1000 + hubTime.getNano() / 1_000_000;
+        if (count == 0) {
+            firstPendingMillis = receivedMillis;
+        }
+        times[count] = millis;
+        for (int c = 0; c < columns.size(); c++) {
+            values[c][count] = columns.get(c).applyAsInt(msg);
+        }
+        if (++count == times.length) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void flushIfDue(long nowMillis) {
+        if (count > 0 && nowMillis - firstPendingMillis >= flushMillis) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (count > 0) {
+            writeBlock();
+        }
+        closeFile();
+    }
+
+    private void writeBlock() {
+        encode();
+        String day = DAY.format(Instant.ofEpochMilli(times[0]).atZone(ZoneId.systemDefault()));
+        File path = new File(dir, socket + "-" + day + SUFFIX);
+        try {
+            if (!day.equals(fileDay)) {
+                closeFile();
+                file = open(path);
+                fileDay = day;
+                if (retention != null && !path.equals(this.path)) {
+                    retention.rolledOver(this.path, path);
+                }
+                this.path = path;
+            }
+            while (block.hasRemaining()) {
+                file.write(block);
+            }
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to write telemetry to %s, dropped %s record(s)", path, count);
+            // Opened again for the next block, which truncates whatever part of this one was written
+            closeFile();
+        }
+        count = 0;
+    }
+
+    private void encode() {
+        int columnCount = columns.size() + 1;
+        block.clear().position(blockHeaderBytes(columnCount));
+        long lowest = Long.MAX_VALUE;
+        long highest = Long.MIN_VALUE;
+        long previous = 0;
+        int start = block.position();
+        for (int i = 0; i < count; i++) {
+            lowest = Math.min(lowest, times[i]);
+            highest = Math.max(highest, times[i]);
+            putVarint(block, zigZag(times[i] - previous));
+            previous = times[i];
+        }
+        lengths[0] = block.position() - start;
+        for (int c = 0; c < columns.size(); c++) {
+            start = block.position();
+            int[] column = values[c];
+            long last = 0;
+            for (int i = 0; i < count; i++) {
+                long stored = store(column[i]);
+                // Differences of ints fit a long, so no value can overflow its delta
+                putVarint(block, zigZag(stored - last));
+                last = stored;
+            }
+            lengths[c + 1] = block.position() - start;
+        }
+        int end = block.position();
+        block.position(0);
+        block.putInt(BLOCK_MAGIC).putInt(count).putLong(lowest).putLong(highest);
+        for (int length : lengths) {
+            block.putInt(length);
+        }
+        block.position(0).limit(end);
+    }
+
+    static long store(int value) {
+        return value == NONE ? 0 : value >= 0 ? value + 1L : value;
+    }
+
+    static int load(long stored) {
+        return stored == 0 ? NONE : (int) (stored > 0 ? stored - 1 : stored);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Open a file to append blocks to, writing the header if it is new and dropping a block cut short at its end.
+     */
+    private FileChannel open(File path) throws IOException {
+        Files.createDirectories(dir.toPath());
+        FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                channel.write(ByteBuffer.wrap(fileHeader), 0);
+                channel.position(fileHeader.length);
+                return channel;
+            }
+            ByteBuffer header = ByteBuffer.allocate(fileHeader.length);
+            channel.read(header, 0);
+            if (header.hasRemaining() || !Arrays.equals(header.array(), fileHeader)) {
+                throw new IOException(path + " has other columns, move it out of the way to write to it");
+            }
+            long end = completeLength(channel, fileHeader.length, fileHeader[MAGIC.length]);
+            if (end < channel.size()) {
+                logger.atWarning().log("Dropping %s byte(s) of an unfinished block at the end of %s",
+                        channel.size() - end, path);
+                channel.truncate(end);
+            }
+            channel.position(end);
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Where the last complete block ends, going by the block headers from {@code start}.
+     */
+    static long completeLength(FileChannel channel, long start, int columns) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(blockHeaderBytes(columns));
+        long size = channel.size();
+        long position = start;
+        while (true) {
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+                // Keep reading
+            }
+            if (header.hasRemaining() || header.getInt(0) != BLOCK_MAGIC) {
+                return position;
+            }
+            long end = position + header.capacity();
+            for (int c = 0; c < columns; c++) {
+                end += header.getInt(24 + 4 * c);
+            }
+            if (end > size) {
+                return position;
+            }
+            position = end;
+        }
+    }
+
+    private void closeFile() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.atSevere().withCause(e).log("Failed to close telemetry for %s", socket);
+        }
+        file = null;
+        fileDay = null;
+    }
+}
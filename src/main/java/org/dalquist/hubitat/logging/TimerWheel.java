@@ -0,0 +1,141 @@
+package org.dalquist.hubitat.logging;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.flogger.FluentLogger;
+
+/**
+ * Hashed timer wheel on one daemon thread. Scheduling is a queue offer and each tick only looks at the timers
+ * in one slot, so thousands of timers cost about as much as a few. Timers fire up to a tick late, which is fine
+ * for keepalives and reconnect backoff. The thread only wakes up every tick while there are timers and parks
+ * until the next {@link #schedule} otherwise.
+ *
+ * <p>
+ * Tasks run on the wheel's thread and must not block, hand blocking work to an executor.
+ */
+final class TimerWheel implements AutoCloseable {
+    private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // Only touched by the wheel's thread
+    private long tick;
+    private int pending;
+
+    /**
+     * @param slots rounded up to a power of two, a timer further out than {@code slots * tick} is passed over
+     *            once per turn of the wheel until it is due
+     */
+    TimerWheel(String name, long tick, TimeUnit unit, int slots) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos < 1 || slots < 1) {
+            throw new IllegalArgumentException("Invalid timer wheel: " + tick + " " + unit + " ticks, " + slots
+                    + " slots");
+        }
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run {@code task} on the wheel's thread after about {@code delay}.
+     */
+    void schedule(long delay, TimeUnit unit, Runnable task) {
+        long elapsed = System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay));
+        // Round up, never fire early
+        Timeout timeout = new Timeout(task, (elapsed + tickNanos - 1) / tickNanos);
+        scheduled.offer(timeout);
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (!closed) {
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+            // Catch up on any ticks missed while busy, each slot at most once
+            long last = Math.min(now, tick + mask);
+            addScheduled(tick);
+            while (tick <= last) {
+                expire(tick);
+                tick++;
+            }
+            tick = Math.max(tick, now + 1);
+
+            if (pending == 0 && scheduled.isEmpty()) {
+                LockSupport.park(this);
+            } else if (scheduled.isEmpty()) {
+                LockSupport.parkNanos(this, startNanos + tick * tickNanos - System.nanoTime());
+            }
+        }
+    }
+
+    private void addScheduled(long currentTick) {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            // Already due, e.g. the wheel was parked, so don't wait a whole turn for its slot to come around
+            int slot = (int) (Math.max(timeout.deadline, currentTick) & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+            pending++;
+        }
+    }
+
+    private void expire(long currentTick) {
+        int slot = (int) (currentTick & mask);
+        Timeout remaining = null;
+        Timeout timeout = slots[slot];
+        slots[slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadline <= currentTick) {
+                pending--;
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.atSevere().withCause(e).log("Timer task failed on %s", thread.getName());
+                }
+            } else {
+                timeout.next = remaining;
+                remaining = timeout;
+            }
+            timeout = next;
+        }
+        slots[slot] = remaining;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Timeout {
+        private final Runnable task;
+        // Tick the task is due on
+        private final long deadline;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.dalquist.hubitat.logging;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Renders timestamps exactly like {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}. The {@code yyyy-MM-ddTHH:mm:}
+ * prefix is rendered once per minute and only the seconds and fraction digits are patched in per call.
+ *
+ * <p>
+ * Not thread safe, each {@link LogAppender} owns one.
+ */
+final class TimestampCache {
+    private static final int PREFIX_LENGTH = "yyyy-MM-ddTHH:mm:".length();
+
+    private final ZoneId zone;
+
+    private final char[] localPrefix = new char[PREFIX_LENGTH];
+    private long localMinute = Long.MIN_VALUE;
+
+    private final char[] epochPrefix = new char[PREFIX_LENGTH];
+    private long epochMinute = Long.MIN_VALUE;
+
+    TimestampCache() {
+        this(ZoneId.systemDefault());
+    }
+
+    TimestampCache(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    void append(LocalDateTime value, StringBuilder out) {
+        int year = value.getYear();
+        if (year < 0 || year > 9999) {
+            // ISO adds a sign and extra digits, not worth caching
+            DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(value, out);
+            return;
+        }
+
+        long minute = ((((year * 13L + value.getMonthValue()) * 32 + value.getDayOfMonth()) * 24 + value.getHour())
+                * 60) + value.getMinute();
+        if (minute != localMinute) {
+            renderPrefix(localPrefix, year, value.getMonthValue(), value.getDayOfMonth(), value.getHour(),
+                    value.getMinute());
+            localMinute = minute;
+        }
+        out.append(localPrefix);
+        appendSecondAndFraction(value.getSecond(), value.getNano(), out);
+    }
+
+    /**
+     * Render an epoch millisecond instant as a local date time in the system zone.
+     */
+    void appendEpochMillis(long epochMillis, StringBuilder out) {
+        long minute = Math.floorDiv(epochMillis, 60_000);
+        if (minute != epochMinute) {
+            Instant minuteStart = Instant.ofEpochMilli(minute * 60_000);
+            ZoneOffset offset = zone.getRules().getOffset(minuteStart);
+            LocalDateTime local = LocalDateTime.ofInstant(minuteStart, offset);
+            if (offset.getTotalSeconds() % 60 != 0 || local.getYear() < 0 || local.getYear() > 9999) {
+                // Minutes don't line up with the epoch, render the slow way
+                DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(
+                        LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), zone), out);
+                return;
+            }
+            renderPrefix(epochPrefix, local.getYear(), local.getMonthValue(), local.getDayOfMonth(),
+                    local.getHour(), local.getMinute());
+            epochMinute = minute;
+        }
+        out.append(epochPrefix);
+        int millisOfMinute = Math.floorMod(epochMillis, 60_000);
+        appendSecondAndFraction(millisOfMinute / 1000, (millisOfMinute % 1000) * 1_000_000, out);
+    }
+
+    private static void renderPrefix(char[] prefix, int year, int month, int day, int hour, int minute) {
+        putDigits(prefix, 0, year, 4);
+        prefix[4] = '-';
+        putDigits(prefix, 5, month, 2);
+        prefix[7] = '-';
+        putDigits(prefix, 8, day, 2);
+        prefix[10] = 'T';
+        putDigits(prefix, 11, hour, 2);
+        prefix[13] = ':';
+        putDigits(prefix, 14, minute, 2);
+        prefix[16] = ':';
+    }
+
+    private static void putDigits(char[] chars, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static void appendSecondAndFraction(int second, int nano, StringBuilder out) {
+        out.append((char) ('0' + second / 10)).append((char) ('0' + second % 10));
+        if (nano == 0) {
+            return;
+        }
+
+        // ISO prints the fraction with trailing zeros removed
+        int digits = 9;
+        while (nano % 10 == 0) {
+            nano /= 10;
+            digits--;
+        }
+        out.append('.');
+        for (int divisor = pow10(digits - 1); divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + (nano / divisor) % 10));
+        }
+    }
+
+    private static int pow10(int exponent) {
+        int value = 1;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+}
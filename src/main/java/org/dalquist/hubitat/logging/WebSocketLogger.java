@@ -1,15 +1,10 @@
 package org.dalquist.hubitat.logging;
 
 import java.io.IOException;
-import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -21,52 +16,48 @@ import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.WebSocketContainer;
 
 import com.google.common.flogger.FluentLogger;
 import com.google.common.flogger.StackSize;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.vlkan.rfos.RotatingFileOutputStream;
-import com.vlkan.rfos.RotationConfig;
 
 import org.eclipse.jetty.websocket.core.WebSocketTimeoutException;
 
 @ClientEndpoint
-public final class WebSocketLogger<T> {
+public final class WebSocketLogger {
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
-    private static final ScheduledExecutorService RECONNECT_EXECUTOR = Executors.newScheduledThreadPool(4);
-
-    private static final Gson GSON = new GsonBuilder()
-            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeJsonDeserializer()).create();
-
     private final AtomicBoolean cleanup = new AtomicBoolean(false);
     private final AtomicBoolean connect = new AtomicBoolean(false);
     private final AtomicInteger reconnectCount = new AtomicInteger(0);
     private volatile CountDownLatch closedLatch;
     private volatile Session wsSesson;
-    private volatile PrintStream logStream;
+    // Wall clock time of the last message or pong
+    private volatile long lastReceivedMillis;
+    // Only touched by the supervisor's keepalive check
+    private long pingSentMillis;
 
     private final WebSocketContainer wsContainer;
+    private final ConnectionSupervisor supervisor;
     private final URI serverTarget;
-    private final Class<T> jsonLogType;
-    private final RotationConfig rotationConfig;
-    private final LogFormatter<T> logFormatter;
+    private final LogWriter logWriter;
+    private final SocketMetrics metrics;
 
-    public WebSocketLogger(WebSocketContainer wsContainer, String serverTarget, Class<T> jsonLogType,
-            RotationConfig rotationConfig, LogFormatter<T> logFormatter) throws URISyntaxException {
-        this(wsContainer, new URI(serverTarget), jsonLogType, rotationConfig, logFormatter);
+    WebSocketLogger(WebSocketContainer wsContainer, ConnectionSupervisor supervisor, String serverTarget,
+            LogWriter logWriter, SocketMetrics metrics) throws URISyntaxException {
+        this(wsContainer, supervisor, new URI(serverTarget), logWriter, metrics);
     }
 
-    public WebSocketLogger(WebSocketContainer wsContainer, URI serverTarget, Class<T> jsonLogType,
-            RotationConfig rotationConfig, LogFormatter<T> logFormatter) {
+    WebSocketLogger(WebSocketContainer wsContainer, ConnectionSupervisor supervisor, URI serverTarget,
+            LogWriter logWriter, SocketMetrics metrics) {
         this.wsContainer = wsContainer;
+        this.supervisor = supervisor;
         this.serverTarget = serverTarget;
-        this.jsonLogType = jsonLogType;
-        this.rotationConfig = rotationConfig;
-        this.logFormatter = logFormatter;
+        this.logWriter = logWriter;
+        this.metrics = metrics;
+        metrics.bind(logWriter::queueDepth, logWriter::dropped, logWriter::spillBacklog, this::isConnected);
     }
 
     public AutoCloseable connectAsync() throws DeploymentException, IOException {
@@ -80,7 +71,8 @@ public final class WebSocketLogger<T> {
             cleanup.set(false);
 
             try {
-                logStream = new PrintStream(new RotatingFileOutputStream(rotationConfig), true, StandardCharsets.UTF_8);
+                logWriter.start(() -> supervisor.disconnectAsync(this));
+                received();
                 wsSesson = wsContainer.connectToServer(this, serverTarget);
             } catch (DeploymentException | IOException | RuntimeException e) {
                 logger.atSevere().withCause(e).log("Failed to connect to %s", serverTarget);
@@ -89,6 +81,7 @@ public final class WebSocketLogger<T> {
             }
 
             logger.atInfo().log("Connected to %s", serverTarget);
+            supervisor.started(this);
         }
 
         return () -> disconnect();
@@ -102,11 +95,8 @@ public final class WebSocketLogger<T> {
             return;
         }
 
-        // Incrementally slow down retries up to 30s
-        int reconnectDelay = Math.min(reconnectCount.getAndIncrement(), 30);
-        logger.atInfo().log("Reconnecting to %s in %ss", serverTarget, reconnectDelay);
-
-        RECONNECT_EXECUTOR.schedule(() -> doReconnect(session), reconnectDelay, TimeUnit.SECONDS);
+        long reconnectDelay = supervisor.reconnect(reconnectCount.getAndIncrement(), () -> doReconnect(session));
+        logger.atInfo().log("Reconnecting to %s in %sms", serverTarget, reconnectDelay);
     }
 
     private void doReconnect(Session session) {
@@ -117,6 +107,7 @@ public final class WebSocketLogger<T> {
             }
             if (this.wsSesson != session) {
                 logger.atInfo().log("Ignoring reconnect for stale session: %s", serverTarget);
+                reconnectScheduled.set(false);
                 return;
             }
 
@@ -131,7 +122,9 @@ public final class WebSocketLogger<T> {
             }
 
             logger.atInfo().log("Reconnect attempt %s to %s", reconnectCount.get(), serverTarget);
+            metrics.reconnects.increment();
             try {
+                received();
                 wsSesson = wsContainer.connectToServer(this, serverTarget);
                 logger.atInfo().log("Reconnect attempt %s to %s", reconnectCount.get(), serverTarget);
                 reconnectCount.set(0);
@@ -157,20 +150,72 @@ public final class WebSocketLogger<T> {
                 return true;
             }
         }
+        return closedLatch.await(timeout, unit);
+    }
 
-        try {
-            wsSesson.getAsyncRemote().sendPing(ByteBuffer.allocate(1));
-        } catch (IllegalArgumentException | IOException e) {
-            logger.atWarning().withCause(e).log("Ping Failed");
+    /**
+     * Called by the {@link ConnectionSupervisor} once the socket may have been quiet for its keepalive. Pings
+     * the hub if nothing has been received for that long and reconnects if nothing, not even the pong, arrives
+     * for as long again. Returns how long until the socket should be checked again, or -1 once disconnected.
+     * Must not block or take the {@code connect} lock, the supervisor holds its own lock.
+     */
+    long checkAlive(long nowMillis) {
+        if (!connect.get()) {
+            return -1;
+        }
+        long keepaliveMillis = supervisor.keepaliveMillis();
+        Session session = wsSesson;
+        if (reconnectScheduled.get()) {
+            return keepaliveMillis;
+        }
+        if (session == null || !session.isOpen()) {
+            // Closed without a close or error callback
+            logger.atInfo().log("%s is disconnected", serverTarget);
+            reconnect(session);
+            return keepaliveMillis;
         }
 
-        if (isConnected()) {
-            logger.atInfo().atMostEvery(179, TimeUnit.SECONDS).log("%s is connected", serverTarget);
-        } else {
-            logger.atInfo().atMostEvery(37, TimeUnit.SECONDS).log("%s is disconnected", serverTarget);
-            reconnect(wsSesson);
+        long lastReceived = lastReceivedMillis;
+        long quiet = nowMillis - lastReceived;
+        if (quiet < keepaliveMillis) {
+            return keepaliveMillis - quiet;
         }
-        return closedLatch.await(timeout, unit);
+        if (pingSentMillis <= lastReceived) {
+            pingSentMillis = nowMillis;
+            try {
+                session.getAsyncRemote().sendPing(ByteBuffer.allocate(1));
+            } catch (IllegalArgumentException | IOException e) {
+                logger.atWarning().withCause(e).log("Ping to %s failed, reconnecting", serverTarget);
+                reconnect(session);
+            }
+            return keepaliveMillis;
+        }
+        long waited = nowMillis - pingSentMillis;
+        if (waited < keepaliveMillis) {
+            return keepaliveMillis - waited;
+        }
+        logger.atWarning().log("Nothing from %s for %sms, reconnecting", serverTarget, quiet);
+        reconnect(session);
+        return keepaliveMillis;
+    }
+
+    /**
+     * Note that something just arrived, returning the time it did.
+     */
+    private long received() {
+        long now = System.currentTimeMillis();
+        // Skip the volatile write for every message within the same millisecond
+        if (lastReceivedMillis != now) {
+            lastReceivedMillis = now;
+        }
+        return now;
+    }
+
+    /**
+     * Commit everything received so far to disk, see {@link LogWriter#flush}.
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        return logWriter.flush(timeout, unit);
     }
 
     public void disconnect() {
@@ -184,7 +229,7 @@ public final class WebSocketLogger<T> {
 
     private void cleanup() {
         // Only let one cleanup call through
-        if (!cleanup.getAndSet(true)) {
+        if (cleanup.getAndSet(true)) {
             return;
         }
         synchronized (connect) {
@@ -200,19 +245,20 @@ public final class WebSocketLogger<T> {
                 }
             }
 
-            // Esnure log is written & closed
-            if (logStream != null) {
-                logger.atInfo().log("Saving log file for %s", serverTarget);
-                logStream.flush();
-                logStream.close();
-                logStream = null;
-            }
+            // Esnure queued frames are written & the log is closed
+            logWriter.close();
 
             logger.atInfo().log("Cleaned up connection to %s", serverTarget);
             closedLatch.countDown();
+            supervisor.finished(this);
         }
     }
 
+    @Override
+    public String toString() {
+        return serverTarget.toString();
+    }
+
     @OnOpen
     public void onOpen(Session session) {
         logger.atInfo().log("Connection opened to %s", serverTarget);
@@ -225,14 +271,15 @@ public final class WebSocketLogger<T> {
 
     @OnMessage
     public void onMessage(String message, Session session) {
-        try {
-            T msg = GSON.fromJson(message, jsonLogType);
-            logFormatter.format(msg, logStream::printf);
-            logStream.println();
-        } catch (RuntimeException e) {
-            logger.atSevere().withCause(e).log("Error handling message from %s\n%s", serverTarget, message);
-            disconnect();
-        }
+        // Only hand the frame off, decoding, formatting and disk I/O happen on the writer thread
+        metrics.messages.increment();
+        metrics.bytes.add(message.length());
+        logWriter.offer(message, received(), System.nanoTime());
+    }
+
+    @OnMessage
+    public void onPong(PongMessage pong, Session session) {
+        received();
     }
 
     @OnClose
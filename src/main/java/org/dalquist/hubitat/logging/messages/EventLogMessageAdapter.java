@@ -0,0 +1,60 @@
+package org.dalquist.hubitat.logging.messages;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+
+public final class EventLogMessageAdapter extends MessageTypeAdapter<EventLogMessage> {
+    @Override
+    public EventLogMessage newMessage() {
+        return new EventLogMessage();
+    }
+
+    @Override
+    protected void reset(EventLogMessage msg) {
+        msg.source = null;
+        msg.name = null;
+        msg.displayName = null;
+        msg.value = null;
+        msg.unit = null;
+        msg.deviceId = 0;
+        msg.hubId = 0;
+        msg.installedAppId = 0;
+        msg.descriptionText = null;
+    }
+
+    @Override
+    protected void readField(String name, JsonReader in, EventLogMessage msg) throws IOException {
+        switch (name) {
+            case "source":
+                msg.source = readString(in);
+                break;
+            case "name":
+                msg.name = readString(in);
+                break;
+            case "displayName":
+                msg.displayName = readString(in);
+                break;
+            case "value":
+                msg.value = readString(in);
+                break;
+            case "unit":
+                msg.unit = readString(in);
+                break;
+            case "deviceId":
+                msg.deviceId = readInt(in, msg.deviceId);
+                break;
+            case "hubId":
+                msg.hubId = readInt(in, msg.hubId);
+                break;
+            case "installedAppId":
+                msg.installedAppId = readInt(in, msg.installedAppId);
+                break;
+            case "descriptionText":
+                msg.descriptionText = readString(in);
+                break;
+            default:
+                in.skipValue();
+        }
+    }
+}
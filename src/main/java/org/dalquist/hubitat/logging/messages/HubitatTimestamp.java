@@ -0,0 +1,42 @@
+package org.dalquist.hubitat.logging.messages;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Parser for the hub's {@code yyyy-MM-dd HH:mm:ss.SSS} timestamps that reads digits at fixed offsets instead of
+ * going through {@link java.time.format.DateTimeFormatter}.
+ */
+public final class HubitatTimestamp {
+    private static final int LENGTH = "yyyy-MM-dd HH:mm:ss.SSS".length();
+
+    private HubitatTimestamp() {
+    }
+
+    public static LocalDateTime parse(CharSequence text) {
+        if (text.length() != LENGTH || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != ' '
+                || text.charAt(13) != ':' || text.charAt(16) != ':' || text.charAt(19) != '.') {
+            throw new JsonSyntaxException("Expected yyyy-MM-dd HH:mm:ss.SSS timestamp: " + text);
+        }
+        try {
+            return LocalDateTime.of(digits(text, 0, 4), digits(text, 5, 2), digits(text, 8, 2), digits(text, 11, 2),
+                    digits(text, 14, 2), digits(text, 17, 2), digits(text, 20, 3) * 1_000_000);
+        } catch (DateTimeException e) {
+            throw new JsonSyntaxException("Invalid timestamp: " + text, e);
+        }
+    }
+
+    private static int digits(CharSequence text, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new JsonSyntaxException("Expected digit at " + i + ": " + text);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,48 @@
+package org.dalquist.hubitat.logging.messages;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+
+public final class MainLogMessageAdapter extends MessageTypeAdapter<MainLogMessage> {
+    @Override
+    public MainLogMessage newMessage() {
+        return new MainLogMessage();
+    }
+
+    @Override
+    protected void reset(MainLogMessage msg) {
+        msg.name = null;
+        msg.msg = null;
+        msg.id = 0;
+        msg.time = null;
+        msg.type = null;
+        msg.level = null;
+    }
+
+    @Override
+    protected void readField(String name, JsonReader in, MainLogMessage msg) throws IOException {
+        switch (name) {
+            case "name":
+                msg.name = readString(in);
+                break;
+            case "msg":
+                msg.msg = readString(in);
+                break;
+            case "id":
+                msg.id = readInt(in, msg.id);
+                break;
+            case "time":
+                msg.time = readTimestamp(in);
+                break;
+            case "type":
+                msg.type = readString(in);
+                break;
+            case "level":
+                msg.level = readString(in);
+                break;
+            default:
+                in.skipValue();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.dalquist.hubitat.logging.messages;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Base for the hand written message decoders. Fields are read straight off the {@link JsonReader} with no
+ * reflection, and a message instance can be reused across frames when the caller is done with the previous one.
+ *
+ * <p>
+ * Messages are never encoded, so this is not a Gson {@link com.google.gson.TypeAdapter} and a plain
+ * {@link com.google.gson.Gson} still maps messages reflectively.
+ */
+public abstract class MessageTypeAdapter<T> {
+    public abstract T newMessage();
+
+    /**
+     * Reset {@code msg} to its defaults.
+     */
+    protected abstract void reset(T msg);
+
+    /**
+     * Read the value of field {@code name} into {@code msg}, unknown fields must be skipped.
+     */
+    protected abstract void readField(String name, JsonReader in, T msg) throws IOException;
+
+    /**
+     * Read the next JSON object into {@code reuse}, returns null for a JSON null.
+     */
+    public final T read(JsonReader in, T reuse) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        reset(reuse);
+        in.beginObject();
+        while (in.hasNext()) {
+            readField(in.nextName(), in, reuse);
+        }
+        in.endObject();
+        return reuse;
+    }
+
+    protected static String readString(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case NULL:
+                in.nextNull();
+                return null;
+            case BOOLEAN:
+                return Boolean.toString(in.nextBoolean());
+            default:
+                return in.nextString();
+        }
+    }
+
+    protected static int readInt(JsonReader in, int defaultValue) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return defaultValue;
+        }
+        return in.nextInt();
+    }
+
+    protected static LocalDateTime readTimestamp(JsonReader in) throws IOException {
+        String value = readString(in);
+        return value == null ? null : HubitatTimestamp.parse(value);
+    }
+}
@@ -0,0 +1,72 @@
+package org.dalquist.hubitat.logging.messages;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+
+public final class ZigbeeLogMessageAdapter extends MessageTypeAdapter<ZigbeeLogMessage> {
+    @Override
+    public ZigbeeLogMessage newMessage() {
+        return new ZigbeeLogMessage();
+    }
+
+    @Override
+    protected void reset(ZigbeeLogMessage msg) {
+        msg.name = null;
+        msg.id = 0;
+        msg.profileId = 0;
+        msg.clusterId = 0;
+        msg.sourceEndpoint = 0;
+        msg.destinationEndpoint = 0;
+        msg.groupId = 0;
+        msg.sequence = 0;
+        msg.lastHopLqi = 0;
+        msg.lastHopRssi = 0;
+        msg.time = null;
+        msg.type = null;
+    }
+
+    @Override
+    protected void readField(String name, JsonReader in, ZigbeeLogMessage msg) throws IOException {
+        switch (name) {
+            case "name":
+                msg.name = readString(in);
+                break;
+            case "id":
+                msg.id = readInt(in, msg.id);
+                break;
+            case "profileId":
+                msg.profileId = readInt(in, msg.profileId);
+                break;
+            case "clusterId":
+                msg.clusterId = readInt(in, msg.clusterId);
+                break;
+            case "sourceEndpoint":
+                msg.sourceEndpoint = readInt(in, msg.sourceEndpoint);
+                break;
+            case "destinationEndpoint":
+                msg.destinationEndpoint = readInt(in, msg.destinationEndpoint);
+                break;
+            case "groupId":
+                msg.groupId = readInt(in, msg.groupId);
+                break;
+            case "sequence":
+                msg.sequence = readInt(in, msg.sequence);
+                break;
+            case "lastHopLqi":
+                msg.lastHopLqi = readInt(in, msg.lastHopLqi);
+                break;
+            case "lastHopRssi":
+                msg.lastHopRssi = readInt(in, msg.lastHopRssi);
+                break;
+            case "time":
+                msg.time = readTimestamp(in);
+                break;
+            case "type":
+                msg.type = readString(in);
+                break;
+            default:
+                in.skipValue();
+        }
+    }
+}
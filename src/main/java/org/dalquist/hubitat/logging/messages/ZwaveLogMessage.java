@@ -1,96 +1,105 @@
 package org.dalquist.hubitat.logging.messages;
 
 import java.time.LocalDateTime;
-import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
+/**
+ * The IME (installation and maintenance) report is decoded into the fields below by
+ * {@link ZwaveLogMessageAdapter}, the accessors only read them.
+ */
 public final class ZwaveLogMessage {
+    public static final int RSSI_NOT_AVAILABLE = 127;
+    public static final int RSSI_MAX = 126;
+    public static final int RSSI_MIN = 125;
+
     public int seqNo;
     public String name;
     public String id; // in hex
-    public Map<Integer, int[]> imeReport;
     public LocalDateTime time;
     public String type;
 
-    public Optional<Boolean> getRouteChanged() {
-        int[] values = imeReport.get(0);
-        if (values == null || values.length != 1) {
-            return Optional.empty();
-        }
-        return Optional.of(values[0] == 1);
+    // -1 when the report didn't include the value
+    int routeChanged = -1;
+    int transmissionTimeMs = -1;
+    int ackChannel = -1;
+    int transmitChannel = -1;
+    // 0 when unknown, see getSpeed()
+    int speedCode;
+    final int[] repeaters = new int[4];
+    int repeaterCount;
+    int[] rssi = new int[4];
+    int rssiCount;
+
+    public boolean hasRouteChanged() {
+        return routeChanged >= 0;
     }
 
-    public Optional<Integer> getTransmissionTimeMs() {
-        int[] values = imeReport.get(1);
-        if (values == null || values.length != 2) {
-            return Optional.empty();
-        }
-        int transmissionTime = ((values[0] & 0xff) << 2) | (values[1] & 0xff);
-        return Optional.of(transmissionTime);
+    public boolean isRouteChanged() {
+        return routeChanged == 1;
     }
 
-    public Optional<String> getRepeaters() {
-        int[] values = imeReport.get(2);
-        if (values == null || values.length != 5 || values[0] == 0) {
-            return Optional.empty();
-        }
-        return Optional.of(IntStream.of(values).limit(4).filter(i -> i != 0).mapToObj(i -> String.format("%02X", i))
-                .collect(Collectors.joining(" > ")));
+    /**
+     * Returns -1 if not reported.
+     */
+    public int getTransmissionTimeMs() {
+        return transmissionTimeMs;
     }
 
-    public Optional<Float> getSpeed() {
-        int[] values = imeReport.get(2);
-        if (values == null || values.length != 5) {
-            return Optional.empty();
-        }
-        switch (values[4]) {
+    /**
+     * Node ids of the repeaters on the route, in hop order. 0 if the route is direct or not reported.
+     */
+    public int getRepeaterCount() {
+        return repeaterCount;
+    }
+
+    public int getRepeater(int hop) {
+        return repeaters[hop];
+    }
+
+    /**
+     * Route speed in kbps, NaN if not reported.
+     */
+    public float getSpeed() {
+        switch (speedCode) {
             case 1:
-                return Optional.of(9.6f);
+                return 9.6f;
             case 2:
-                return Optional.of(40f);
+                return 40f;
             case 3:
-                return Optional.of(100f);
+                return 100f;
             default:
-                return Optional.empty();
+                return Float.NaN;
         }
     }
 
-    public Optional<String> getRssi() {
-        int[] values = imeReport.get(3);
-        if (values == null) {
-            return Optional.empty();
-        }
+    /**
+     * Route speed as reported, 1 for 9.6, 2 for 40 and 3 for 100 kbps, 0 if not reported.
+     */
+    public int getSpeedCode() {
+        return speedCode;
+    }
 
-        return Optional.of(IntStream.of(values).mapToObj(this::getRSSIValue).collect(Collectors.joining(", ")));
+    /**
+     * Signal strength per hop, in dBm unless its low byte is one of the {@code RSSI_*} markers.
+     */
+    public int getRssiCount() {
+        return rssiCount;
     }
 
-    private String getRSSIValue(int rssiByte) {
-        if ((rssiByte & 0xff) == 127) {
-            return "N/A";
-        } else if ((rssiByte & 0xff) == 126) {
-            return "MAX";
-        } else if ((rssiByte & 0xff) == 125) {
-            return "MIN";
-        } else {
-            return rssiByte + " dBm";
-        }
+    public int getRssi(int hop) {
+        return rssi[hop];
     }
 
-    public Optional<Integer> getAckChannel() {
-        int[] values = imeReport.get(4);
-        if (values == null || values.length == 0) {
-            return Optional.empty();
-        }
-        return Optional.of(values[0]);
+    /**
+     * Returns -1 if not reported.
+     */
+    public int getAckChannel() {
+        return ackChannel;
     }
 
-    public Optional<Integer> getTransmitChannel() {
-        int[] values = imeReport.get(5);
-        if (values == null || values.length == 0) {
-            return Optional.empty();
-        }
-        return Optional.of(values[0]);
+    /**
+     * Returns -1 if not reported.
+     */
+    public int getTransmitChannel() {
+        return transmitChannel;
     }
 }
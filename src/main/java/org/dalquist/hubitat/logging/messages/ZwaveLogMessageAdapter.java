@@ -0,0 +1,128 @@
+package org.dalquist.hubitat.logging.messages;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+public final class ZwaveLogMessageAdapter extends MessageTypeAdapter<ZwaveLogMessage> {
+    @Override
+    public ZwaveLogMessage newMessage() {
+        return new ZwaveLogMessage();
+    }
+
+    @Override
+    protected void reset(ZwaveLogMessage msg) {
+        msg.seqNo = 0;
+        msg.name = null;
+        msg.id = null;
+        msg.routeChanged = -1;
+        msg.transmissionTimeMs = -1;
+        msg.repeaterCount = 0;
+        msg.speedCode = 0;
+        msg.rssiCount = 0;
+        msg.ackChannel = -1;
+        msg.transmitChannel = -1;
+        msg.time = null;
+        msg.type = null;
+    }
+
+    @Override
+    protected void readField(String name, JsonReader in, ZwaveLogMessage msg) throws IOException {
+        switch (name) {
+            case "seqNo":
+                msg.seqNo = readInt(in, msg.seqNo);
+                break;
+            case "name":
+                msg.name = readString(in);
+                break;
+            case "id":
+                msg.id = readString(in);
+                break;
+            case "imeReport":
+                readImeReport(in, msg);
+                break;
+            case "time":
+                msg.time = readTimestamp(in);
+                break;
+            case "type":
+                msg.type = readString(in);
+                break;
+            default:
+                in.skipValue();
+        }
+    }
+
+    private static void readImeReport(JsonReader in, ZwaveLogMessage msg) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return;
+        }
+
+        int[] values = new int[8];
+        in.beginObject();
+        while (in.hasNext()) {
+            int key = Integer.parseInt(in.nextName());
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                setImeValue(key, values, -1, msg);
+                continue;
+            }
+
+            int count = 0;
+            in.beginArray();
+            while (in.hasNext()) {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count++] = in.nextInt();
+            }
+            in.endArray();
+            setImeValue(key, values, count, msg);
+        }
+        in.endObject();
+    }
+
+    /**
+     * Decode one IME report entry from the first {@code count} {@code values}, -1 for a null entry. A value with
+     * an unexpected length is treated as not reported.
+     */
+    private static void setImeValue(int key, int[] values, int count, ZwaveLogMessage msg) {
+        switch (key) {
+            case 0:
+                msg.routeChanged = count == 1 ? (values[0] == 1 ? 1 : 0) : -1;
+                break;
+            case 1:
+                msg.transmissionTimeMs = count == 2 ? ((values[0] & 0xff) << 2) | (values[1] & 0xff) : -1;
+                break;
+            case 2:
+                // Four repeater node ids, 0 past the last hop, then the speed
+                msg.repeaterCount = 0;
+                msg.speedCode = count == 5 ? values[4] : 0;
+                if (count == 5 && values[0] != 0) {
+                    for (int i = 0; i < msg.repeaters.length; i++) {
+                        if (values[i] != 0) {
+                            msg.repeaters[msg.repeaterCount++] = values[i];
+                        }
+                    }
+                }
+                break;
+            case 3:
+                msg.rssiCount = Math.max(count, 0);
+                if (msg.rssi.length < count) {
+                    msg.rssi = new int[count];
+                }
+                System.arraycopy(values, 0, msg.rssi, 0, msg.rssiCount);
+                break;
+            case 4:
+                msg.ackChannel = count > 0 ? values[0] : -1;
+                break;
+            case 5:
+                msg.transmitChannel = count > 0 ? values[0] : -1;
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.dalquist.hubitat.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class GroupCommitOutputStreamTest {
+    private final SocketMetrics metrics = new SocketMetrics("hub", "test");
+
+    @Test
+    public void lineThatNeededRoomIsKeptWhenTheCommitFails() throws IOException {
+        assertKeptAfterFailure("0123456789\n", "abcdefgh\n");
+    }
+
+    @Test
+    public void lineBiggerThanTheBufferIsKeptWhenItsWriteFails() throws IOException {
+        assertKeptAfterFailure("0123\n", "a line longer than the whole buffer\n");
+    }
+
+    private void assertKeptAfterFailure(String first, String second) throws IOException {
+        FailingStream failing = new FailingStream();
+        GroupCommitOutputStream log = new GroupCommitOutputStream(failing, 16, 100, 1000, metrics);
+        log.write(first.getBytes(StandardCharsets.UTF_8));
+        failing.fail = true;
+        try {
+            log.write(second.getBytes(StandardCharsets.UTF_8));
+            fail("The commit should have failed");
+        } catch (IOException expected) {
+            // The writer moves on to a new stream
+        }
+
+        ByteArrayOutputStream reopened = new ByteArrayOutputStream();
+        try (GroupCommitOutputStream next = new GroupCommitOutputStream(reopened, 16, 100, 1000, metrics)) {
+            log.transferPendingTo(next);
+        }
+        assertEquals(first + second, failing.written.toString(StandardCharsets.UTF_8)
+                + reopened.toString(StandardCharsets.UTF_8));
+    }
+
+    private static final class FailingStream extends OutputStream {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        boolean fail;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fail) {
+                throw new IOException("Disk failed");
+            }
+            written.write(b, off, len);
+        }
+    }
+}
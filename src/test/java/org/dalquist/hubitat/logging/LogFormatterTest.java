@@ -0,0 +1,448 @@
+package org.dalquist.hubitat.logging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.dalquist.hubitat.logging.messages.EventLogMessage;
+import org.dalquist.hubitat.logging.messages.EventLogMessageAdapter;
+import org.dalquist.hubitat.logging.messages.MainLogMessage;
+import org.dalquist.hubitat.logging.messages.MainLogMessageAdapter;
+import org.dalquist.hubitat.logging.messages.MessageTypeAdapter;
+import org.dalquist.hubitat.logging.messages.ZigbeeLogMessage;
+import org.dalquist.hubitat.logging.messages.ZigbeeLogMessageAdapter;
+import org.dalquist.hubitat.logging.messages.ZwaveLogMessage;
+import org.dalquist.hubitat.logging.messages.ZwaveLogMessageAdapter;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * The {@link LogAppender} formatters must write exactly what the printf formats they replaced did. The expected
+ * lines come from those formats, as they were before the formatters were ported.
+ */
+public class LogFormatterTest {
+    private static final String[] MAIN_FRAMES = {
+            "{\"name\":\"Kitchen Lights\",\"msg\":\"Kitchen Lights: setLevel(75, 1) &apos;on&apos;\",\"id\":143,"
+                    + "\"time\":\"2021-05-29 07:28:50.326\",\"type\":\"dev\",\"level\":\"info\"}",
+            "{\"name\":\"Motion Lighting\",\"msg\":\"Turning on &lt;b&gt;Hallway&lt;/b&gt; because motion became "
+                    + "active\",\"id\":12,\"time\":\"2021-05-29 07:28:50.412\",\"type\":\"app\",\"level\":\"debug\"}",
+            "{\"name\":\"Front Door Lock\",\"msg\":\"lock is locked [digital]\",\"id\":88,"
+                    + "\"time\":\"2021-05-29 07:28:51.000\",\"type\":\"dev\",\"level\":\"warn\"}",
+            "{\"name\":\"K\\u00fcche\",\"msg\":\"\\u2603 &amp; \\ud83d\\ude00\",\"id\":1234,"
+                    + "\"time\":\"2021-05-29 07:28:51.900\",\"type\":\"dev\",\"level\":null}",
+    };
+    private static final String[] EVENT_FRAMES = {
+            "{\"source\":\"DEVICE\",\"name\":\"power\",\"displayName\":\"Drier - Plug\",\"value\":\"1234.5\","
+                    + "\"unit\":\"W\",\"deviceId\":211,\"hubId\":0,\"installedAppId\":0,"
+                    + "\"descriptionText\":\"Drier - Plug power is 1234.5 W\"}",
+            "{\"source\":\"DEVICE\",\"name\":\"switch\",\"displayName\":\"Kitchen Lights\",\"value\":\"on\","
+                    + "\"unit\":\"null\",\"deviceId\":7,\"hubId\":0,\"installedAppId\":0,"
+                    + "\"descriptionText\":\"Kitchen Lights was turned on [digital]\"}",
+            "{\"source\":\"APP\",\"name\":\"mode\",\"displayName\":\"Mode Manager\",\"value\":\"Day\","
+                    + "\"unit\":\"null\",\"deviceId\":0,\"hubId\":1,\"installedAppId\":31,"
+                    + "\"descriptionText\":null}",
+            "{\"source\":\"DEVICE\",\"name\":\"temperature\",\"displayName\":\"Basement Sensor\","
+                    + "\"value\":\"64.2\",\"unit\":\"\\u00b0F\",\"deviceId\":97,\"hubId\":0,\"installedAppId\":0,"
+                    + "\"descriptionText\":\"Basement Sensor temperature is 64.2\\u00b0F\"}",
+    };
+    private static final String[] ZIGBEE_FRAMES = {
+            "{\"name\":\"Drier - Plug\",\"id\":11051,\"profileId\":260,\"clusterId\":2820,\"sourceEndpoint\":1,"
+                    + "\"destinationEndpoint\":1,\"groupId\":0,\"sequence\":247,\"lastHopLqi\":255,"
+                    + "\"lastHopRssi\":-67,\"time\":\"2021-05-29 07:28:50.326\",\"type\":\"zigbeeRx\"}",
+            "{\"name\":\"Bedroom Bulb\",\"id\":5521,\"profileId\":260,\"clusterId\":6,\"sourceEndpoint\":11,"
+                    + "\"destinationEndpoint\":1,\"groupId\":0,\"sequence\":8,\"lastHopLqi\":180,"
+                    + "\"lastHopRssi\":-80,\"time\":\"2021-05-29 07:28:51.004\",\"type\":\"zigbeeRx\"}",
+            "{\"name\":\"A name that is longer than thirty-two characters\",\"id\":1,\"profileId\":49246,"
+                    + "\"clusterId\":64513,\"sourceEndpoint\":242,\"destinationEndpoint\":255,\"groupId\":3,"
+                    + "\"sequence\":1000,\"lastHopLqi\":0,\"lastHopRssi\":0,\"time\":\"2021-05-29 07:28:52.000\","
+                    + "\"type\":\"zigbeeTx\"}",
+    };
+    private static final String[] ZWAVE_FRAMES = {
+            "{\"seqNo\":17,\"name\":\"Front Door Lock\",\"id\":\"1A\",\"imeReport\":{\"0\":[0],\"1\":[0,23],"
+                    + "\"2\":[5,12,0,0,3],\"3\":[-62,-70,127,127,127],\"4\":[0],\"5\":[0]},"
+                    + "\"time\":\"2021-05-29 07:28:50.326\",\"type\":\"zwaveRx\"}",
+            "{\"seqNo\":18,\"name\":\"Garage Door\",\"id\":\"2C\",\"imeReport\":{\"0\":[1],\"1\":[1,4],"
+                    + "\"2\":[0,0,0,0,2],\"3\":[-75,127,127,127,127],\"4\":[1],\"5\":[1]},"
+                    + "\"time\":\"2021-05-29 07:28:50.411\",\"type\":\"zwaveTx\"}",
+            "{\"seqNo\":20,\"name\":\"Attic Fan\",\"id\":\"3F\",\"imeReport\":{\"0\":[0],\"1\":[0,88],"
+                    + "\"2\":[7,11,19,0,1],\"3\":[-89,-84,-90,126,125],\"4\":[1],\"5\":[0]},"
+                    + "\"time\":\"2021-05-29 07:28:51.200\",\"type\":\"zwaveRx\"}",
+            "{\"seqNo\":3,\"name\":\"Plug\",\"id\":\"0B\",\"imeReport\":{},"
+                    + "\"time\":\"2021-05-29 07:28:51.000\",\"type\":\"zwaveTx\"}",
+    };
+    private static final Gson GSON = new Gson();
+    private static final Type IME_REPORT = new TypeToken<Map<Integer, int[]>>() {
+    }.getType();
+
+    private static final String[] STRINGS = { null, "", "a", "Kitchen Lights", "null", "info", "K\u00fcche \u2603",
+            "\ud83d\ude00 emoji", "&lt;b&gt;bold&lt;/b&gt; &amp; &apos;quoted&apos; &#39;", "A name that is longer "
+                    + "than thirty-two characters", "100%", "%s %d", "tab\there" };
+
+    private final Random random = new Random(3);
+    private final LogAppender out = new LogAppender();
+
+    @Test
+    public void appendMatchesFormatterConversions() {
+        int[] special = { 0, 1, -1, 9, 10, 99, 100, 999, 1000, -99, -100, 255, 256, 4095, 4096, Integer.MAX_VALUE,
+                Integer.MIN_VALUE };
+        for (int i = 0; i < 100_000; i++) {
+            int v = i < special.length ? special[i] : random.nextBoolean() ? random.nextInt()
+                    : random.nextInt(2000) - 1000;
+            assertLine(String.format("%d", v), out.append(v));
+            assertLine(String.format("%d", v * 3_000_000_000L), out.append(v * 3_000_000_000L));
+            assertLine(String.format("%03d", v), out.appendZeroPadded(v, 3));
+            assertLine(String.format("%3d", v), out.appendPadded(v, 3));
+            assertLine(String.format("%-5d", v), out.appendPadded(v, -5));
+            assertLine(String.format("%X", v), out.appendHex(v));
+            assertLine(String.format("%03X", v), out.appendHex(v, 3));
+            assertLine(String.format("%4X", v), out.appendPaddedHex(v, 4));
+
+            double d = random.nextInt(4) == 0 ? (random.nextInt(20001) - 10000) / 100.0
+                    : (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8));
+            assertLine(String.format("%5.1f", (float) d), out.appendFixed((float) d, 5, 1));
+            assertLine(String.format("%5.1f", d), out.appendFixed(d, 5, 1));
+            assertLine(String.format("%8.3f", d), out.appendFixed(d, 8, 3));
+        }
+        for (double d : new double[] { Double.NaN, 0.05, 0.15, 0.25, -0.04, -0.0, 9.6f, 40f, 100f, 1e300,
+                Double.POSITIVE_INFINITY }) {
+            assertLine(String.format("%5.1f", d), out.appendFixed(d, 5, 1));
+        }
+        for (String s : STRINGS) {
+            assertLine(String.format("%s|%5S|%-7s|%32s", s, s, s, s), out.append(s).append('|')
+                    .appendPaddedUpperCase(s, 5).append('|').appendPadded(s, -7).append('|').appendPadded(s, 32));
+        }
+    }
+
+    @Test
+    public void appendTimestampMatchesIsoFormat() {
+        LocalDateTime[] special = { LocalDateTime.of(2021, 5, 29, 7, 28), LocalDateTime.of(2021, 5, 29, 7, 28, 0, 1000),
+                LocalDateTime.of(2021, 12, 31, 23, 59, 59, 999_000_000), LocalDateTime.of(12345, 1, 1, 0, 0),
+                LocalDateTime.of(-5, 1, 1, 0, 0) };
+        for (LocalDateTime time : special) {
+            assertLine(String.format("%-23s|%25s", iso(time), iso(time)),
+                    out.appendTimestamp(time, -23).append('|').appendTimestamp(time, 25));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            LocalDateTime time = randomTime();
+            assertLine(String.format("%-23s", iso(time)), out.appendTimestamp(time, -23));
+
+            long millis = random.nextLong() % 4_000_000_000_000L;
+            out.setReceivedAt(millis);
+            assertLine(String.format("%-23s", iso(receivedAt(millis))), out.appendReceiveTimestamp(-23));
+        }
+    }
+
+    @Test
+    public void writeLineMatchesPrintStream() throws IOException {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            big.append('\u00e9');
+        }
+        for (String s : new String[] { "", "ascii only", "K\u00fcche \u2603 \ud83d\ude00", "unpaired \ud800x",
+                big.toString() }) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            PrintStream printStream = new PrintStream(expected, false, StandardCharsets.UTF_8);
+            printStream.print(s);
+            printStream.println();
+            printStream.flush();
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            out.append(s).writeLineTo(actual);
+            assertArrayEquals(s, expected.toByteArray(), actual.toByteArray());
+        }
+    }
+
+    @Test
+    public void mainLogLinesMatchPrintf() throws IOException {
+        MainLogMessageAdapter adapter = new MainLogMessageAdapter();
+        for (String frame : MAIN_FRAMES) {
+            assertMainLine(read(adapter, frame));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            MainLogMessage msg = new MainLogMessage();
+            msg.name = randomString();
+            msg.msg = randomString();
+            msg.id = randomInt();
+            msg.time = randomTime();
+            msg.type = randomString();
+            msg.level = randomString();
+            if (msg.msg != null) {
+                assertMainLine(msg);
+            }
+        }
+    }
+
+    private void assertMainLine(MainLogMessage msg) {
+        App.formatLogMessage(msg, out);
+        assertLine(String.format("%-23s %s[%03d] %5S  %s: %s", iso(msg.time), msg.type, msg.id, msg.level,
+                msg.name, StringEscapeUtils.unescapeHtml4(msg.msg).replace("&apos;", "'")), out);
+    }
+
+    @Test
+    public void eventLogLinesMatchPrintf() throws IOException {
+        EventLogMessageAdapter adapter = new EventLogMessageAdapter();
+        for (String frame : EVENT_FRAMES) {
+            assertEventLine(read(adapter, frame), 1622273330326L);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            EventLogMessage msg = new EventLogMessage();
+            msg.source = random.nextBoolean() ? "DEVICE" : randomString();
+            msg.name = randomString();
+            msg.displayName = randomString();
+            msg.value = randomString();
+            msg.unit = randomString();
+            msg.deviceId = randomInt();
+            msg.hubId = randomInt();
+            msg.installedAppId = randomInt();
+            msg.descriptionText = randomString();
+            assertEventLine(msg, random.nextLong() % 4_000_000_000_000L);
+        }
+    }
+
+    private void assertEventLine(EventLogMessage msg, long receivedMillis) {
+        out.setReceivedAt(receivedMillis);
+        App.formatEventLogMessage(msg, out);
+        // The time used to be read from the clock while formatting, it is now when the frame was received
+        assertLine(String.format("%-23s %s[%d:%03d] %s: %s = %s%s, %s", iso(receivedAt(receivedMillis)),
+                msg.source, msg.hubId, "DEVICE".equals(msg.source) ? msg.deviceId : msg.installedAppId,
+                msg.displayName, msg.name, msg.value, "null".equals(msg.unit) ? "" : msg.unit, msg.descriptionText),
+                out);
+    }
+
+    @Test
+    public void zigbeeLogLinesMatchPrintf() throws IOException {
+        ZigbeeLogMessageAdapter adapter = new ZigbeeLogMessageAdapter();
+        for (String frame : ZIGBEE_FRAMES) {
+            assertZigbeeLine(read(adapter, frame));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            ZigbeeLogMessage msg = new ZigbeeLogMessage();
+            msg.name = randomString();
+            msg.id = randomInt();
+            msg.profileId = randomInt();
+            msg.clusterId = randomInt();
+            msg.sourceEndpoint = randomInt();
+            msg.destinationEndpoint = randomInt();
+            msg.groupId = randomInt();
+            msg.sequence = randomInt();
+            msg.lastHopLqi = randomInt();
+            msg.lastHopRssi = randomInt();
+            msg.time = randomTime();
+            msg.type = randomString();
+            assertZigbeeLine(msg);
+        }
+    }
+
+    private void assertZigbeeLine(ZigbeeLogMessage msg) {
+        App.formatZigbeeLogMessage(msg, out);
+        assertLine(String.format("%-23s %4X[%03d] %32s: %s profile: 0x%03X, cluster: 0x%03X, group: %d, src: %X, "
+                + "dst: %X, lhLqi: %d, lhRssi: %d", iso(msg.time), msg.id, msg.sequence, msg.name, msg.type,
+                msg.profileId, msg.clusterId, msg.groupId, msg.sourceEndpoint, msg.destinationEndpoint,
+                msg.lastHopLqi, msg.lastHopRssi), out);
+    }
+
+    @Test
+    public void zwaveLogLinesMatchPrintf() throws IOException {
+        ZwaveLogMessageAdapter adapter = new ZwaveLogMessageAdapter();
+        // Reused like the writer does, so a field left over from the frame before would show up
+        ZwaveLogMessage reuse = adapter.newMessage();
+        for (String frame : ZWAVE_FRAMES) {
+            assertZwaveLine(frame, adapter.read(new JsonReader(new StringReader(frame)), reuse));
+        }
+        int[] interesting = { 0, 1, 2, 3, 4, 5, 125, 126, 127, -1, -60, -90, 255, 256, 1000 };
+        for (int i = 0; i < 20_000; i++) {
+            JsonObject report = new JsonObject();
+            for (int key = 0; key < 7; key++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        break;
+                    case 1:
+                        report.add(Integer.toString(key), null);
+                        break;
+                    default:
+                        // Mostly the expected length, sometimes not
+                        int[] lengths = { 1, 2, 5, 5, 1, 1, 3 };
+                        int length = random.nextInt(3) == 0 ? random.nextInt(7) : lengths[key];
+                        StringBuilder values = new StringBuilder("[");
+                        for (int v = 0; v < length; v++) {
+                            values.append(v > 0 ? "," : "").append(random.nextBoolean()
+                                    ? interesting[random.nextInt(interesting.length)] : random.nextInt(256) - 128);
+                        }
+                        report.add(Integer.toString(key), GSON.fromJson(values.append(']').toString(),
+                                JsonArray.class));
+                }
+            }
+            JsonObject frame = new JsonObject();
+            frame.addProperty("seqNo", randomInt());
+            frame.addProperty("name", randomString());
+            frame.addProperty("id", randomString());
+            frame.add("imeReport", report);
+            frame.addProperty("time", "2021-05-29 07:28:50.326");
+            frame.addProperty("type", randomString());
+            String json = frame.toString();
+            assertZwaveLine(json, adapter.read(new JsonReader(new StringReader(json)), reuse));
+        }
+    }
+
+    private void assertZwaveLine(String frame, ZwaveLogMessage msg) {
+        JsonObject json = GSON.fromJson(frame, JsonObject.class);
+        LegacyImeReport report = new LegacyImeReport(GSON.fromJson(json.get("imeReport"), IME_REPORT));
+        App.formatZwaveLogMessage(msg, out);
+        assertLine(String.format("%-23s   %s[%03d] %32s: %s %3dms %5.1fkbps routeChanged: %s, repeaters: [%s], "
+                + "channels: ack %d / tx %d, rssi: [%s]", iso(msg.time), msg.id, msg.seqNo, msg.name, msg.type,
+                report.getTransmissionTimeMs().orElse(-1), report.getSpeed().orElse(Float.NaN),
+                report.getRouteChanged().orElse(false) ? "Y" : "N", report.getRepeaters().orElse(""),
+                report.getAckChannel().orElse(-1), report.getTransmitChannel().orElse(-1),
+                report.getRssi().orElse("")), out);
+    }
+
+    private void assertLine(String expected, LogAppender actual) {
+        assertEquals(expected, actual.toString());
+        actual.clear();
+    }
+
+    private static <T> T read(MessageTypeAdapter<T> adapter, String frame) throws IOException {
+        return adapter.read(new JsonReader(new StringReader(frame)), adapter.newMessage());
+    }
+
+    private static String iso(LocalDateTime time) {
+        return DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(time);
+    }
+
+    private static LocalDateTime receivedAt(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private String randomString() {
+        return STRINGS[random.nextInt(STRINGS.length)];
+    }
+
+    private int randomInt() {
+        switch (random.nextInt(3)) {
+            case 0:
+                return random.nextInt();
+            case 1:
+                return random.nextInt(256);
+            default:
+                return random.nextInt(20_000) - 10_000;
+        }
+    }
+
+    private LocalDateTime randomTime() {
+        // Every fraction length ISO_LOCAL_DATE_TIME prints, including none
+        int[] nanos = { 0, 326_000_000, 1_000, 123_456_789, 500 };
+        return LocalDateTime.of(1990 + random.nextInt(60), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                random.nextInt(24), random.nextInt(60), random.nextInt(60), nanos[random.nextInt(nanos.length)]);
+    }
+
+    /**
+     * How {@link ZwaveLogMessage} read its IME report when it kept the report as a map.
+     */
+    private static final class LegacyImeReport {
+        private final Map<Integer, int[]> imeReport;
+
+        LegacyImeReport(Map<Integer, int[]> imeReport) {
+            this.imeReport = imeReport;
+        }
+
+        Optional<Boolean> getRouteChanged() {
+            int[] values = imeReport.get(0);
+            if (values == null || values.length != 1) {
+                return Optional.empty();
+            }
+            return Optional.of(values[0] == 1);
+        }
+
+        Optional<Integer> getTransmissionTimeMs() {
+            int[] values = imeReport.get(1);
+            if (values == null || values.length != 2) {
+                return Optional.empty();
+            }
+            return Optional.of(((values[0] & 0xff) << 2) | (values[1] & 0xff));
+        }
+
+        Optional<String> getRepeaters() {
+            int[] values = imeReport.get(2);
+            if (values == null || values.length != 5 || values[0] == 0) {
+                return Optional.empty();
+            }
+            return Optional.of(IntStream.of(values).limit(4).filter(i -> i != 0)
+                    .mapToObj(i -> String.format("%02X", i)).collect(Collectors.joining(" > ")));
+        }
+
+        Optional<Float> getSpeed() {
+            int[] values = imeReport.get(2);
+            if (values == null || values.length != 5) {
+                return Optional.empty();
+            }
+            switch (values[4]) {
+                case 1:
+                    return Optional.of(9.6f);
+                case 2:
+                    return Optional.of(40f);
+                case 3:
+                    return Optional.of(100f);
+                default:
+                    return Optional.empty();
+            }
+        }
+
+        Optional<String> getRssi() {
+            int[] values = imeReport.get(3);
+            if (values == null) {
+                return Optional.empty();
+            }
+            return Optional.of(IntStream.of(values).mapToObj(LegacyImeReport::getRssiValue)
+                    .collect(Collectors.joining(", ")));
+        }
+
+        private static String getRssiValue(int rssiByte) {
+            if ((rssiByte & 0xff) == 127) {
+                return "N/A";
+            } else if ((rssiByte & 0xff) == 126) {
+                return "MAX";
+            } else if ((rssiByte & 0xff) == 125) {
+                return "MIN";
+            } else {
+                return rssiByte + " dBm";
+            }
+        }
+
+        Optional<Integer> getAckChannel() {
+            int[] values = imeReport.get(4);
+            if (values == null || values.length == 0) {
+                return Optional.empty();
+            }
+            return Optional.of(values[0]);
+        }
+
+        Optional<Integer> getTransmitChannel() {
+            int[] values = imeReport.get(5);
+            if (values == null || values.length == 0) {
+                return Optional.empty();
+            }
+            return Optional.of(values[0]);
+        }
+    }
+}
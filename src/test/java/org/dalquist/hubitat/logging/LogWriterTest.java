@@ -0,0 +1,106 @@
+package org.dalquist.hubitat.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogWriterTest {
+    private static final int QUEUE_SIZE = 4;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final SocketMetrics metrics = new SocketMetrics("hub", "test");
+    private final LogWriterPool pool = new LogWriterPool(1);
+    // Everything committed to any of the log files the writer opened, in order
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final CountDownLatch commitStarted = new CountDownLatch(1);
+    private final CountDownLatch failCommit = new CountDownLatch(1);
+    private volatile boolean blockNextCommit = true;
+
+    @After
+    public void closePool() throws InterruptedException {
+        pool.close();
+    }
+
+    @Test
+    public void queuedFramesStayAheadOfSpilledOnes() throws Exception {
+        LogWriter writer = new LogWriter("test", RawFrameFormatter.INSTANCE, QUEUE_SIZE, OverflowPolicy.BLOCK, pool,
+                () -> new GroupCommitOutputStream(new LogFile(), 1 << 16, 1, 1000, metrics), null,
+                () -> SpillBuffer.open(folder.newFile("test" + SpillBuffer.SUFFIX), 1 << 20, metrics), 10, metrics);
+        writer.start(() -> {
+        });
+
+        // The writer takes the first frame and gets stuck committing it
+        offer(writer, 0);
+        assertTrue(commitStarted.await(10, TimeUnit.SECONDS));
+        // Fill the queue, the rest go to the spill behind it
+        int next = 1;
+        for (; next <= QUEUE_SIZE + 5; next++) {
+            offer(writer, next);
+        }
+        assertTrue(metrics.spilledFrames.sum() > 0);
+
+        // The log fails with frames both queued and spilled, more arrive while it is reopened
+        failCommit.countDown();
+        for (; next < 30; next++) {
+            offer(writer, next);
+        }
+        assertTrue(writer.flush(10, TimeUnit.SECONDS));
+        writer.close();
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < next; i++) {
+            expected.add(line(i));
+        }
+        assertEquals(expected, List.of(new String(log.toByteArray(), StandardCharsets.UTF_8).split("\n")));
+    }
+
+    private static void offer(LogWriter writer, int i) {
+        assertTrue(writer.offer("{\"n\":" + i + "}", i, System.nanoTime()));
+    }
+
+    private static String line(int i) {
+        return "{\"receivedAt\":" + i + ",\"frame\":{\"n\":" + i + "}}";
+    }
+
+    /**
+     * The first commit blocks until {@link #failCommit}, then fails, the rest succeed.
+     */
+    private final class LogFile extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (blockNextCommit) {
+                blockNextCommit = false;
+                commitStarted.countDown();
+                try {
+                    failCommit.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Disk failed");
+            }
+            synchronized (log) {
+                log.write(b, off, len);
+            }
+        }
+    }
+}